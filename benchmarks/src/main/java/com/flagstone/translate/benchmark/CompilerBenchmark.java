@@ -0,0 +1,373 @@
+/*
+ * CompilerBenchmark.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.yaml.snakeyaml.Yaml;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.translate.ASCompiler;
+import com.flagstone.translate.CodeGenerator;
+import com.flagstone.translate.Context;
+import com.flagstone.translate.FlatTree;
+import com.flagstone.translate.Generator;
+import com.flagstone.translate.GeneratorRegistry;
+import com.flagstone.translate.Node;
+import com.flagstone.translate.Parser;
+import com.flagstone.translate.ParserRegistry;
+import com.flagstone.translate.Profile;
+import com.flagstone.translate.ScriptError;
+
+/**
+ * CompilerBenchmark measures each phase of the compiler using the scripts
+ * from the YAML models used to generate the test suite.
+ *
+ * Each operation processes the next script in the corpus so the latency
+ * percentiles reported in SampleTime mode reflect the mix of scripts in the
+ * models. Scripts that cannot be compiled with the selected profile, for
+ * example because they include other files, are left out.
+ *
+ * The search, reorder and generate phases change the tree so each operation
+ * starts from a fresh copy made from a FlatTree. The benchmarks for these
+ * phases are cumulative: copy only copies the tree, search copies the tree
+ * and searches it, and so on. The cost of a phase, in both time and bytes
+ * allocated, is the difference between its score and the score of the
+ * benchmark that precedes it. The parse, length and compile benchmarks
+ * measure a single step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+
+    /*
+     * Corpus holds the scripts along with the parsed trees and the generated
+     * actions used as the starting point for each phase.
+     */
+    @State(Scope.Benchmark)
+    public static class Corpus {
+
+        /** Directory containing the YAML models. */
+        @Param("../src/test/resources/actionscript/models")
+        public String models;
+
+        /** Name of the Profile used to compile the scripts. */
+        @Param("DEFAULT_1_8")
+        public String profile;
+
+        Profile selected;
+        byte[][] scripts;
+        FlatTree[] trees;
+        List<List<Action>> actions;
+
+        @Setup
+        public void load() throws IOException {
+            selected = Profile.valueOf(profile);
+
+            final List<String> sources = new ArrayList<String>();
+            final List<FlatTree> parsed = new ArrayList<FlatTree>();
+            final List<String> found = new ArrayList<String>();
+
+            actions = new ArrayList<List<Action>>();
+            readScripts(found, new File(models));
+
+            final ASCompiler compiler = new ASCompiler();
+            compiler.setProfile(selected);
+
+            byte[] script;
+            Node node;
+
+            for (String source : found) {
+                script = source.getBytes("UTF-8");
+
+                try {
+                    compiler.compile(new ByteArrayInputStream(script));
+                    node = parse(selected, script);
+                    parsed.add(FlatTree.of(node));
+                    actions.add(generate(selected, node));
+                    sources.add(source);
+                } catch (Exception e) {
+                    continue;
+                }
+            }
+
+            if (sources.isEmpty()) {
+                throw new IllegalStateException("No scripts found in "
+                        + models);
+            }
+
+            scripts = new byte[sources.size()][];
+            for (int i = 0; i < scripts.length; i++) {
+                scripts[i] = sources.get(i).getBytes("UTF-8");
+            }
+            trees = parsed.toArray(new FlatTree[parsed.size()]);
+        }
+    }
+
+    /** Index of the next script to be processed by this thread. */
+    private transient int index;
+
+    private int next(final Corpus corpus) {
+        final int current = index;
+        index = current + 1 == corpus.scripts.length ? 0 : current + 1;
+        return current;
+    }
+
+    @Benchmark
+    public Node parse(final Corpus corpus) {
+        return parse(corpus.selected, corpus.scripts[next(corpus)]);
+    }
+
+    @Benchmark
+    public Node copy(final Corpus corpus) {
+        return corpus.trees[next(corpus)].toNode();
+    }
+
+    @Benchmark
+    public Context search(final Corpus corpus) {
+        final Node node = corpus.trees[next(corpus)].toNode();
+        final Generator registry = registry(corpus.selected);
+        final Context context = context(corpus.selected);
+
+        generator(registry, node).search(registry, context, node);
+        return context;
+    }
+
+    @Benchmark
+    public Context reorder(final Corpus corpus) {
+        final Node node = corpus.trees[next(corpus)].toNode();
+        final Generator registry = registry(corpus.selected);
+        final Context context = context(corpus.selected);
+        final CodeGenerator generator = generator(registry, node);
+
+        generator.search(registry, context, node);
+        generator.reorder(registry, context, node);
+        return context;
+    }
+
+    @Benchmark
+    public List<Action> generate(final Corpus corpus) {
+        final Node node = corpus.trees[next(corpus)].toNode();
+        final Generator registry = registry(corpus.selected);
+        final Context context = context(corpus.selected);
+        final CodeGenerator generator = generator(registry, node);
+        final List<Action> list = new ArrayList<Action>();
+
+        generator.search(registry, context, node);
+        generator.reorder(registry, context, node);
+        generator.generate(registry, context, node, list);
+        return list;
+    }
+
+    /*
+     * length measures the time taken to calculate the encoded size of the
+     * actions, which is done for every action when the branches are resolved
+     * and again when the actions are encoded.
+     */
+    @Benchmark
+    public int length(final Corpus corpus) {
+        final com.flagstone.transform.coder.Context context =
+            new com.flagstone.transform.coder.Context();
+        int length = 0;
+
+        for (Action action : corpus.actions.get(next(corpus))) {
+            length += action.prepareToEncode(context);
+        }
+        return length;
+    }
+
+    @Benchmark
+    public List<Action> compile(final Corpus corpus) throws Exception {
+        final ASCompiler compiler = new ASCompiler();
+        compiler.setProfile(corpus.selected);
+        return compiler.compile(new ByteArrayInputStream(
+                corpus.scripts[next(corpus)]));
+    }
+
+    private static Node parse(final Profile profile, final byte[] script) {
+        final List<ScriptError> errors = new ArrayList<ScriptError>();
+        final Parser parser = ParserRegistry.getParser(
+                profile.getScriptVersion());
+        final Node node;
+
+        try {
+            parser.setErrors(errors);
+            node = parser.parse(new ByteArrayInputStream(script));
+        } finally {
+            ParserRegistry.releaseParser(profile.getScriptVersion(), parser);
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException(errors.toString());
+        }
+        return node;
+    }
+
+    private static List<Action> generate(final Profile profile,
+            final Node node) {
+        final Generator registry = registry(profile);
+        final Context context = context(profile);
+        final CodeGenerator generator = generator(registry, node);
+        final List<Action> list = new ArrayList<Action>();
+
+        generator.search(registry, context, node);
+        generator.reorder(registry, context, node);
+        generator.generate(registry, context, node, list);
+        return list;
+    }
+
+    private static Generator registry(final Profile profile) {
+        return GeneratorRegistry.getGenerator(profile.getScriptVersion());
+    }
+
+    private static Context context(final Profile profile) {
+        return new Context("UTF-8", profile.getFlashVersion());
+    }
+
+    private static CodeGenerator generator(final Generator registry,
+            final Node node) {
+        return registry.getGenerator(node.getType());
+    }
+
+    /*
+     * readScripts loads the scripts from all the YAML files in a directory,
+     * expanding any tests that are run with a list of parameters.
+     */
+    @SuppressWarnings("unchecked")
+    private static void readScripts(final List<String> list, final File dir)
+            throws IOException {
+        final File[] files = dir.listFiles();
+
+        if (files == null) {
+            throw new IOException("Cannot read directory: " + dir);
+        }
+        Arrays.sort(files);
+
+        final Yaml yaml = new Yaml();
+        InputStream stream;
+        Object tests;
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                readScripts(list, file);
+            } else if (file.getName().endsWith(".yaml")) {
+                stream = new FileInputStream(file);
+                try {
+                    tests = yaml.load(stream);
+                } finally {
+                    stream.close();
+                }
+                if (tests instanceof List) {
+                    for (Object test : (List<Object>) tests) {
+                        addScripts(list, (Map<String, Object>) test);
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addScripts(final List<String> list,
+            final Map<String, Object> test) {
+        final String script = (String) test.get("script");
+        final List<Object> parameters = (List<Object>) test.get("parameters");
+
+        if (script == null) {
+            return;
+        } else if (parameters == null) {
+            list.add(script);
+            return;
+        }
+
+        String expanded;
+
+        for (Object values : parameters) {
+            expanded = script;
+            for (Map.Entry<String, Object> entry
+                    : ((Map<String, Object>) values).entrySet()) {
+                expanded = expanded.replace("%" + entry.getKey() + "%",
+                        String.valueOf(entry.getValue()));
+            }
+            list.add(expanded);
+        }
+    }
+
+    /**
+     * Run the benchmarks with the GC profiler so the rate memory is allocated
+     * is reported along with the time taken.
+     *
+     * @param args any of the options accepted by JMH.
+     *
+     * @throws CommandLineOptionException if the options are invalid.
+     * @throws RunnerException if a benchmark fails.
+     */
+    public static void main(final String[] args)
+            throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        final ChainedOptionsBuilder builder = new OptionsBuilder()
+            .parent(options).addProfiler(GCProfiler.class);
+
+        if (options.getIncludes().isEmpty()) {
+            builder.include(CompilerBenchmark.class.getSimpleName());
+        }
+        new Runner(builder.build()).run();
+    }
+}
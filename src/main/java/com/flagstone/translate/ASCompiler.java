@@ -30,45 +30,75 @@
  */
 package com.flagstone.translate;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.flagstone.transform.action.Action;
-import com.flagstone.translate.as.ASParser;
-import com.flagstone.translate.as.ParseException;
-import com.flagstone.translate.as.Token;
+import com.flagstone.transform.coder.SWFEncoder;
+import com.flagstone.transform.exception.IllegalArgumentRangeException;
+import com.flagstone.translate.CompileMetrics.Phase;
+import com.flagstone.translate.optimizer.Optimization;
+import com.flagstone.translate.optimizer.Optimizer;
 
+/**
+ * ASCompiler compiles ActionScript into the list of Actions executed by the
+ * Flash Player.
+ *
+ * The compiler does not keep any state between compilations so once it has
+ * been configured with the Profile, character encoding and the directories
+ * searched for included files, a single instance can be shared by several
+ * threads. The compileAll() methods use this to compile a set of files in
+ * parallel.
+ */
 public final class ASCompiler {
 
-	/** Version of actionscript to be compiled. */
-	private transient int scriptVersion = 1;
-	/** Version of Flash to generate objects for. */
-	private transient int flashVersion = 5;
-	/** Runtime platform targeted. */
-	private transient PlayerType player = PlayerType.DEFAULT;
+	/** Size of the buffer used to read scripts from a stream. */
+	private static final int BUFFER_SIZE = 4096;
+
+	/** The Profile used to control the code generated. */
+	private transient volatile Profile profile = Profile.DEFAULT_1_5;
 	/** The character encoding used in the scripts. */
-	private transient String encoding = "UTF-8";
+	private transient volatile String encoding = "UTF-8";
 	/** List directories searched when looking for included file. */
-	private transient final ArrayList<String> pathNames =
-		new ArrayList<String>();
-	/** List of errors that occurred while compiling the scripts. */
-	private transient final List<ScriptError> errors =
-		new ArrayList<ScriptError>();
-	/** Table of parsed scripts, indexed by source file name. */
-	private transient final Map<String, Node> scripts =
-		new LinkedHashMap<String, Node>();
-	/** Table of definitions, indexed by name. */
-	private transient final Map<String, Node> defines =
-		new LinkedHashMap<String, Node>();
-
-	private transient String path = "";
+	private transient final List<String> pathNames =
+		new CopyOnWriteArrayList<String>();
+	/** Order the string table by the number of references. */
+	private transient volatile boolean rankStrings;
+	/** Evaluate more of the expressions that only contain literals. */
+	private transient volatile boolean foldConstants;
+	/** Define functions with DefineFunction2, storing variables in registers. */
+	private transient volatile boolean registerFunctions;
+	/** Optional Optimizer run on the generated actions. */
+	private transient volatile Optimizer optimizer;
+	/** Optional cache of the encoded actions for compiled scripts. */
+	private transient volatile CompileCache compileCache;
+	/** Cache of parsed files that are included in scripts. */
+	private transient volatile ScriptCache cache = new ScriptCache();
+	/** Optional listener notified with the metrics for each script. */
+	private transient volatile CompileListener listener;
 
 	/**
 	 * Get the Profile that is currently used to generate code.
@@ -78,7 +108,7 @@ public final class ASCompiler {
 	 * 		is generated by the compiler.
 	 */
 	public Profile getProfile() {
-		return Profile.fromValues(player, scriptVersion, flashVersion);
+		return profile;
 	}
 
 	/**
@@ -89,9 +119,10 @@ public final class ASCompiler {
 	 *            flash version.
 	 */
 	public void setProfile(final Profile profile) {
-		player = profile.getPlayer();
-		scriptVersion = profile.getScriptVersion();
-		flashVersion = profile.getFlashVersion();
+		if (profile == null) {
+			throw new IllegalArgumentException("Profile cannot be null.");
+		}
+		this.profile = profile;
 	}
 
 	/**
@@ -112,6 +143,166 @@ public final class ASCompiler {
 		encoding = enc;
 	}
 
+	/**
+	 * Get the cache used to store the parsed files that are included in
+	 * scripts.
+	 *
+	 * @return the ScriptCache used by the compiler or null if included files
+	 * are parsed each time they are used.
+	 */
+	public ScriptCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Set the cache used to store the parsed files that are included in
+	 * scripts. A cache can be shared between compilers.
+	 *
+	 * @param scriptCache the ScriptCache used to store parsed files. May be
+	 * null to disable caching.
+	 */
+	public void setCache(final ScriptCache scriptCache) {
+		cache = scriptCache;
+	}
+
+	/**
+	 * Are the strings in the table ordered by the number of times they are
+	 * referenced.
+	 *
+	 * @return true if the string table is ordered by frequency, false if the
+	 * strings are added in the order they appear in a script.
+	 */
+	public boolean isRankStrings() {
+		return rankStrings;
+	}
+
+	/**
+	 * Order the strings in the table by the number of times they are
+	 * referenced rather than the order in which they appear in a script.
+	 * The most frequently used strings get the indices that are encoded in
+	 * a single byte and strings that are only used once are pushed directly
+	 * rather than added to the table, reducing the size of the code. The
+	 * default is false which produces the same table as the Flash authoring
+	 * application.
+	 *
+	 * @param rank true if the strings should be ordered by frequency.
+	 */
+	public void setRankStrings(final boolean rank) {
+		rankStrings = rank;
+	}
+
+	/**
+	 * Are expressions that only contain literals evaluated when the script is
+	 * compiled.
+	 *
+	 * @return true if comparisons, unary operators, string operations and
+	 * calls to the Math class are evaluated by the compiler.
+	 */
+	public boolean isFoldConstants() {
+		return foldConstants;
+	}
+
+	/**
+	 * Evaluate comparisons, unary operators, string operations and calls to
+	 * the pure functions of the Math class, such as Math.floor(), when all
+	 * the arguments are literals, replacing the expression with the result.
+	 * Arithmetic on integer literals is always evaluated. The default is
+	 * false which produces the same code as the Flash authoring application.
+	 *
+	 * @param fold true if expressions containing literals are evaluated.
+	 */
+	public void setFoldConstants(final boolean fold) {
+		foldConstants = fold;
+	}
+
+	/**
+	 * Are functions defined so their arguments and local variables are
+	 * stored in registers.
+	 *
+	 * @return true if functions are defined using DefineFunction2 when the
+	 * Profile targets Flash 7 or later.
+	 */
+	public boolean isRegisterFunctions() {
+		return registerFunctions;
+	}
+
+	/**
+	 * Define functions and methods using DefineFunction2, when the Profile
+	 * targets Flash 7 or later, so the arguments and local variables are
+	 * stored in registers rather than looked up by name. The default is
+	 * false which produces the same code as the Flash authoring application.
+	 *
+	 * @param registers true if functions are defined using DefineFunction2.
+	 */
+	public void setRegisterFunctions(final boolean registers) {
+		registerFunctions = registers;
+	}
+
+	/**
+	 * Get the Optimizer used to remove redundant actions from the generated
+	 * code.
+	 *
+	 * @return the Optimizer or null if the code is not optimized.
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * Set the Optimizer used to remove redundant actions from the generated
+	 * code. The default is null, so the code generated matches the code
+	 * produced by the Flash authoring application.
+	 *
+	 * @param passes the Optimizer to use or null to disable optimization.
+	 */
+	public void setOptimizer(final Optimizer passes) {
+		optimizer = passes;
+	}
+
+	/**
+	 * Get the cache used to store the encoded actions for scripts compiled
+	 * using the compileTo() methods.
+	 *
+	 * @return the CompileCache or null if scripts are always compiled.
+	 */
+	public CompileCache getCompileCache() {
+		return compileCache;
+	}
+
+	/**
+	 * Set the cache used to store the encoded actions for scripts compiled
+	 * using the compileTo() methods. When a script, the files it includes,
+	 * the Profile and encoding are unchanged the actions are read from the
+	 * cache rather than compiling the script again.
+	 *
+	 * @param store the CompileCache to use. May be null to disable caching,
+	 * the default.
+	 */
+	public void setCompileCache(final CompileCache store) {
+		compileCache = store;
+	}
+
+	/**
+	 * Get the listener notified each time a script is compiled.
+	 *
+	 * @return the CompileListener or null if no metrics are collected.
+	 */
+	public CompileListener getCompileListener() {
+		return listener;
+	}
+
+	/**
+	 * Set the listener notified each time a script is compiled. The time
+	 * taken and memory allocated by each phase of the compiler are only
+	 * measured when a listener is set.
+	 *
+	 * @param observer the CompileListener to notify. May be null to disable
+	 * collecting metrics, the default.
+	 */
+	public void setCompileListener(final CompileListener observer) {
+		listener = observer;
+	}
+
 	/**
 	 * Add a directory to the list that will be searched for #included
 	 * files.
@@ -125,7 +316,7 @@ public final class ASCompiler {
 		} else if (!dir.isDirectory()) {
 			throw new IllegalArgumentException("Not a directory.");
 		}
-		pathNames.add(path);
+		pathNames.add(dir.getPath());
 	}
 
 	/**
@@ -144,134 +335,756 @@ public final class ASCompiler {
 	 *             if one or more errors are found in the script.
 	 */
 	public List<Action> compile(File file) throws IOException, ScriptException {
-		List<Action> list = new ArrayList<Action>();
+		List<Action> list;
 		FileInputStream stream = null;
 		try {
-			path = file.getPath();
 			stream = new FileInputStream(file);
-			list = compile(stream);
-//			list = compile(contentsOfFile(file));
+			list = compile(file.getPath(), stream);
 		} finally {
 			if (stream != null) {
 				stream.close();
 			}
-			path = "";
 		}
 		return list;
 	}
 
-	private List<Action> compile(final String script) throws ScriptException {
+	/**
+	 * Compiles ActionScript read from a stream.
+	 *
+	 * @param stream
+	 *            the stream containing the ActionScript statements to parse.
+	 *
+	 * @return list of Actions that the script compiles to.
+	 *
+	 * @throws IOException
+	 *             if an error occurs while reading the stream.
+	 *
+	 * @throws ScriptException
+	 *             if one or more errors are found in the script.
+	 */
+	public List<Action> compile(final InputStream stream)
+			throws IOException, ScriptException {
+		return compile("", stream);
+	}
+
+	/**
+	 * Compiles a set of files in parallel, using one thread for each
+	 * available processor.
+	 *
+	 * @param files
+	 *            the files containing the scripts to compile.
+	 *
+	 * @return a CompileResult for each file, in the same order as the files
+	 * in the collection.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the files to
+	 *             be compiled.
+	 */
+	public List<CompileResult> compileAll(final Collection<File> files)
+			throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors(),
+				new ThreadFactory() {
+					public Thread newThread(final Runnable task) {
+						Thread thread = new Thread(task, "ASCompiler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			return compileAll(files, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Compiles a set of files using the threads provided by an
+	 * ExecutorService. The executor is not shut down when the files have
+	 * been compiled so it can be reused.
+	 *
+	 * Errors in the scripts or while reading the files are returned in the
+	 * CompileResult for each file. An unchecked exception thrown while
+	 * compiling a file is reported as a SCRIPT_COMPILE_ERROR for that file
+	 * so the other files are still compiled.
+	 *
+	 * @param files
+	 *            the files containing the scripts to compile.
+	 * @param executor
+	 *            the ExecutorService used to run the compilations.
+	 *
+	 * @return a CompileResult for each file, in the same order as the files
+	 * in the collection.
+	 *
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting for the files to
+	 *             be compiled.
+	 */
+	public List<CompileResult> compileAll(final Collection<File> files,
+			final ExecutorService executor) throws InterruptedException {
+
+		List<Callable<CompileResult>> tasks =
+			new ArrayList<Callable<CompileResult>>(files.size());
+
+		for (final File file : files) {
+			tasks.add(new Callable<CompileResult>() {
+				public CompileResult call() {
+					return compileFile(file);
+				}
+			});
+		}
+
+		List<CompileResult> results =
+			new ArrayList<CompileResult>(files.size());
+
+		for (Future<CompileResult> future : executor.invokeAll(tasks)) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new IllegalStateException(cause);
+			}
+		}
+		return results;
+	}
+
+	/*
+	 * compileFile compiles a script, returning any errors in the result
+	 * rather than throwing an exception, so one file that cannot be compiled
+	 * does not discard the results for the others.
+	 */
+	private CompileResult compileFile(final File file) {
+		List<Action> actions = new ArrayList<Action>();
+		List<ScriptError> errors = new ArrayList<ScriptError>();
+
+		try {
+			actions = compile(file);
+		} catch (FileNotFoundException e) {
+			errors.add(new ScriptError(ScriptError.Type.SCRIPT_NOT_FOUND,
+					file.getPath()));
+		} catch (IOException e) {
+			errors.add(new ScriptError(ScriptError.Type.SCRIPT_READ_ERROR,
+					file.getPath()));
+		} catch (ScriptException e) {
+			errors.addAll(e.getErrors());
+		} catch (RuntimeException e) {
+			errors.add(new ScriptError(ScriptError.Type.SCRIPT_COMPILE_ERROR,
+					file.getPath()));
+		}
+		return new CompileResult(file, actions, errors);
+	}
+
+	/*
+	 * All the state used while compiling a script is held in local variables
+	 * so the compiler can be used by several threads at the same time.
+	 */
+	private List<Action> compile(final String path, final InputStream stream)
+			throws IOException, ScriptException {
+		final Profile current = profile;
+		final CompileListener observer = listener;
+		final CompileMetrics metrics = observer == null ? null
+				: new CompileMetrics(path, current);
+		final Object event = Tracer.INSTANCE.beginCompile();
+		final CountingInputStream input = event == null ? null
+				: new CountingInputStream(stream);
+		final List<Action> list = compile(path,
+				input == null ? stream : input, current,
+				new LinkedHashMap<String, Node>(), metrics);
+		final int length = metrics == null && event == null ? 0
+				: length(list);
+
+		if (metrics != null) {
+			metrics.setLength(length);
+			observer.compiled(metrics);
+		}
+		if (event != null) {
+			Tracer.INSTANCE.endCompile(event, path, current,
+					input.getCount(), length);
+		}
+		return list;
+	}
+
+	/*
+	 * The parsed script and all the files it includes are added to the map
+	 * of scripts so the caller can tell which files were used.
+	 */
+	private List<Action> compile(final String path, final InputStream stream,
+			final Profile current, final Map<String, Node> scripts,
+			final CompileMetrics metrics)
+			throws IOException, ScriptException {
 		List<Action> list = new ArrayList<Action>();
+		List<ScriptError> errors = new ArrayList<ScriptError>();
+
+		Context context = new Context(encoding, current.getFlashVersion());
+		context.optimizer = optimizer;
+		context.foldConstants = foldConstants;
+		context.registerFunctions = registerFunctions;
+		context.rankStrings = rankStrings;
+		Generator registry = GeneratorRegistry.getGenerator(
+				current.getScriptVersion());
+		Parser parser = ParserRegistry.getParser(current.getScriptVersion());
+
+		parser.setErrors(errors);
+
+		if (metrics != null) {
+			metrics.mark();
+		}
+		Object event = Tracer.INSTANCE.beginPhase();
+
+		final Node node;
+		final Set<String> active = new HashSet<String>();
 
 		try {
-			ASContext context = new ASContext(encoding, flashVersion);
-			ASParser parser = new ASParser();
-			ASNode node = parser.parse(script);
-			list = node.compile(context);
-		} catch (ParseException e) {
-			Token token = e.currentToken;
-			errors.add(new ScriptError(ScriptError.Type.SCRIPT_PARSE_ERROR,
-					path, token.beginLine, token.endLine,
-					token.beginColumn, token.endColumn));
+			parser.setPath(path);
+			node = parser.parse(stream);
+			scripts.put(path, node);
+
+			if (path.length() > 0) {
+				active.add(new File(path).getCanonicalPath());
+			}
+
+			if (metrics != null) {
+				metrics.lap(Phase.PARSE);
+			}
+			Tracer.INSTANCE.endPhase(event, Phase.PARSE);
+			event = Tracer.INSTANCE.beginPhase();
+
+			loadIncludes(parser, scripts, errors, node, metrics, active);
+		} finally {
+			ParserRegistry.releaseParser(current.getScriptVersion(), parser);
+		}
+		Tracer.INSTANCE.endPhase(event, Phase.INCLUDES);
+
+		if (metrics != null) {
+			metrics.lap(Phase.INCLUDES);
+
+			if (node != null) {
+				metrics.count(node);
+			}
+			metrics.mark();
+		}
+
+		/*
+		 * Code is only generated if the script and the files it includes
+		 * were parsed successfully. Limits of the file format, such as the
+		 * maximum length of a branch, are only found while generating the
+		 * code and are reported as errors in the script.
+		 */
+		if (errors.isEmpty()) {
+			try {
+				compile(list, registry, context, node, metrics);
+			} catch (IllegalArgumentRangeException e) {
+				errors.add(new ScriptError(
+						ScriptError.Type.SCRIPT_SIZE_ERROR, path));
+			}
 		}
 
 		if (!errors.isEmpty()) {
 			throw new ScriptException(errors);
 		}
-
 		return list;
 	}
 
-    private String contentsOfFile(File file)
-    		throws FileNotFoundException, IOException {
-        String script = "";
-        byte[] fileIn = new byte[(int)file.length()];
-        FileInputStream fileContents = new FileInputStream(file);
-        fileContents.read(fileIn);
-        script = new String(fileIn);
-        fileContents.close();
-        return script;
-    }
-
 	/**
-	 * Compiles ActionScript read from a stream.
+	 * Compiles ActionScript read from a file and writes the encoded actions
+	 * directly to a stream. The bytes can be added to a movie using an
+	 * ActionData object so the actions are only encoded once.
 	 *
 	 * @param file
 	 *            a File containing the ActionScript statements to parse.
+	 * @param out
+	 *            the stream where the encoded actions will be written.
 	 *
-	 * @return list of Actions that the script compiles to.
+	 * @return the number of bytes written.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read, an error occurs while writing
+	 *             to the stream or while updating the compile cache.
+	 *
+	 * @throws ScriptException
+	 *             if one or more errors are found in the script.
+	 */
+	public int compileTo(final File file, final OutputStream out)
+			throws IOException, ScriptException {
+		int length;
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(file);
+			length = compileTo(file.getPath(), stream, out);
+		} finally {
+			if (stream != null) {
+				stream.close();
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Compiles ActionScript read from a stream and writes the encoded actions
+	 * directly to another stream.
+	 *
+	 * @param stream
+	 *            the stream containing the ActionScript statements to parse.
+	 * @param out
+	 *            the stream where the encoded actions will be written.
+	 *
+	 * @return the number of bytes written.
+	 *
+	 * @throws IOException
+	 *             if an error occurs while reading or writing the streams.
+	 *
+	 * @throws ScriptException
+	 *             if one or more errors are found in the script.
+	 */
+	public int compileTo(final InputStream stream, final OutputStream out)
+			throws IOException, ScriptException {
+		return compileTo("", stream, out);
+	}
+
+	/**
+	 * Compiles ActionScript read from a stream and writes the encoded actions
+	 * directly to a buffer, starting at the buffer's current position.
+	 *
+	 * @param stream
+	 *            the stream containing the ActionScript statements to parse.
+	 * @param buffer
+	 *            the buffer, heap or direct, where the encoded actions will be
+	 *            written.
+	 *
+	 * @return the number of bytes written.
 	 *
 	 * @throws IOException
 	 *             if an error occurs while reading the stream.
 	 *
 	 * @throws ScriptException
 	 *             if one or more errors are found in the script.
+	 *
+	 * @throws java.nio.BufferOverflowException
+	 *             if there is not enough space remaining in the buffer. The
+	 *             space is checked before any actions are written so the
+	 *             buffer is left unchanged. The buffer is not grown since a
+	 *             ByteBuffer has a fixed capacity: use
+	 *             {@link #compileTo(InputStream, OutputStream)} with a
+	 *             ByteArrayOutputStream when the size of the code is not
+	 *             known in advance.
 	 */
-	public List<Action> compile(final InputStream stream)
+	public int compileTo(final InputStream stream, final ByteBuffer buffer)
 			throws IOException, ScriptException {
-		List<Action> list = new ArrayList<Action>();
+		return compileTo("", stream, new BufferOutputStream(buffer));
+	}
 
-		Context context = new Context(encoding, flashVersion);
-		Generator registry = GeneratorRegistry.getGenerator(scriptVersion);
-		Parser parser = ParserRegistry.getParser(scriptVersion);
+	/*
+	 * compileTo uses the compile cache, if one has been set, to avoid
+	 * compiling scripts that have not changed.
+	 */
+	private int compileTo(final String path, final InputStream stream,
+			final OutputStream out) throws IOException, ScriptException {
 
-		try {
-			errors.clear();
-			scripts.clear();
+		final CompileCache store = compileCache;
+		final Profile current = profile;
+		final CompileListener observer = listener;
+		final CompileMetrics metrics = observer == null ? null
+				: new CompileMetrics(path, current);
+		final Object event = Tracer.INSTANCE.beginCompile();
+		final CountingInputStream input = event == null ? null
+				: new CountingInputStream(stream);
+		final InputStream source = input == null ? stream : input;
+		final int length;
+		Object phase;
 
-			parser.setErrors(errors);
+		if (store == null) {
+			final List<Action> list = compile(path, source, current,
+					new LinkedHashMap<String, Node>(), metrics);
+			phase = Tracer.INSTANCE.beginPhase();
+			length = encode(list, out);
+		} else {
+			final byte[] script = contentsOf(source);
+			final String key = store.key(script, current, encoding,
+					options());
+			byte[] actions = store.get(key, pathNames);
 
-			loadScript(parser, scripts, path, stream);
-			compile(list, registry, context, scripts.get(path));
-		} finally {
-			path = "";
+			if (actions == null) {
+				final Map<String, Node> scripts =
+					new LinkedHashMap<String, Node>();
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				final List<Action> list = compile(path,
+						new ByteArrayInputStream(script), current, scripts,
+						metrics);
+
+				phase = Tracer.INSTANCE.beginPhase();
+				encode(list, bytes);
+				actions = bytes.toByteArray();
+
+				scripts.remove(path);
+				store.put(key, scripts.keySet(), pathNames, actions);
+			} else {
+				if (metrics != null) {
+					metrics.setCached();
+					metrics.mark();
+				}
+				phase = Tracer.INSTANCE.beginPhase();
+			}
+			reserve(out, actions.length);
+			out.write(actions);
+			length = actions.length;
 		}
+		Tracer.INSTANCE.endPhase(phase, Phase.ENCODE);
 
-		if (!errors.isEmpty()) {
-			throw new ScriptException(errors);
+		if (metrics != null) {
+			metrics.lap(Phase.ENCODE);
+			metrics.setLength(length);
+			observer.compiled(metrics);
+		}
+		if (event != null) {
+			Tracer.INSTANCE.endCompile(event, path, current,
+					input.getCount(), length);
+		}
+		return length;
+	}
+
+	/*
+	 * options lists the settings, other than the Profile and encoding, that
+	 * change the code generated so they can be included in the cache key.
+	 */
+	private String options() {
+		final StringBuilder builder = new StringBuilder();
+		final Optimizer passes = optimizer;
+
+		builder.append("rankStrings=").append(rankStrings);
+		builder.append(";foldConstants=").append(foldConstants);
+		builder.append(";registerFunctions=").append(registerFunctions);
+		builder.append(";optimizer=");
+
+		if (passes != null) {
+			for (Optimization pass : passes.getPasses()) {
+				builder.append(pass.getName()).append(',');
+			}
+		}
+		return builder.toString();
+	}
+
+	private byte[] contentsOf(final InputStream stream) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+
+		while ((read = stream.read(buffer)) > 0) {
+			bytes.write(buffer, 0, read);
+		}
+		return bytes.toByteArray();
+	}
+
+	/*
+	 * encode writes the actions to the stream. Branches were already
+	 * resolved when the actions were generated so the length of each action
+	 * is calculated once, in a single pass before any are encoded. That way
+	 * the total is known when the space in a buffer is checked.
+	 */
+	private int encode(final List<Action> actions, final OutputStream out)
+			throws IOException {
+		com.flagstone.transform.coder.Context context =
+			new com.flagstone.transform.coder.Context();
+		SWFEncoder coder = new SWFEncoder(out);
+		int length = 0;
+
+		for (Action action : actions) {
+			length += action.prepareToEncode(context);
+		}
+		reserve(out, length);
+
+		for (Action action : actions) {
+			action.encode(coder, context);
+		}
+		coder.flush();
+		return length;
+	}
+
+	/*
+	 * length returns the number of bytes in the encoded actions. It is used
+	 * when collecting metrics for scripts that are not encoded.
+	 */
+	private int length(final List<Action> actions) {
+		com.flagstone.transform.coder.Context context =
+			new com.flagstone.transform.coder.Context();
+		int length = 0;
+
+		for (Action action : actions) {
+			length += action.prepareToEncode(context);
+		}
+		return length;
+	}
+
+	/*
+	 * reserve checks there is enough space in a buffer for the encoded
+	 * actions before any are written, so a buffer that is too small is left
+	 * unchanged rather than overflowing part way through the actions. Streams
+	 * can always be written to so they are not checked.
+	 */
+	private static void reserve(final OutputStream out, final int length) {
+		if (out instanceof BufferOutputStream
+				&& ((BufferOutputStream) out).remaining() < length) {
+			throw new BufferOverflowException();
+		}
+	}
+
+	/*
+	 * BufferOutputStream adapts a ByteBuffer so the encoded actions can be
+	 * written without copying them to an intermediate array.
+	 */
+	private static final class BufferOutputStream extends OutputStream {
+		private final transient ByteBuffer buffer;
+
+		BufferOutputStream(final ByteBuffer buf) {
+			buffer = buf;
+		}
+
+		int remaining() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public void write(final int value) {
+			buffer.put((byte) value);
+		}
+
+		@Override
+		public void write(final byte[] bytes, final int off, final int len) {
+			buffer.put(bytes, off, len);
+		}
+	}
+
+	/*
+	 * CountingInputStream counts the bytes read from a stream so the size of
+	 * a script can be recorded without reading it into memory first.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private transient long count;
+
+		CountingInputStream(final InputStream stream) {
+			super(stream);
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int value = super.read();
+			if (value >= 0) {
+				count++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(final byte[] bytes, final int off, final int len)
+				throws IOException {
+			final int read = super.read(bytes, off, len);
+			if (read > 0) {
+				count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long len) throws IOException {
+			final long skipped = super.skip(len);
+			count += skipped;
+			return skipped;
 		}
-		return list;
 	}
 
-	private void loadScript(final Parser parser,
+	/*
+	 * loadIncludes parses the files included by a script and replaces each
+	 * #include directive with the statements in the file, so the code is
+	 * generated as if the file had been copied into the script. If a cache
+	 * has been set then the parsed files are shared across compilations.
+	 * Each file is added to the map so the caller can tell which files were
+	 * used. The set contains the canonical paths of the files currently being
+	 * included so a file that includes itself, directly or indirectly, is
+	 * reported as an error rather than being expanded forever, however the
+	 * file is named in the directive.
+	 */
+	private void loadIncludes(final Parser parser,
 			final Map<String, Node>map,
-			final String key,
-			final InputStream stream) {
+			final List<ScriptError> errors,
+			final Node node,
+			final CompileMetrics metrics,
+			final Set<String> active) {
 
-		parser.setPath(path);
-		Node node = parser.parse(stream);
-	    map.put(key, node);
+		// The script could not be parsed and the error was already reported.
+		if (node == null) {
+			return;
+		}
 
 	    List<Node> includes = new ArrayList<Node>();
 	    findNodes(includes, node, NodeType.INCLUDE);
 
+	    loadIncludes(parser, map, errors, includes, metrics, active);
+	}
+
+	/*
+	 * The cache finds the #include directives in a file as it creates the
+	 * copy of the parsed tree so only files that are parsed each time they
+	 * are included are searched for directives.
+	 */
+	private void loadIncludes(final Parser parser,
+			final Map<String, Node>map,
+			final List<ScriptError> errors,
+			final List<Node> includes,
+			final CompileMetrics metrics,
+			final Set<String> active) {
+
+	    ScriptCache scriptCache = cache;
 	    String path;
+	    String canonical;
 	    File file;
+	    FileInputStream stream;
+	    Node script;
+	    List<Node> nested;
+
+	    Object event;
 
 	    for (Node include : includes) {
 	    	path = include.get(0).getValue();
+	    	canonical = null;
+	    	script = null;
+	    	nested = new ArrayList<Node>();
+
+	    	event = Tracer.INSTANCE.beginInclude();
+	    	try {
+	            file = findFile(path);
+	            canonical = file.getCanonicalPath();
+	            parser.setPath(path);
+
+	            if (active.contains(canonical)) {
+	            	errors.add(new ScriptError(
+	            			ScriptError.Type.SCRIPT_PARSE_ERROR, path));
+	            	canonical = null;
+	            } else if (scriptCache == null) {
+		            stream = new FileInputStream(file);
+		            try {
+		            	script = parser.parse(stream);
+		            } finally {
+		            	stream.close();
+		            }
+		            if (metrics != null) {
+		            	metrics.included(0, 0);
+		            }
+		            if (script != null) {
+		            	findNodes(nested, script, NodeType.INCLUDE);
+		            }
+	            } else {
+	            	script = scriptCache.load(file, parser, errors, metrics,
+	            			nested);
+	            }
+	            if (canonical != null) {
+	            	map.put(path, script);
+	            }
+	    	} catch (FileNotFoundException e) {
+	    		errors.add(new ScriptError(
+	    				ScriptError.Type.SCRIPT_NOT_FOUND, path));
+	    	} catch (IOException e) {
+	    		errors.add(new ScriptError(
+	    				ScriptError.Type.SCRIPT_READ_ERROR, path));
+	    	}
+	    	Tracer.INSTANCE.endInclude(event, path);
+
+	    	if (canonical != null) {
+	    		active.add(canonical);
+	    		loadIncludes(parser, map, errors, nested, metrics, active);
+	    		active.remove(canonical);
+	    	}
+
+	    	splice(include, script);
+		}
+	}
+
+	/*
+	 * splice replaces an #include directive with the statements from the
+	 * included file. If the file contains event handlers and is included at
+	 * the top level of the script then the script is marked as containing
+	 * handlers in the same way as the parser does.
+	 */
+	private void splice(final Node include, final Node script) {
+		final Node parent = include.getParent();
+		int index = parent.indexOf(include);
+
+		parent.remove(index);
 
-		    if (!map.containsKey(path)) {
-		    	try {
-		            file = findFile(path);
-			        loadScript(parser, map, path, new FileInputStream(file));
-		    	} catch (FileNotFoundException e) {
-		    		errors.add(new ScriptError(
-		    				ScriptError.Type.SCRIPT_NOT_FOUND, path));
-		    	} catch (IOException e) {
-		    		errors.add(new ScriptError(
-		    				ScriptError.Type.SCRIPT_READ_ERROR, path));
-		    	}
+		if (script != null) {
+			final int count = script.count();
+
+			for (int i = 0; i < count; i++) {
+				parent.insert(index++, script.get(i));
+			}
+			if (parent.getParent() == null
+					&& script.getType() != NodeType.ARRAY) {
+				parent.setType(script.getType());
 			}
 		}
 	}
 
 	private void compile(final List<Action> actions, final Generator registry,
-			final Context context, final Node node) {
+			final Context context, final Node node,
+			final CompileMetrics metrics) {
 		CodeGenerator generator = registry.getGenerator(node.getType());
-		generator.search(registry, context, node);
+		Object event;
+
+		/*
+		 * The strings are normally added to the table in the order they
+		 * appear in the script, before the nodes are reordered, to produce
+		 * the same table as the Flash authoring application. When constants
+		 * are folded or the table is ranked the strings are found after the
+		 * nodes are reordered since folding expressions and replacing
+		 * constants change the strings that are pushed.
+		 */
+		final boolean late = context.rankStrings || context.foldConstants;
+
+		if (!late) {
+			search(generator, registry, context, node, metrics);
+		}
+		event = Tracer.INSTANCE.beginPhase();
 		generator.reorder(registry, context, node);
+		Tracer.INSTANCE.endPhase(event, Phase.REORDER);
+
+		if (metrics != null) {
+			metrics.lap(Phase.REORDER);
+		}
+
+		if (late) {
+			search(generator, registry, context, node, metrics);
+		}
+		if (context.rankStrings) {
+			context.rankStrings();
+		}
+		event = Tracer.INSTANCE.beginPhase();
 		generator.generate(registry, context, node, actions);
+		Tracer.INSTANCE.endPhase(event, Phase.GENERATE);
+
+		if (metrics != null) {
+			metrics.lap(Phase.GENERATE);
+			metrics.generated(actions, context);
+		}
+	}
+
+	private void search(final CodeGenerator generator,
+			final Generator registry, final Context context, final Node node,
+			final CompileMetrics metrics) {
+		Object event = Tracer.INSTANCE.beginPhase();
+		generator.search(registry, context, node);
+		Tracer.INSTANCE.endPhase(event, Phase.SEARCH);
+
+		if (metrics != null) {
+			metrics.lap(Phase.SEARCH);
+		}
 	}
 
 	private void findNodes(final List<Node> list, final Node node, final NodeType type) {
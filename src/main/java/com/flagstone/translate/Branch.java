@@ -0,0 +1,151 @@
+/*
+ * Branch.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.io.IOException;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.ActionTypes;
+import com.flagstone.transform.coder.Context;
+import com.flagstone.transform.coder.SWFEncoder;
+
+/**
+ * Branch is a placeholder for an If or Jump action that is added to the list
+ * of actions generated for a script. The offset to the Label it targets is
+ * not known until all the actions for the block have been generated, at which
+ * point the code generator replaces the placeholder with an If or Jump action.
+ * Until then the actions can be rearranged, for example by an Optimizer,
+ * without recalculating the offsets.
+ */
+public final class Branch implements Action {
+
+    /** The length of an encoded If or Jump action. */
+    public static final int LENGTH = 5;
+
+    /** The type of action, either ActionTypes.IF or ActionTypes.JUMP. */
+    private final int type;
+    /** The position in the list of actions that is jumped to. */
+    private final Label target;
+    /*
+     * An optional branch is discarded if it would jump to the action that
+     * immediately follows it.
+     */
+    private boolean optional;
+
+    /**
+     * Create a Branch.
+     *
+     * @param kind either ActionTypes.IF or ActionTypes.JUMP.
+     * @param label the Label that marks the target of the branch.
+     */
+    public Branch(final int kind, final Label label) {
+        type = kind;
+        target = label;
+    }
+
+    /**
+     * Create a Branch that can be discarded if it jumps to the next action.
+     *
+     * @param kind either ActionTypes.IF or ActionTypes.JUMP.
+     * @param label the Label that marks the target of the branch.
+     * @param skip true if the branch is discarded when the target is the
+     * action that immediately follows it.
+     */
+    public Branch(final int kind, final Label label, final boolean skip) {
+        type = kind;
+        target = label;
+        optional = skip;
+    }
+
+    /**
+     * Get the type of action the branch will be replaced with.
+     *
+     * @return either ActionTypes.IF or ActionTypes.JUMP.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get the Label that marks the target of the branch.
+     *
+     * @return the target Label.
+     */
+    public Label getTarget() {
+        return target;
+    }
+
+    /**
+     * Is the branch discarded if it jumps to the next action.
+     *
+     * @return true if the branch is optional.
+     */
+    public boolean isOptional() {
+        return optional;
+    }
+
+    /**
+     * Set whether the branch is discarded if it jumps to the next action.
+     *
+     * @param skip true if the branch is optional.
+     */
+    public void setOptional(final boolean skip) {
+        optional = skip;
+    }
+
+    /**
+     * Is the branch taken only if the value on the stack is true.
+     *
+     * @return true for an If action, false for a Jump.
+     */
+    public boolean isConditional() {
+        return type == ActionTypes.IF;
+    }
+
+    public Branch copy() {
+        return new Branch(type, target, optional);
+    }
+
+    @Override
+    public String toString() {
+        return (isConditional() ? "If" : "Jump") + ": { label="
+            + target.getIndex() + "}";
+    }
+
+    public int prepareToEncode(final Context context) {
+        return LENGTH;
+    }
+
+    public void encode(final SWFEncoder coder, final Context context)
+            throws IOException {
+        throw new IllegalStateException("Branch has not been resolved.");
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * CompileCache.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * CompileCache stores the encoded actions for compiled scripts in a directory
+ * so that unchanged scripts do not have to be compiled again in later builds.
+ *
+ * Entries are addressed by a hash of the script, the Profile, the character
+ * encoding and the version of the compiler. The contents of each file
+ * included by the script are recorded with the entry and checked before the
+ * entry is used, so changing a shared include invalidates all the scripts
+ * that use it.
+ *
+ * Entries are written to a temporary file which is then renamed, so several
+ * compilers, in the same or different processes, can share a directory. When
+ * the total size of the entries exceeds the limit the least recently used
+ * entries are deleted.
+ */
+public final class CompileCache {
+
+    /** Identifies the layout of the entries, written at the start of each. */
+    private static final int FORMAT = 0x41534301;
+    /** The extension used for the files that contain the entries. */
+    private static final String SUFFIX = ".actions";
+    /** Algorithm used to generate the keys and hash the included files. */
+    private static final String DIGEST = "SHA-1";
+    /** Size of the buffer used to read files. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /** Encoding used for the strings added to the keys. */
+    private static final String ENCODING = "UTF-8";
+
+    /** Version of the compiler, used to invalidate old entries. */
+    private static final String VERSION;
+
+    /*
+     * The version is read from the jar manifest. When the classes are not
+     * loaded from a jar, for example while the compiler is being developed,
+     * the time the class was built is used instead so entries written by an
+     * earlier build are not used.
+     */
+    static {
+        final Package pkg = CompileCache.class.getPackage();
+        String version = pkg == null ? null : pkg.getImplementationVersion();
+
+        if (version == null) {
+            final URL url = CompileCache.class.getResource(
+                    "CompileCache.class");
+            long modified = 0;
+
+            if (url != null) {
+                try {
+                    modified = url.openConnection().getLastModified();
+                } catch (IOException e) {
+                    modified = 0;
+                }
+            }
+            version = "development-" + modified;
+        }
+        VERSION = version;
+    }
+
+    private final transient File directory;
+    private final transient long maxSize;
+
+    /*
+     * An estimate of the total size of the entries. It is initialised by
+     * scanning the directory and updated as entries are added. Other
+     * processes may add entries too so the directory is scanned again
+     * before deciding which entries to delete.
+     */
+    private transient long size = -1;
+    private transient long hits;
+    private transient long misses;
+
+    /**
+     * Create a CompileCache.
+     *
+     * @param dir the directory where the entries are stored. It is created
+     * if it does not exist.
+     * @param limit the maximum number of bytes used by the entries.
+     */
+    public CompileCache(final File dir, final long limit) {
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IllegalArgumentException("Cannot create directory.");
+        } else if (!dir.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory.");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+        directory = dir;
+        maxSize = limit;
+    }
+
+    /**
+     * Get the directory where the entries are stored.
+     *
+     * @return the cache directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the maximum number of bytes used by the entries in the cache.
+     *
+     * @return the size limit of the cache.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the number of times a script did not need to be compiled.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of times a script was not found in the cache.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Delete all the entries in the cache.
+     */
+    public synchronized void clear() {
+        for (File file : entries()) {
+            file.delete();
+        }
+        size = 0;
+    }
+
+    /*
+     * key generates the name of the entry for a script compiled with a given
+     * profile, encoding and options. The options are any other settings on
+     * the compiler that change the code generated.
+     */
+    String key(final byte[] script, final Profile profile,
+            final String encoding, final String options) {
+        final MessageDigest digest = newDigest();
+        digest.update(script);
+        digest.update((byte) 0);
+        digest.update(bytesOf(profile.name()));
+        digest.update((byte) 0);
+        digest.update(bytesOf(encoding));
+        digest.update((byte) 0);
+        digest.update(bytesOf(VERSION));
+        digest.update((byte) 0);
+        digest.update(bytesOf(options));
+        return toHex(digest.digest());
+    }
+
+    private static byte[] bytesOf(final String value) {
+        try {
+            return value.getBytes(ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * get returns the encoded actions for a script or null if the script is
+     * not in the cache or any of the files it includes changed. The
+     * directories are searched, in order, to find the included files.
+     */
+    byte[] get(final String key, final List<String> directories) {
+        final File file = new File(directory, key + SUFFIX);
+        byte[] actions = null;
+
+        if (file.exists()) {
+            try {
+                actions = read(file, directories);
+            } catch (IOException e) {
+                actions = null;
+            }
+        }
+
+        synchronized (this) {
+            if (actions == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+
+        if (actions != null) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+        return actions;
+    }
+
+    /*
+     * put adds the encoded actions for a script to the cache along with the
+     * hashes of the files it includes.
+     */
+    void put(final String key, final Collection<String> includes,
+            final List<String> directories, final byte[] actions)
+            throws IOException {
+
+        final File tmp = File.createTempFile(key, ".tmp", directory);
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+
+        try {
+            out.writeInt(FORMAT);
+            out.writeInt(includes.size());
+
+            for (String include : includes) {
+                out.writeUTF(include);
+                writeBytes(out, hash(find(include, directories)));
+            }
+            writeBytes(out, actions);
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+
+        final File file = new File(directory, key + SUFFIX);
+        final long length = tmp.length();
+
+        /*
+         * On some platforms rename fails if the file exists. The output is
+         * deterministic so the entry written by another compiler is the
+         * same and the temporary file is simply discarded.
+         */
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+        }
+
+        boolean evict;
+
+        synchronized (this) {
+            if (size < 0) {
+                size = sizeOf(entries());
+            } else {
+                size += length;
+            }
+            evict = size > maxSize;
+        }
+
+        if (evict) {
+            evict();
+        }
+    }
+
+    /*
+     * evict deletes the least recently used entries until the total size is
+     * below the limit.
+     */
+    private synchronized void evict() {
+        final File[] files = entries();
+        long total = sizeOf(files);
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(final File file1, final File file2) {
+                final long diff = file1.lastModified() - file2.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (int i = 0; i < files.length && total > maxSize; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+        size = total;
+    }
+
+    private byte[] read(final File file, final List<String> directories)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT) {
+                return null;
+            }
+
+            final int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                final File include = find(in.readUTF(), directories);
+                final byte[] expected = readBytes(in);
+
+                if (include == null
+                        || !Arrays.equals(expected, hash(include))) {
+                    return null;
+                }
+            }
+            return readBytes(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private File[] entries() {
+        final File[] files = directory.listFiles();
+        int count = 0;
+
+        if (files == null) {
+            return new File[0];
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private long sizeOf(final File[] files) {
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    /*
+     * find searches the directories for an included file, in the same way
+     * as the compiler.
+     */
+    private File find(final String name, final List<String> directories) {
+        File file;
+        for (String path : directories) {
+            file = new File(path, name);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private byte[] hash(final File file) throws IOException {
+        if (file == null) {
+            return new byte[0];
+        }
+
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private void writeBytes(final DataOutputStream out, final byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private byte[] readBytes(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0x0F, 16));
+            builder.append(Character.forDigit(b & 0x0F, 16));
+        }
+        return builder.toString();
+    }
+}
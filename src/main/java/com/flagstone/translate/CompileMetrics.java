@@ -0,0 +1,336 @@
+/*
+ * CompileMetrics.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+
+/**
+ * CompileMetrics holds the measurements taken while a script is compiled.
+ * They are only collected when a CompileListener is set on the compiler.
+ *
+ * The memory allocated by each phase is measured using the extension to
+ * ThreadMXBean provided by HotSpot. On other JVMs the number of bytes
+ * allocated is reported as -1.
+ */
+public final class CompileMetrics {
+
+    /** The phases of the compiler that are measured. */
+    public enum Phase {
+        /** Parse the script. */
+        PARSE,
+        /** Find, parse or load from the cache the files included. */
+        INCLUDES,
+        /** Search the tree for strings and function definitions. */
+        SEARCH,
+        /** Reorder the tree so functions are defined first. */
+        REORDER,
+        /** Generate the actions. */
+        GENERATE,
+        /** Encode the actions and update the CompileCache, in compileTo(). */
+        ENCODE;
+    }
+
+    private static final Object BEAN;
+    private static final Method ALLOCATED;
+
+    static {
+        Object bean = null;
+        Method method = null;
+
+        try {
+            bean = ManagementFactory.getThreadMXBean();
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+            method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            method = null;
+        }
+        BEAN = bean;
+        ALLOCATED = method;
+    }
+
+    private final transient String path;
+    private final transient Profile profile;
+
+    private final transient long[] times = new long[Phase.values().length];
+    private final transient long[] bytes = new long[Phase.values().length];
+    private final transient int[] nodes = new int[NodeType.values().length];
+
+    private transient boolean cached;
+    private transient int actions;
+    private transient int length;
+    private transient int strings;
+    private transient int references;
+    private transient int includes;
+    private transient int includeHits;
+    private transient int includeMisses;
+
+    private transient long markTime;
+    private transient long markBytes;
+
+    CompileMetrics(final String file, final Profile current) {
+        path = file;
+        profile = current;
+    }
+
+    /**
+     * Get the path of the file compiled.
+     *
+     * @return the path or an empty string if the script was read from a
+     * stream.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Get the Profile used to compile the script.
+     *
+     * @return the Profile.
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Get the time taken by a phase.
+     *
+     * @param phase the phase of the compiler.
+     *
+     * @return the time in nanoseconds, zero if the phase was not run.
+     */
+    public long getTime(final Phase phase) {
+        return times[phase.ordinal()];
+    }
+
+    /**
+     * Get the total time taken to compile the script.
+     *
+     * @return the sum of the times for each phase, in nanoseconds.
+     */
+    public long getTotalTime() {
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of bytes allocated by a phase.
+     *
+     * @param phase the phase of the compiler.
+     *
+     * @return the number of bytes allocated or -1 if the JVM does not
+     * support measuring the memory allocated.
+     */
+    public long getAllocated(final Phase phase) {
+        return ALLOCATED == null ? -1 : bytes[phase.ordinal()];
+    }
+
+    /**
+     * Get the number of nodes of a given type in the parsed script and the
+     * files it includes.
+     *
+     * @param type the type of node.
+     *
+     * @return the number of nodes of that type.
+     */
+    public int getNodeCount(final NodeType type) {
+        return nodes[type.ordinal()];
+    }
+
+    /**
+     * Get the total number of nodes in the parsed script and the files it
+     * includes.
+     *
+     * @return the number of nodes.
+     */
+    public int getNodeCount() {
+        int total = 0;
+        for (int count : nodes) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Indicates whether the encoded actions were read from the CompileCache
+     * rather than compiling the script. If so only the length is set.
+     *
+     * @return true if the compile cache was used.
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
+    /**
+     * Get the number of actions generated. Actions such as functions that
+     * contain other actions are counted once.
+     *
+     * @return the number of actions.
+     */
+    public int getActionCount() {
+        return actions;
+    }
+
+    /**
+     * Get the number of bytes in the encoded actions.
+     *
+     * @return the length of the encoded actions.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get the number of entries in the table of strings.
+     *
+     * @return the number of strings in the table, zero if the table is not
+     * used.
+     */
+    public int getStrings() {
+        return strings;
+    }
+
+    /**
+     * Get the number of times strings are referenced from the table rather
+     * than being pushed directly.
+     *
+     * @return the number of references to entries in the table.
+     */
+    public int getStringReferences() {
+        return references;
+    }
+
+    /**
+     * Get the number of files included by the script.
+     *
+     * @return the number of included files.
+     */
+    public int getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Get the number of included files that were found in the ScriptCache.
+     *
+     * @return the number of cache hits.
+     */
+    public int getIncludeHits() {
+        return includeHits;
+    }
+
+    /**
+     * Get the number of included files that were parsed and added to the
+     * ScriptCache.
+     *
+     * @return the number of cache misses.
+     */
+    public int getIncludeMisses() {
+        return includeMisses;
+    }
+
+    /*
+     * mark records the current time and memory allocated as the start of
+     * the next phase.
+     */
+    void mark() {
+        markTime = System.nanoTime();
+        markBytes = allocated();
+    }
+
+    /*
+     * lap adds the time and memory used since the mark to a phase then moves
+     * the mark to the current time.
+     */
+    void lap(final Phase phase) {
+        final long time = System.nanoTime();
+        final long allocated = allocated();
+
+        times[phase.ordinal()] += time - markTime;
+        bytes[phase.ordinal()] += allocated - markBytes;
+        markTime = time;
+        markBytes = allocated;
+    }
+
+    /*
+     * count adds the nodes in a tree to the counts for each type.
+     */
+    void count(final Node node) {
+        final int count = node.count();
+
+        nodes[node.getType().ordinal()]++;
+
+        for (int i = 0; i < count; i++) {
+            count(node.get(i));
+        }
+    }
+
+    void generated(final List<Action> list, final Context context) {
+        actions = list.size();
+
+        if (context.useStrings) {
+            strings = context.strings.size();
+            references = context.getReferences();
+        }
+    }
+
+    void setLength(final int size) {
+        length = size;
+    }
+
+    void setCached() {
+        cached = true;
+    }
+
+    void included(final int hits, final int misses) {
+        includes++;
+        includeHits += hits;
+        includeMisses += misses;
+    }
+
+    private static long allocated() {
+        if (ALLOCATED == null) {
+            return 0;
+        }
+        try {
+            return (Long) ALLOCATED.invoke(BEAN,
+                    Thread.currentThread().getId());
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
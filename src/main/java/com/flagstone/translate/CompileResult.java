@@ -0,0 +1,98 @@
+/*
+ * CompileResult.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+
+/**
+ * CompileResult contains the actions generated for a file, when several files
+ * are compiled at the same time, along with any errors that were reported.
+ */
+public final class CompileResult {
+
+	private final transient File file;
+	private final transient List<Action> actions;
+	private final transient List<ScriptError> errors;
+
+	/**
+	 * Create a CompileResult.
+	 *
+	 * @param source the file that was compiled.
+	 * @param list the actions generated for the script.
+	 * @param problems the errors reported while compiling the script.
+	 */
+	public CompileResult(final File source, final List<Action> list,
+			final List<ScriptError> problems) {
+		file = source;
+		actions = list;
+		errors = new ArrayList<ScriptError>(problems);
+	}
+
+	/**
+	 * Get the file that was compiled.
+	 *
+	 * @return the file containing the script.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the actions that the script compiled to.
+	 *
+	 * @return the list of actions. The list is empty if errors were found.
+	 */
+	public List<Action> getActions() {
+		return actions;
+	}
+
+	/**
+	 * Get the errors reported while compiling the script.
+	 *
+	 * @return a copy of the list of errors.
+	 */
+	public List<ScriptError> getErrors() {
+		return new ArrayList<ScriptError>(errors);
+	}
+
+	/**
+	 * Were any errors found when compiling the script.
+	 *
+	 * @return true if the script compiled successfully, false otherwise.
+	 */
+	public boolean isSuccess() {
+		return errors.isEmpty();
+	}
+}
@@ -1,9 +1,29 @@
 package com.flagstone.translate;
 
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
+import com.flagstone.translate.optimizer.Optimizer;
+
 public final class Context {
+    /*
+     * The maximum number of strings in the table. Entries are referenced
+     * using a 16-bit index.
+     */
+    public static final int MAX_STRINGS = 65535;
+    /*
+     * The maximum length in bytes of an encoded action. This limits the
+     * total length of the strings in the table.
+     */
+    private static final int MAX_LENGTH = 65535;
+
     /*
      * The stack used to track nodes where function definitions are
      * inserted.
@@ -17,14 +37,98 @@ public final class Context {
     public ArrayList<String> strings = new ArrayList<String>(256);
     public boolean useStrings = false;
 
+    /*
+     * The index of each string in the table so strings can be found without
+     * searching the list. The length is the number of bytes the table will
+     * occupy when it is encoded.
+     */
+    private final Map<String, Integer> indices = new HashMap<String, Integer>();
+    private int length = 2;
+
+    /*
+     * The number of times each string is referenced, in the order the
+     * strings were first found. Strings are counted even when the table is
+     * full so the table can be rebuilt using the most frequent strings.
+     */
+    private final Map<String, int[]> references = new LinkedHashMap<String, int[]>();
+
     /*
      * The context stack used to support conditional generation of actions.
      */
     public Stack<String> context = new Stack<String>();
 
+    /*
+     * The entries on the context stack that change how identifiers are
+     * compiled. The number of each on the stack is counted as entries are
+     * pushed and popped so checking whether a node is nested inside one does
+     * not require searching the stack.
+     */
+    public enum Scope {
+        GET_PROPERTY("getProperty"),
+        SET_PROPERTY("setProperty"),
+        WITH("with"),
+        DEFINE_OBJECT("DefineObject");
+
+        private final String name;
+
+        private Scope(final String str) {
+            name = str;
+        }
+    }
+
+    private static final Map<String, Scope> SCOPES = new HashMap<String, Scope>();
+
+    static {
+        for (Scope scope : Scope.values()) {
+            SCOPES.put(scope.name, scope);
+        }
+    }
+
+    private final int[] scopes = new int[SCOPES.size()];
+
+    /*
+     * The stacks of labels that break and continue statements jump to in the
+     * enclosing loop or switch statement. A null entry is pushed when
+     * generating the actions for a function, with statement, etc. so the
+     * targets do not extend into the nested block.
+     */
+    public Stack<Label> breaks = new Stack<Label>();
+    public Stack<Label> continues = new Stack<Label>();
+
     public String encoding;
     public int version;
 
+    /*
+     * The Optimizer, if any, that is run on each block of actions before the
+     * offsets for jumps are calculated.
+     */
+    public Optimizer optimizer;
+
+    /*
+     * Evaluate comparisons, unary operators, string operations and calls to
+     * the pure functions of the Math class when the arguments are literals.
+     */
+    public boolean foldConstants;
+
+    /*
+     * Define functions using DefineFunction2, when generating code for
+     * Flash 7 or later, so arguments and local variables use registers.
+     */
+    public boolean registerFunctions;
+
+    /*
+     * Rank the strings in the table by the number of times they are
+     * referenced once the nodes have been reordered.
+     */
+    public boolean rankStrings;
+
+    /*
+     * The registers allocated to the arguments and local variables of the
+     * function being generated, mapped by name. The map is empty outside of
+     * functions or if the function is defined using NewFunction.
+     */
+    public Map<String, Integer> registers = new HashMap<String, Integer>();
+
     public Context(final String encoding, final int version) {
     	super();
     	this.encoding = encoding;
@@ -32,17 +136,163 @@ public final class Context {
     }
 
     /*
-     * Adds a string to the table if it has not been added previously. Only
-     * the first 256 strings are stored in the table. This should rarely be
-     * a limitation however.
+     * Pushes the type of a node, or the name of the function called, on the
+     * context stack.
+     */
+    public void enter(final String name) {
+        context.push(name);
+
+        Scope scope = SCOPES.get(name);
+
+        if (scope != null)
+            scopes[scope.ordinal()]++;
+    }
+
+    /*
+     * Pops the entry pushed for the node being left from the context stack.
+     */
+    public void leave() {
+        Scope scope = SCOPES.get(context.pop());
+
+        if (scope != null)
+            scopes[scope.ordinal()]--;
+    }
+
+    /*
+     * Returns true if the node being compiled is nested inside a node which
+     * pushed the name for the scope on the context stack.
+     */
+    public boolean isWithin(final Scope scope) {
+        return scopes[scope.ordinal()] > 0;
+    }
+
+    /*
+     * Adds a string to the table if it has not been added previously. Strings
+     * are added until the table contains MAX_STRINGS entries or the encoded
+     * table would be too large to fit in a single action.
      * @param str a string representing a string literal, identifier, the
      * name of a property or function.
      */
     public void addString(String str) {
-        if (strings.contains(str))
+        int[] count = references.get(str);
+
+        if (count == null)
+            references.put(str, new int[] {1});
+        else
+            count[0]++;
+
+        if (indices.containsKey(str))
             useStrings = true;
-        else if (strings.size() < 256) {
-            strings.add(str);
+        else if (strings.size() < MAX_STRINGS) {
+            int size = sizeOf(str);
+
+            if (length + size <= MAX_LENGTH) {
+                indices.put(str, strings.size());
+                strings.add(str);
+                length += size;
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the table so the most frequently referenced strings have the
+     * lowest indices, which are encoded using a single byte. Strings are only
+     * added if referencing them from the table is smaller than pushing the
+     * string each time it is used, so strings used once are not added.
+     * Strings referenced the same number of times stay in the order they
+     * were found.
+     */
+    public void rankStrings() {
+        List<Map.Entry<String, int[]>> entries =
+            new ArrayList<Map.Entry<String, int[]>>(references.entrySet());
+
+        Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+            public int compare(final Map.Entry<String, int[]> first,
+                    final Map.Entry<String, int[]> second) {
+                return second.getValue()[0] - first.getValue()[0];
+            }
+        });
+
+        strings.clear();
+        indices.clear();
+        length = 2;
+
+        String str;
+        int uses;
+        int size;
+        int saved;
+
+        for (Map.Entry<String, int[]> entry : entries) {
+            if (strings.size() == MAX_STRINGS)
+                break;
+
+            str = entry.getKey();
+            uses = entry.getValue()[0];
+            size = sizeOf(str);
+
+            /*
+             * A pushed string is encoded with a type byte, the characters and
+             * a terminating null. An index into the table is encoded with a
+             * type byte and one or two bytes for the index.
+             */
+            saved = uses * (size + 1 - (strings.size() < 256 ? 2 : 3)) - size;
+
+            if (saved > 0 && length + size <= MAX_LENGTH) {
+                indices.put(str, strings.size());
+                strings.add(str);
+                length += size;
+            }
+        }
+        useStrings = !strings.isEmpty();
+    }
+
+    /*
+     * Returns the index of a string in the table or -1 if the table does
+     * not contain the string.
+     */
+    public int indexOf(Object str) {
+        Integer index = indices.get(str);
+        return index == null ? -1 : index.intValue();
+    }
+
+    /*
+     * Returns the number of times the strings in the table are referenced.
+     */
+    public int getReferences() {
+        int total = 0;
+        int[] count;
+
+        for (String str : strings) {
+            count = references.get(str);
+            if (count != null)
+                total += count[0];
+        }
+        return total;
+    }
+
+    /*
+     * Replaces the string at the specified position in the table.
+     */
+    public void setString(int index, String str) {
+        String previous = strings.set(index, str);
+        Integer current = indices.get(previous);
+
+        if (current != null && current.intValue() == index)
+            indices.remove(previous);
+
+        length += sizeOf(str) - sizeOf(previous);
+        indices.put(str, index);
+    }
+
+    /*
+     * The number of bytes used to encode a string in the table, using the
+     * character encoding set for the script, including the terminating null.
+     */
+    private int sizeOf(String str) {
+        try {
+            return str.getBytes(encoding).length + 1;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
     }
 
@@ -53,6 +303,9 @@ public final class Context {
      */
     void clearStrings() {
         strings.clear();
+        indices.clear();
+        references.clear();
+        length = 2;
         useStrings = false;
     }
 }
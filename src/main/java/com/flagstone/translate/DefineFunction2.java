@@ -0,0 +1,225 @@
+/*
+ * DefineFunction2.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.ActionTypes;
+import com.flagstone.transform.coder.Context;
+import com.flagstone.transform.coder.SWFEncoder;
+
+/**
+ * DefineFunction2 defines a function that stores its arguments and local
+ * variables in registers rather than accessing them by name, supported from
+ * Flash 7 onwards.
+ *
+ * The compiler uses this action rather than NewFunction2 from Transform since
+ * the flags that control which of the variables this, arguments, super, _root,
+ * _parent and _global are created or loaded into registers must be encoded in
+ * the order given in the Flash file format specification.
+ */
+public final class DefineFunction2 implements Action {
+
+    /** Load _parent into a register. */
+    public static final int PRELOAD_PARENT = 0x8000;
+    /** Load _root into a register. */
+    public static final int PRELOAD_ROOT = 0x4000;
+    /** Do not create the super variable. */
+    public static final int SUPPRESS_SUPER = 0x2000;
+    /** Load super into a register. */
+    public static final int PRELOAD_SUPER = 0x1000;
+    /** Do not create the arguments variable. */
+    public static final int SUPPRESS_ARGUMENTS = 0x0800;
+    /** Load arguments into a register. */
+    public static final int PRELOAD_ARGUMENTS = 0x0400;
+    /** Do not create the this variable. */
+    public static final int SUPPRESS_THIS = 0x0200;
+    /** Load this into a register. */
+    public static final int PRELOAD_THIS = 0x0100;
+    /** Load _global into a register. */
+    public static final int PRELOAD_GLOBAL = 0x0001;
+
+    /** The number of bytes used to encode the header and length. */
+    private static final int HEADER = 3;
+
+    private final String name;
+    private final int registerCount;
+    private final int flags;
+    private final List<String> arguments;
+    private final List<Integer> registers;
+    private final List<Action> actions;
+
+    private transient int length;
+    private transient int actionsLength;
+
+    /**
+     * Create a DefineFunction2.
+     *
+     * @param functionName the name of the function or an empty string if the
+     * function is anonymous.
+     * @param count the number of registers used by the function.
+     * @param optimizations the flags that control how the variables this,
+     * arguments, super, _root, _parent and _global are created.
+     * @param args the names of the arguments, in order. A name may appear
+     * more than once.
+     * @param argRegisters the register each argument is stored in, or zero
+     * if the argument is accessed by name.
+     * @param list the actions that make up the body of the function.
+     */
+    public DefineFunction2(final String functionName, final int count,
+            final int optimizations, final List<String> args,
+            final List<Integer> argRegisters, final List<Action> list) {
+        if (args.size() != argRegisters.size()) {
+            throw new IllegalArgumentException(
+                    "Each argument must have a register.");
+        }
+        name = functionName;
+        registerCount = count;
+        flags = optimizations;
+        arguments = new ArrayList<String>(args);
+        registers = new ArrayList<Integer>(argRegisters);
+        actions = new ArrayList<Action>(list);
+    }
+
+    /**
+     * Get the name of the function.
+     *
+     * @return the function name, an empty string if the function is anonymous.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the number of registers used by the function.
+     *
+     * @return the number of registers allocated.
+     */
+    public int getRegisterCount() {
+        return registerCount;
+    }
+
+    /**
+     * Get the flags that control how the variables such as this and arguments
+     * are created.
+     *
+     * @return the PRELOAD and SUPPRESS flags or'ed together.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Get the names of the arguments.
+     *
+     * @return a copy of the names of the arguments, in order.
+     */
+    public List<String> getArguments() {
+        return new ArrayList<String>(arguments);
+    }
+
+    /**
+     * Get the registers the arguments are stored in.
+     *
+     * @return a copy of the registers, in the same order as the arguments,
+     * where zero means the argument is accessed by name.
+     */
+    public List<Integer> getArgumentRegisters() {
+        return new ArrayList<Integer>(registers);
+    }
+
+    /**
+     * Get the actions that make up the body of the function.
+     *
+     * @return a copy of the list of actions.
+     */
+    public List<Action> getActions() {
+        return new ArrayList<Action>(actions);
+    }
+
+    public DefineFunction2 copy() {
+        final List<Action> list = new ArrayList<Action>(actions.size());
+
+        for (Action action : actions) {
+            list.add(action.copy());
+        }
+        return new DefineFunction2(name, registerCount, flags, arguments,
+                registers, list);
+    }
+
+    @Override
+    public String toString() {
+        return "DefineFunction2: { name=" + name + "; registerCount="
+            + registerCount + "; flags=" + Integer.toHexString(flags)
+            + "; arguments=" + arguments + "; registers=" + registers
+            + "; actions=" + actions + "}";
+    }
+
+    public int prepareToEncode(final Context context) {
+        length = context.strlen(name) + 7;
+
+        for (String argument : arguments) {
+            length += context.strlen(argument) + 1;
+        }
+
+        actionsLength = 0;
+
+        for (Action action : actions) {
+            actionsLength += action.prepareToEncode(context);
+        }
+        return HEADER + length + actionsLength;
+    }
+
+    public void encode(final SWFEncoder coder, final Context context)
+            throws IOException {
+        coder.writeByte(ActionTypes.NEW_FUNCTION_2);
+        coder.writeShort(length);
+        coder.writeString(name);
+        coder.writeShort(arguments.size());
+        coder.writeByte(registerCount);
+        coder.writeByte(flags >>> 8);
+        coder.writeByte(flags);
+
+        for (int i = 0; i < arguments.size(); i++) {
+            coder.writeByte(registers.get(i));
+            coder.writeString(arguments.get(i));
+        }
+
+        coder.writeShort(actionsLength);
+
+        for (Action action : actions) {
+            action.encode(coder, context);
+        }
+    }
+}
@@ -81,4 +81,14 @@ public class EventNode extends Node {
 	public void setKey(int code) {
 		key = code;
 	}
+
+	@Override
+	public Node copy() {
+		EventNode node = new EventNode(getType());
+		node.setValue(getValue());
+		node.events.addAll(events);
+		node.key = key;
+		copyTo(node);
+		return node;
+	}
 }
@@ -0,0 +1,340 @@
+/*
+ * FlatTree.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FlatTree stores a parsed script in a set of arrays rather than as a tree of
+ * Node objects. Very large scripts, for example ones generated from data,
+ * can contain millions of nodes. Keeping them as objects costs a large amount
+ * of memory and adds to the work of the garbage collector when the trees are
+ * held for a long time, as they are in a ScriptCache.
+ *
+ * The nodes are stored in the order they are visited in a depth-first walk of
+ * the tree, so the first child of a node immediately follows it and a subtree
+ * occupies a contiguous range of indices. For each node the tree records the
+ * type, an index into a table of the distinct values, the index of the parent
+ * and the index that follows the last node in its subtree, so a walk over the
+ * children or the whole tree is a linear scan of the arrays:
+ *
+ * <pre>
+ * for (int child = tree.firstChild(index); child != FlatTree.NONE;
+ *         child = tree.nextSibling(child)) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * A FlatTree cannot be changed. The code generators reorder and rewrite the
+ * nodes they compile so toNode() is used to create a tree of Nodes when a
+ * script is compiled.
+ */
+public final class FlatTree {
+
+    /** Index returned when a node does not have a parent, child or sibling. */
+    public static final int NONE = -1;
+
+    private static final NodeType[] TYPES = NodeType.values();
+
+    private final byte[] types;
+    private final int[] values;
+    private final int[] parents;
+    private final int[] ends;
+    private final int[] bindings;
+    private final int[] insertIndices;
+    private final boolean[] discard;
+    private final String[] strings;
+    /*
+     * The event handlers defined for movie clips and buttons are rare so
+     * their attributes are kept in a map, indexed by node, rather than
+     * adding arrays for every node.
+     */
+    private final Map<Integer, EventNode> events;
+
+    /**
+     * Create a FlatTree containing a copy of a tree of nodes.
+     *
+     * @param root
+     *            the root of the tree.
+     * @return the tree stored in arrays.
+     */
+    public static FlatTree of(final Node root) {
+        return new FlatTree(root, size(root));
+    }
+
+    private static int size(final Node node) {
+        int total = 1;
+        final int count = node.count();
+
+        for (int i = 0; i < count; i++) {
+            total += size(node.get(i));
+        }
+        return total;
+    }
+
+    private FlatTree(final Node root, final int size) {
+        types = new byte[size];
+        values = new int[size];
+        parents = new int[size];
+        ends = new int[size];
+        bindings = new int[size];
+        insertIndices = new int[size];
+        discard = new boolean[size];
+        events = new HashMap<Integer, EventNode>();
+
+        final Map<String, Integer> table = new HashMap<String, Integer>();
+        flatten(root, NONE, 0, table);
+
+        strings = new String[table.size()];
+        for (Map.Entry<String, Integer> entry : table.entrySet()) {
+            strings[entry.getValue()] = entry.getKey();
+        }
+    }
+
+    /*
+     * flatten adds a node and its children to the arrays, starting at index,
+     * and returns the index of the next free entry.
+     */
+    private int flatten(final Node node, final int parent, final int index,
+            final Map<String, Integer> table) {
+        final String value = node.getValue();
+
+        types[index] = (byte) node.getType().ordinal();
+        parents[index] = parent;
+        bindings[index] = node.getBinding();
+        insertIndices[index] = node.insertIndex;
+        discard[index] = node.discardValue;
+
+        if (value == null) {
+            values[index] = NONE;
+        } else {
+            Integer id = table.get(value);
+            if (id == null) {
+                id = table.size();
+                table.put(value, id);
+            }
+            values[index] = id;
+        }
+
+        if (node instanceof EventNode) {
+            final EventNode source = (EventNode) node;
+            final EventNode attributes = new EventNode(source.getType());
+            attributes.getEvents().addAll(source.getEvents());
+            attributes.setKey(source.getKey());
+            events.put(index, attributes);
+        }
+
+        final int count = node.count();
+        int next = index + 1;
+
+        for (int i = 0; i < count; i++) {
+            next = flatten(node.get(i), index, next, table);
+        }
+        ends[index] = next;
+        return next;
+    }
+
+    /**
+     * Get the number of nodes in the tree.
+     *
+     * @return the number of nodes.
+     */
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * Get the type of a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the type of the node.
+     */
+    public NodeType getType(final int index) {
+        return TYPES[types[index]];
+    }
+
+    /**
+     * Get the value of a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the value of the node or null if it does not have one.
+     */
+    public String getValue(final int index) {
+        final int id = values[index];
+        return id == NONE ? null : strings[id];
+    }
+
+    /**
+     * Get the binding recorded for a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the binding or Node.UNBOUND if the value has not been resolved.
+     */
+    public int getBinding(final int index) {
+        return bindings[index];
+    }
+
+    /**
+     * Get the parent of a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the index of the parent or NONE for the root of the tree.
+     */
+    public int getParent(final int index) {
+        return parents[index];
+    }
+
+    /**
+     * Get the first child of a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the index of the first child or NONE if the node has no
+     *         children.
+     */
+    public int firstChild(final int index) {
+        return ends[index] > index + 1 ? index + 1 : NONE;
+    }
+
+    /**
+     * Get the node that follows a node in the list of its parent's children.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the index of the next child of the parent or NONE if this is
+     *         the last child.
+     */
+    public int nextSibling(final int index) {
+        final int parent = parents[index];
+        final int next = ends[index];
+        return parent != NONE && next < ends[parent] ? next : NONE;
+    }
+
+    /**
+     * Get the index following the last node in the subtree starting at a
+     * node. All the nodes in the range index + 1 to end - 1 are descendants
+     * of the node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the index following the subtree.
+     */
+    public int end(final int index) {
+        return ends[index];
+    }
+
+    /**
+     * Get the number of children of a node.
+     *
+     * @param index
+     *            the index of the node.
+     * @return the number of children.
+     */
+    public int count(final int index) {
+        int total = 0;
+        for (int child = firstChild(index); child != NONE;
+                child = nextSibling(child)) {
+            total++;
+        }
+        return total;
+    }
+
+    /**
+     * Create a tree of Nodes from the tree. A new tree is created each time
+     * the method is called so it can be changed by the caller.
+     *
+     * @return the root node of the tree.
+     */
+    public Node toNode() {
+        return types.length == 0 ? null : toNode(0);
+    }
+
+    /**
+     * Create a tree of Nodes for a subtree.
+     *
+     * @param index
+     *            the index of the root node of the subtree.
+     * @return a Node containing the subtree.
+     */
+    public Node toNode(final int index) {
+        return toNode(index, null, null);
+    }
+
+    /**
+     * Create a tree of Nodes from the tree and add the nodes of a given type
+     * to a list, in the order they appear in the script. This saves walking
+     * the new tree a second time to find nodes such as #include directives.
+     *
+     * @param type
+     *            the type of node to find.
+     * @param nodes
+     *            the list where the nodes found are added.
+     * @return the root node of the tree.
+     */
+    public Node toNode(final NodeType type, final List<Node> nodes) {
+        return types.length == 0 ? null : toNode(0, type, nodes);
+    }
+
+    private Node toNode(final int index, final NodeType type,
+            final List<Node> nodes) {
+        final EventNode attributes = events.get(index);
+        final Node node;
+
+        if (attributes == null) {
+            node = new Node(getType(index), getValue(index));
+        } else {
+            final EventNode event = new EventNode(getType(index));
+            event.setValue(getValue(index));
+            event.getEvents().addAll(attributes.getEvents());
+            event.setKey(attributes.getKey());
+            node = event;
+        }
+        node.setBinding(bindings[index]);
+        node.insertIndex = insertIndices[index];
+        node.discardValue = discard[index];
+
+        if (nodes != null && node.getType() == type) {
+            nodes.add(node);
+        }
+
+        for (int child = firstChild(index); child != NONE;
+                child = nextSibling(child)) {
+            node.add(toNode(child, type, nodes));
+        }
+        return node;
+    }
+}
@@ -31,15 +31,15 @@
 
 package com.flagstone.translate;
 
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.flagstone.translate.as1.AS1Generator;
 
 public final class GeneratorRegistry {
 
     private static Map<Integer, GeneratorProvider> providers =
-        new LinkedHashMap<Integer, GeneratorProvider>();
+        new ConcurrentHashMap<Integer, GeneratorProvider>();
 
     static {
     	providers.put(1, new AS1Generator());
@@ -51,8 +51,9 @@ public final class GeneratorRegistry {
     }
 
     public static Generator getGenerator(final int version) {
-        if (providers.containsKey(version)) {
-            return providers.get(version).newGenerator();
+        final GeneratorProvider provider = providers.get(version);
+        if (provider != null) {
+            return provider.newGenerator();
         } else {
             throw new IllegalArgumentException();
         }
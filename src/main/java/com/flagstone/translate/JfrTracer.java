@@ -0,0 +1,173 @@
+/*
+ * JfrTracer.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import com.flagstone.translate.CompileMetrics.Phase;
+
+/**
+ * JfrTracer records the work done by the compiler as Java Flight Recorder
+ * events so it can be examined in Java Mission Control alongside the GC and
+ * thread activity. The events are only created when they are enabled in the
+ * current recording.
+ *
+ * This class is loaded by name so the compiler still runs on JVMs that do not
+ * support Flight Recorder.
+ */
+final class JfrTracer extends Tracer {
+
+    /** Category used to group the events in Mission Control. */
+    private static final String CATEGORY = "Translate";
+
+    @Name("com.flagstone.translate.Compile")
+    @Label("Compile")
+    @Category(CATEGORY)
+    @Description("A script compiled by ASCompiler")
+    static final class CompileEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Profile")
+        String profile;
+
+        @Label("Bytes In")
+        @DataAmount
+        long bytesIn;
+
+        @Label("Bytes Out")
+        @DataAmount
+        long bytesOut;
+    }
+
+    @Name("com.flagstone.translate.Phase")
+    @Label("Compiler Phase")
+    @Category(CATEGORY)
+    @Description("A phase of the compiler, recorded within a Compile event")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("com.flagstone.translate.Include")
+    @Label("Include")
+    @Category(CATEGORY)
+    @Description("A file included by a script")
+    static final class IncludeEvent extends Event {
+        @Label("Path")
+        String path;
+    }
+
+    private static final EventType COMPILE =
+        EventType.getEventType(CompileEvent.class);
+    private static final EventType PHASE =
+        EventType.getEventType(PhaseEvent.class);
+    private static final EventType INCLUDE =
+        EventType.getEventType(IncludeEvent.class);
+
+    @Override
+    Object beginCompile() {
+        if (!COMPILE.isEnabled()) {
+            return null;
+        }
+        final CompileEvent event = new CompileEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endCompile(final Object event, final String path,
+            final Profile profile, final long bytesIn, final long bytesOut) {
+        if (event != null) {
+            final CompileEvent compile = (CompileEvent) event;
+            compile.end();
+            if (compile.shouldCommit()) {
+                compile.path = path;
+                compile.profile = profile.name();
+                compile.bytesIn = bytesIn;
+                compile.bytesOut = bytesOut;
+                compile.commit();
+            }
+        }
+    }
+
+    @Override
+    Object beginPhase() {
+        if (!PHASE.isEnabled()) {
+            return null;
+        }
+        final PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endPhase(final Object event, final Phase phase) {
+        if (event != null) {
+            final PhaseEvent step = (PhaseEvent) event;
+            step.end();
+            if (step.shouldCommit()) {
+                step.phase = phase.name();
+                step.commit();
+            }
+        }
+    }
+
+    @Override
+    Object beginInclude() {
+        if (!INCLUDE.isEnabled()) {
+            return null;
+        }
+        final IncludeEvent event = new IncludeEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endInclude(final Object event, final String path) {
+        if (event != null) {
+            final IncludeEvent include = (IncludeEvent) event;
+            include.end();
+            if (include.shouldCommit()) {
+                include.path = path;
+                include.commit();
+            }
+        }
+    }
+}
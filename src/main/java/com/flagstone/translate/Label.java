@@ -0,0 +1,73 @@
+/*
+ * Label.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+/**
+ * Label marks a position in a list of actions that a jump or branch can
+ * target. Labels are bound to the index of the next action to be generated
+ * so the offsets to each target can be calculated once, after all the actions
+ * for a block of code have been generated, rather than each time a control
+ * structure is compiled.
+ */
+public final class Label {
+
+    /** The index of the action that follows the label, -1 if unbound. */
+    private int index = -1;
+
+    /**
+     * Get the index in the list of actions where the label is bound.
+     *
+     * @return the index of the action that immediately follows the label or
+     * -1 if the label has not been bound.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Bind the label to a position in a list of actions.
+     *
+     * @param position the index of the next action that will be added to the
+     * list, typically the size of the list.
+     */
+    public void bind(final int position) {
+        index = position;
+    }
+
+    /**
+     * Has the label been bound to a position in a list of actions.
+     *
+     * @return true if the label has been bound, false otherwise.
+     */
+    public boolean isBound() {
+        return index >= 0;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * MetricsAggregator.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.util.Arrays;
+
+import com.flagstone.translate.CompileMetrics.Phase;
+
+/**
+ * MetricsAggregator is a CompileListener that collects the metrics for a
+ * batch of scripts so the distribution of the time taken and the memory
+ * allocated by each phase of the compiler can be reported.
+ *
+ * <pre>
+ * MetricsAggregator metrics = new MetricsAggregator();
+ * compiler.setCompileListener(metrics);
+ * compiler.compileAll(files);
+ * System.out.println(metrics.summary());
+ * </pre>
+ *
+ * An aggregator may be shared by several compilers and used with the
+ * compileAll() methods.
+ */
+public final class MetricsAggregator implements CompileListener {
+
+    /** The percentiles shown in the summary. */
+    private static final double[] PERCENTILES = {50, 90, 99, 100};
+    /** Nanoseconds in a millisecond. */
+    private static final double MILLIS = 1000000.0;
+    /** Bytes in a kilobyte. */
+    private static final double KILOBYTES = 1024.0;
+
+    /*
+     * Samples holds the values recorded for one measurement in the order
+     * they were added.
+     */
+    private static final class Samples {
+        private long[] values = new long[16];
+        private int count;
+
+        void add(final long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                total += values[i];
+            }
+            return total;
+        }
+
+        long percentile(final double percent) {
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percent / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(index, count - 1))];
+        }
+    }
+
+    private final transient Samples[] times;
+    private final transient Samples[] bytes;
+    private final transient Samples totals;
+
+    private transient int compiled;
+    private transient int cached;
+    private transient long nodes;
+    private transient long actions;
+    private transient long length;
+    private transient long strings;
+    private transient long references;
+    private transient long includes;
+    private transient long includeHits;
+    private transient long includeMisses;
+
+    /**
+     * Create a MetricsAggregator with no samples.
+     */
+    public MetricsAggregator() {
+        times = new Samples[Phase.values().length];
+        bytes = new Samples[Phase.values().length];
+        totals = new Samples();
+
+        for (int i = 0; i < times.length; i++) {
+            times[i] = new Samples();
+            bytes[i] = new Samples();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void compiled(final CompileMetrics metrics) {
+        compiled++;
+        length += metrics.getLength();
+
+        if (metrics.isCached()) {
+            cached++;
+            return;
+        }
+
+        for (Phase phase : Phase.values()) {
+            times[phase.ordinal()].add(metrics.getTime(phase));
+            bytes[phase.ordinal()].add(metrics.getAllocated(phase));
+        }
+        totals.add(metrics.getTotalTime());
+
+        nodes += metrics.getNodeCount();
+        actions += metrics.getActionCount();
+        strings += metrics.getStrings();
+        references += metrics.getStringReferences();
+        includes += metrics.getIncludes();
+        includeHits += metrics.getIncludeHits();
+        includeMisses += metrics.getIncludeMisses();
+    }
+
+    /**
+     * Get the number of scripts compiled, including those read from the
+     * CompileCache.
+     *
+     * @return the number of scripts.
+     */
+    public synchronized int getCount() {
+        return compiled;
+    }
+
+    /**
+     * Get the number of scripts where the encoded actions were read from the
+     * CompileCache. These are not included in the times for each phase.
+     *
+     * @return the number of scripts not compiled.
+     */
+    public synchronized int getCached() {
+        return cached;
+    }
+
+    /**
+     * Get the time taken by a phase for a given percentile of the scripts
+     * compiled.
+     *
+     * @param phase the phase of the compiler.
+     * @param percent the percentile, from 0 to 100.
+     *
+     * @return the time in nanoseconds.
+     */
+    public synchronized long getTime(final Phase phase, final double percent) {
+        return times[phase.ordinal()].percentile(percent);
+    }
+
+    /**
+     * Get the total time taken to compile a script for a given percentile of
+     * the scripts compiled.
+     *
+     * @param percent the percentile, from 0 to 100.
+     *
+     * @return the time in nanoseconds.
+     */
+    public synchronized long getTotalTime(final double percent) {
+        return totals.percentile(percent);
+    }
+
+    /**
+     * Get the memory allocated by a phase for a given percentile of the
+     * scripts compiled.
+     *
+     * @param phase the phase of the compiler.
+     * @param percent the percentile, from 0 to 100.
+     *
+     * @return the number of bytes or -1 if the JVM does not support measuring
+     * the memory allocated.
+     */
+    public synchronized long getAllocated(final Phase phase,
+            final double percent) {
+        return bytes[phase.ordinal()].percentile(percent);
+    }
+
+    /**
+     * Remove all the samples.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < times.length; i++) {
+            times[i] = new Samples();
+            bytes[i] = new Samples();
+        }
+        totals.count = 0;
+        compiled = 0;
+        cached = 0;
+        nodes = 0;
+        actions = 0;
+        length = 0;
+        strings = 0;
+        references = 0;
+        includes = 0;
+        includeHits = 0;
+        includeMisses = 0;
+    }
+
+    /**
+     * Generate a report showing the percentiles for the time taken and the
+     * memory allocated by each phase along with the totals for the scripts
+     * compiled.
+     *
+     * @return the summary as a multi-line string.
+     */
+    public synchronized String summary() {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format("Scripts: %d compiled, %d from cache%n",
+                compiled - cached, cached));
+
+        header(builder, "Time (ms)");
+        for (Phase phase : Phase.values()) {
+            row(builder, phase.name(), times[phase.ordinal()], MILLIS);
+        }
+        row(builder, "TOTAL", totals, MILLIS);
+
+        header(builder, "Allocated (KB)");
+        for (Phase phase : Phase.values()) {
+            row(builder, phase.name(), bytes[phase.ordinal()], KILOBYTES);
+        }
+
+        builder.append(String.format("Nodes: %d, Actions: %d, Bytes: %d%n",
+                nodes, actions, length));
+        builder.append(String.format("Strings: %d, References: %d%n",
+                strings, references));
+        builder.append(String.format(
+                "Includes: %d, Cache hits: %d, Cache misses: %d%n",
+                includes, includeHits, includeMisses));
+
+        return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    private void header(final StringBuilder builder, final String title) {
+        builder.append(String.format("%-16s", title));
+        for (double percent : PERCENTILES) {
+            builder.append(String.format("%10s", percent == 100 ? "max"
+                    : "p" + (int) percent));
+        }
+        builder.append(String.format("%12s%n", "total"));
+    }
+
+    private void row(final StringBuilder builder, final String name,
+            final Samples samples, final double scale) {
+        builder.append(String.format("%-16s", name));
+        for (double percent : PERCENTILES) {
+            builder.append(String.format("%10.2f",
+                    samples.percentile(percent) / scale));
+        }
+        builder.append(String.format("%12.2f%n", samples.total() / scale));
+    }
+}
@@ -30,16 +30,36 @@
  */
 package com.flagstone.translate;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
 public class Node {
 
+    /** Shared by all the nodes that have no children. */
+    private static final Node[] NO_CHILDREN = new Node[0];
+    /** The number of children allocated when the first child is added. */
+    private static final int INITIAL_CAPACITY = 2;
+
+    /*
+     * What the payload field contains: nothing, the binding set by the
+     * compiler, or the value of the node as an int or as a double.
+     */
+    private static final byte EMPTY = 0;
+    private static final byte BINDING = 1;
+    private static final byte INT = 2;
+    private static final byte DOUBLE = 3;
+
     private NodeType type;
     private String value;
     private Node parent;
-    private final List<Node> children;
+    /*
+     * The children are stored in an array rather than a list since most
+     * nodes have no more than two children and leaf nodes share an empty
+     * array. Only the first count entries are used.
+     */
+    private Node[] children = NO_CHILDREN;
+    private int count;
     public boolean discardValue;
 
     /*
@@ -52,15 +72,26 @@ public class Node {
      */
     public int insertIndex = 0;
 
+    /** Value of the binding for a node that has not been resolved. */
+    public static final int UNBOUND = -1;
+
+    /*
+     * The payload holds either the binding used by the compiler to record
+     * what the value of the node refers to, for example which built-in
+     * function is called, or the value of a numeric literal once it has been
+     * parsed. Either way names and numbers are only converted once. The
+     * payload is cleared whenever the value changes.
+     */
+    private long payload;
+    private byte contents = EMPTY;
+
     public Node(final NodeType nodeType) {
         type = nodeType;
-        children = new ArrayList<Node>();
     }
 
     public Node(final NodeType nodeType, final String val) {
         type = nodeType;
         value = val;
-        children = new ArrayList<Node>();
     }
 
     /**
@@ -87,58 +118,130 @@ public class Node {
 
     public void setValue(final String val) {
     	value = val;
+    	contents = EMPTY;
+    }
+
+    /**
+     * Get the binding the compiler recorded for the value of the node.
+     *
+     * @return the binding or UNBOUND if the value has not been resolved.
+     */
+    public int getBinding() {
+        return contents == BINDING ? (int) payload : UNBOUND;
+    }
+
+    /**
+     * Record what the value of the node refers to.
+     *
+     * @param id
+     *            the binding used by the compiler.
+     */
+    public void setBinding(final int id) {
+        if (id == UNBOUND) {
+            contents = EMPTY;
+        } else {
+            payload = id;
+            contents = BINDING;
+        }
+    }
+
+    /**
+     * Get the value of an integer literal, which may be written in decimal or
+     * in hexadecimal with the prefix 0x. The value is only parsed the first
+     * time it is used.
+     *
+     * @return the value of the node as an int.
+     * @throws NumberFormatException
+     *             if the value is not an integer.
+     */
+    public int intValue() {
+        if (contents != INT) {
+            if (value.length() > 1 && value.charAt(0) == '0'
+                    && (value.charAt(1) == 'x' || value.charAt(1) == 'X')) {
+                payload = Integer.parseInt(value.substring(2), 16);
+            } else {
+                payload = Integer.parseInt(value);
+            }
+            contents = INT;
+        }
+        return (int) payload;
+    }
+
+    /**
+     * Get the value of a floating-point literal. An exponent with no digits
+     * is treated as zero. The value is only parsed the first time it is used.
+     *
+     * @return the value of the node as a double.
+     * @throws NumberFormatException
+     *             if the value is not a number.
+     */
+    public double doubleValue() {
+        if (contents != DOUBLE) {
+            if (value.endsWith("e")) {
+                payload = Double.doubleToRawLongBits(
+                        Double.parseDouble(value + "0"));
+            } else {
+                payload = Double.doubleToRawLongBits(Double.parseDouble(value));
+            }
+            contents = DOUBLE;
+        }
+        return Double.longBitsToDouble(payload);
     }
 
     /**
      * Returns the node at the specified index from the array of child nodes. If
-     * the index is outside the range of the array then an ArrayIndexOutOfBounds
+     * the index is outside the range of the array then an IndexOutOfBounds
      * exception is thrown.
      *
      * @param index
      *            the index of the child node to return.
      * @return the ith node in the array of children.
-     * @throws ArrayIndexOutOfBoundsException
+     * @throws IndexOutOfBoundsException
      *             if (index < 0 || index >= length).
      */
     public Node get(int index) {
-        return children.get(index);
+        check(index, count);
+        return children[index];
     }
 
     /**
      * Replaces the node at position i in the array of children. If the position
      * is outside the range of the array (i< 0 || i >= length) then an
-     * ArrayIndexOutOfBoundsException is thrown.
+     * IndexOutOfBoundsException is thrown.
      *
      * @param i
      *            the index of the child node to replace.
-     * @param aNode
+     * @param node
      *            the node to replace the ith node.
-     * @throws ArrayIndexOutOfBoundsException
+     * @throws IndexOutOfBoundsException
      *             if (index < 0 || index >= length).
      */
     public void set(int i, Node node) {
-    	node.parent = this;
-        children.set(i, node);
+        check(i, count);
+        node.parent = this;
+        children[i] = node;
     }
 
     /**
      * Adds a node to the array of children. If the node is null then it is
      * ignored.
      *
-     * @param aNode
+     * @param node
      *            the node to be added.
      */
     public Node add(Node node) {
     	node.parent = this;
-        children.add(node);
+    	ensureCapacity(count + 1);
+        children[count++] = node;
         return this;
     }
 
     public Node addAll(List<Node> list) {
+    	ensureCapacity(count + list.size());
     	for (Node node : list) {
     		node.parent = this;
+    		children[count++] = node;
     	}
-        children.addAll(list);
         return this;
     }
 
@@ -147,19 +250,23 @@ public class Node {
      * array is increased by one and the nodes from the insertion point onwards
      * are moved to the right.
      *
-     * If the position is outside the range of the array (i< 0 || i >= length)
-     * then an ArrayIndexOutOfBoundsException is thrown.
+     * If the position is outside the range of the array (i< 0 || i > length)
+     * then an IndexOutOfBoundsException is thrown.
      *
      * @param index
      *            the index of the child node to replace.
      * @param aNode
      *            the node to replace the ith node.
-     * @throws ArrayIndexOutOfBoundsException
-     *             if (index < 0 || index >= length).
+     * @throws IndexOutOfBoundsException
+     *             if (index < 0 || index > length).
      */
     public void insert(int index, Node node) {
+        check(index, count + 1);
     	node.parent = this;
-        children.add(index, node);
+    	ensureCapacity(count + 1);
+    	System.arraycopy(children, index, children, index + 1, count - index);
+        children[index] = node;
+        count++;
     }
 
     /**
@@ -168,15 +275,18 @@ public class Node {
      * are moved to the left.
      *
      * If the position is outside the range of the array (i< 0 || i >= length)
-     * then an ArrayIndexOutOfBoundsException is thrown.
+     * then an IndexOutOfBoundsException is thrown.
      *
      * @param index
      *            the index of the child node to remove.
-     * @throws ArrayIndexOutOfBoundsException
+     * @throws IndexOutOfBoundsException
      *             if (index < 0 || index >= length).
      */
     public void remove(int index) {
-        Node node = children.remove(index);
+        check(index, count);
+        Node node = children[index];
+        System.arraycopy(children, index + 1, children, index, count - index - 1);
+        children[--count] = null;
         node.parent = null;
     }
 
@@ -190,8 +300,32 @@ public class Node {
         return parent;
     }
 
+    /**
+     * Get the child nodes. The list is a view of the children so changing
+     * an entry changes the node however it cannot be used to add or remove
+     * children and is no longer valid once children are added or removed.
+     *
+     * @return the children of the node.
+     */
     public List<Node> getChildren() {
-    	return children;
+    	return Arrays.asList(children).subList(0, count);
+    }
+
+    /**
+     * Get the position of a node in the array of children.
+     *
+     * @param node
+     *            a child node.
+     * @return the index of the node or -1 if the node is not a child of this
+     *         one.
+     */
+    public int indexOf(final Node node) {
+        for (int i = 0; i < count; i++) {
+            if (children[i] == node) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -200,17 +334,73 @@ public class Node {
      * @return the number of child nodes.
      */
     public int count() {
-        return children.size();
+        return count;
+    }
+
+    /**
+     * Make a deep copy of the node and all its children. The copy has no
+     * parent. Copies are used when a tree is shared, for example when a
+     * parsed script is cached, since reordering the nodes and generating code
+     * changes the types and values of the nodes.
+     *
+     * @return a copy of the node.
+     */
+    public Node copy() {
+        Node node = new Node(type, value);
+        copyTo(node);
+        return node;
+    }
+
+    /*
+     * Copy the attributes and children of this node to another node. This is
+     * used by sub-classes to copy the attributes defined in this class.
+     */
+    protected void copyTo(final Node node) {
+        node.discardValue = discardValue;
+        node.insertIndex = insertIndex;
+        node.payload = payload;
+        node.contents = contents;
+
+        if (count > 0) {
+            node.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                node.add(children[i].copy());
+            }
+        }
     }
 
     public void discardValues() {
         discardValue = true;
 
         if (type == NodeType.LIST || type == NodeType.STATEMENT_LIST) {
-            int count = count();
-
             for (int i = 0; i < count; i++)
-                children.get(i).discardValues();
+                children[i].discardValues();
+        }
+    }
+
+    /*
+     * Grow the array of children so it holds at least size nodes. The array
+     * grows by half its length to limit the space wasted in long lists such
+     * as the statements in a script.
+     */
+    private void ensureCapacity(final int size) {
+        if (size > children.length) {
+            int capacity = children.length + (children.length >> 1);
+
+            if (capacity < INITIAL_CAPACITY) {
+                capacity = INITIAL_CAPACITY;
+            }
+            if (capacity < size) {
+                capacity = size;
+            }
+            children = Arrays.copyOf(children, capacity);
+        }
+    }
+
+    private static void check(final int index, final int limit) {
+        if (index < 0 || index >= limit) {
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", Size: " + (limit));
         }
     }
 
@@ -223,14 +413,14 @@ public class Node {
     @Override
     public String toString() {
     	String str = null;
-    	if (value == null && children.isEmpty()) {
+    	if (value == null && count == 0) {
     		str = type.toString();
-    	} else if (value == null && !children.isEmpty()) {
-    		str = type.toString() + ": " + children.toString();
-    	} else if (value != null && children.isEmpty()) {
+    	} else if (value == null && count > 0) {
+    		str = type.toString() + ": " + getChildren().toString();
+    	} else if (value != null && count == 0) {
     		str = type.toString() + " = " + value + "; ";
     	} else {
-    		str = type.toString() + " = " + value + ": " + children.toString();
+    		str = type.toString() + " = " + value + ": " + getChildren().toString();
     	}
         return str;
     }
@@ -7,4 +7,9 @@ public interface Parser {
 	void setPath(final String path);
 	void setErrors(final List<ScriptError> list);
 	Node parse(final InputStream stream);
+	/**
+	 * Discard the path, error list and any other state from the last
+	 * compilation so the parser can be reused.
+	 */
+	void reset();
 }
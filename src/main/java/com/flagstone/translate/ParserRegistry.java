@@ -31,15 +31,16 @@
 
 package com.flagstone.translate;
 
-import java.util.LinkedHashMap;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.flagstone.translate.as1.AS1Parser;
 
 public final class ParserRegistry {
 
     private static Map<Integer, ParserProvider> providers =
-        new LinkedHashMap<Integer, ParserProvider>();
+        new ConcurrentHashMap<Integer, ParserProvider>();
 
     static {
     	providers.put(1, new AS1Parser());
@@ -48,16 +49,55 @@ public final class ParserRegistry {
     public static void registerProvider(final int version,
             final ParserProvider provider) {
         providers.put(version, provider);
-    }
-
+    }
+
+    /*
+     * Creating a parser allocates the buffers used by the lexer and the
+     * state used for lookahead so parsers are reused. Each thread keeps the
+     * parsers it released, indexed by the provider that created them, so a
+     * parser is never used by two threads at the same time.
+     */
+    private static final ThreadLocal<Map<ParserProvider, Parser>> idle =
+        new ThreadLocal<Map<ParserProvider, Parser>>() {
+            @Override
+            protected Map<ParserProvider, Parser> initialValue() {
+                return new HashMap<ParserProvider, Parser>();
+            }
+        };
+
+    /**
+     * Get a parser for a given version of ActionScript. A parser released
+     * by the current thread is returned if there is one, otherwise a new
+     * parser is created.
+     *
+     * @param version the version of ActionScript.
+     * @return a Parser that is only used by the caller until it is released.
+     */
     public static Parser getParser(final int version) {
-        if (providers.containsKey(version)) {
-            return providers.get(version).newParser();
+        final ParserProvider provider = providers.get(version);
+        if (provider != null) {
+            final Parser parser = idle.get().remove(provider);
+            return parser == null ? provider.newParser() : parser;
         } else {
             throw new IllegalArgumentException();
         }
     }
 
+    /**
+     * Return a parser obtained from getParser() once it is no longer used so
+     * it can be reused by the current thread.
+     *
+     * @param version the version of ActionScript passed to getParser().
+     * @param parser the parser.
+     */
+    public static void releaseParser(final int version, final Parser parser) {
+        final ParserProvider provider = providers.get(version);
+        if (provider != null) {
+            parser.reset();
+            idle.get().put(provider, parser);
+        }
+    }
+
     /** Private constructor for the image registry. */
     private ParserRegistry() {
         // Registry is shared.
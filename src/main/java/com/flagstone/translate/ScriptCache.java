@@ -0,0 +1,270 @@
+/*
+ * ScriptCache.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ScriptCache is used to keep the parsed trees for files that are included
+ * in scripts so shared library code is only parsed once rather than each time
+ * a script that includes it is compiled.
+ *
+ * Entries are indexed by the canonical path of the file. An entry is used if
+ * the file has the same modification time and length as when it was parsed.
+ * If either changed then the contents are compared using a hash so touching
+ * a file does not force it to be parsed again. When the cache is full the
+ * least recently used entry is discarded.
+ *
+ * The trees in the cache are never returned to the caller. Each lookup
+ * returns a copy since the nodes are changed as the code is generated.
+ * The trees are stored as FlatTrees so a cache holding large libraries
+ * does not keep millions of Node objects alive. A cache may be shared by
+ * several compilers running at the same time.
+ */
+public final class ScriptCache {
+
+    /** The default number of parsed files held in the cache. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** Algorithm used to generate the hash of the file contents. */
+    private static final String DIGEST = "MD5";
+
+    /*
+     * Entry holds the parsed tree for a file along with the information used
+     * to decide whether the file changed.
+     */
+    private static final class Entry {
+        private long modified;
+        private final long length;
+        private final byte[] hash;
+        private final FlatTree tree;
+
+        Entry(final long time, final long size, final byte[] digest,
+                final FlatTree root) {
+            modified = time;
+            length = size;
+            hash = digest;
+            tree = root;
+        }
+    }
+
+    private final transient int capacity;
+    private final transient Map<String, Entry> entries;
+
+    private transient long hits;
+    private transient long misses;
+
+    /**
+     * Create a ScriptCache that holds up to DEFAULT_CAPACITY files.
+     */
+    public ScriptCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a ScriptCache.
+     *
+     * @param size the maximum number of parsed files held in the cache.
+     */
+    public ScriptCache(final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        capacity = size;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the parsed tree for a file, parsing the file if it is not in the
+     * cache or if it changed since it was last parsed. The tree is only
+     * added to the cache if no errors were reported by the parser.
+     *
+     * @param file the file containing the script.
+     * @param parser the Parser used to parse the file.
+     * @param errors the list where the parser reports errors.
+     *
+     * @return a copy of the parsed tree that can be changed by the caller.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    public Node load(final File file, final Parser parser,
+            final List<ScriptError> errors) throws IOException {
+        return load(file, parser, errors, null, new ArrayList<Node>());
+    }
+
+    /*
+     * load gets the parsed tree for a file, recording whether the file was
+     * found in the cache in the metrics, if set. The #include directives in
+     * the tree are added to the list of includes as the copy is created so
+     * the compiler does not have to search the tree for them. Files that
+     * contain errors are not searched.
+     */
+    Node load(final File file, final Parser parser,
+            final List<ScriptError> errors, final CompileMetrics metrics,
+            final List<Node> includes) throws IOException {
+
+        final String key = file.getCanonicalPath();
+        final long modified = file.lastModified();
+        final long length = file.length();
+
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.modified == modified
+                    && entry.length == length) {
+                hits++;
+                if (metrics != null) {
+                    metrics.included(1, 0);
+                }
+                return entry.tree.toNode(NodeType.INCLUDE, includes);
+            }
+        }
+
+        final byte[] content = contentsOf(file);
+        final byte[] hash = digest(content);
+
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && Arrays.equals(entry.hash, hash)) {
+                entry.modified = modified;
+                hits++;
+                if (metrics != null) {
+                    metrics.included(1, 0);
+                }
+                return entry.tree.toNode(NodeType.INCLUDE, includes);
+            }
+            misses++;
+        }
+
+        if (metrics != null) {
+            metrics.included(0, 1);
+        }
+
+        final int count = errors.size();
+        final Node node = parser.parse(new ByteArrayInputStream(content));
+
+        if (node != null && errors.size() == count) {
+            final FlatTree tree = FlatTree.of(node);
+
+            synchronized (this) {
+                entries.put(key, new Entry(modified, content.length, hash,
+                        tree));
+            }
+            // Return a copy so the includes are found in the same way as a hit.
+            return tree.toNode(NodeType.INCLUDE, includes);
+        }
+        return node;
+    }
+
+    /**
+     * Get the number of times a parsed tree was found in the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Get the number of times a file had to be parsed.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Get the number of parsed files in the cache.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Remove all the entries from the cache and reset the hit and miss
+     * counts.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    private byte[] contentsOf(final File file) throws IOException {
+        final byte[] content = new byte[(int) file.length()];
+        final FileInputStream stream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < content.length) {
+                read = stream.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return offset == content.length ? content
+                    : Arrays.copyOf(content, offset);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private byte[] digest(final byte[] content) {
+        try {
+            return MessageDigest.getInstance(DIGEST).digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
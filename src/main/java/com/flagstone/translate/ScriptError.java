@@ -6,7 +6,17 @@ public class ScriptError {
 	public enum Type {
 		SCRIPT_NOT_FOUND,
 		SCRIPT_READ_ERROR,
-		SCRIPT_PARSE_ERROR;
+		SCRIPT_PARSE_ERROR,
+		/**
+		 * The code generated for the script exceeds a limit of the Flash
+		 * file format, for example a branch over more than 32K bytes.
+		 */
+		SCRIPT_SIZE_ERROR,
+		/**
+		 * The compiler failed unexpectedly while generating the code for
+		 * the script.
+		 */
+		SCRIPT_COMPILE_ERROR;
 	}
 
 	private final Type type;
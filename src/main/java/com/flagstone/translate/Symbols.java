@@ -0,0 +1,144 @@
+/*
+ * Symbols.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Symbols is a table of the names and literals found when parsing a script
+ * and the files it includes. The same name often appears hundreds or
+ * thousands of times in a script so each is stored once and the nodes in
+ * the parsed tree all refer to the same String. Comparing names from
+ * different nodes then usually only compares references and the hash code
+ * of each name is only calculated once.
+ *
+ * Each symbol is identified by an integer, assigned in the order the
+ * symbols were added. Names in ActionScript 1 are not case sensitive so the
+ * lower case form of each symbol is also stored, so it does not have to be
+ * created each time a name is matched.
+ *
+ * A table is used by a single parser, for one compilation, so the methods
+ * are not synchronized.
+ */
+public final class Symbols {
+
+    /** The identifier returned for strings that are not in the table. */
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> lowerCase = new ArrayList<String>();
+
+    /**
+     * Get the copy of a string stored in the table, adding the string if it
+     * has not been seen before.
+     *
+     * @param str the name or literal to add to the table.
+     * @return the string stored in the table that is equal to str.
+     */
+    public String intern(final String str) {
+        return names.get(add(str));
+    }
+
+    /**
+     * Add a string to the table, if it is not already present, and return
+     * its identifier.
+     *
+     * @param str the name or literal to add to the table.
+     * @return the identifier for the symbol.
+     */
+    public int add(final String str) {
+        Integer id = ids.get(str);
+
+        if (id == null) {
+            final String lower = str.toLowerCase();
+
+            id = names.size();
+            ids.put(str, id);
+            names.add(str);
+            lowerCase.add(lower.equals(str) ? str : lower);
+        }
+        return id;
+    }
+
+    /**
+     * Get the identifier for a string.
+     *
+     * @param str a name or literal.
+     * @return the identifier of the symbol or NONE if the string is not in
+     * the table.
+     */
+    public int idOf(final String str) {
+        final Integer id = ids.get(str);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Get the string for a symbol.
+     *
+     * @param id the identifier of the symbol.
+     * @return the string stored in the table.
+     */
+    public String get(final int id) {
+        return names.get(id);
+    }
+
+    /**
+     * Get the lower case form of a symbol.
+     *
+     * @param id the identifier of the symbol.
+     * @return the symbol converted to lower case.
+     */
+    public String toLowerCase(final int id) {
+        return lowerCase.get(id);
+    }
+
+    /**
+     * Get the number of symbols in the table.
+     *
+     * @return the number of distinct strings added.
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Remove all the symbols from the table.
+     */
+    public void clear() {
+        ids.clear();
+        names.clear();
+        lowerCase.clear();
+    }
+}
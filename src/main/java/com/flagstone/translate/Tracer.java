@@ -0,0 +1,113 @@
+/*
+ * Tracer.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import com.flagstone.translate.CompileMetrics.Phase;
+
+/**
+ * Tracer records when each script is compiled, the phases of the compiler
+ * and the files included as events that can be examined in a profiler.
+ *
+ * The methods that start an event return an object representing the event,
+ * or null if the event is not being recorded. The object is passed back when
+ * the event ends. The Tracer used is selected when the class is loaded and
+ * never changes so the calls are inlined and cost nothing when the events
+ * are not recorded.
+ */
+abstract class Tracer {
+
+    /** The name of the class that records Java Flight Recorder events. */
+    private static final String JFR_TRACER =
+        "com.flagstone.translate.JfrTracer";
+
+    /** The Tracer used by all compilers. */
+    static final Tracer INSTANCE = create();
+
+    /*
+     * create returns the Tracer that records Flight Recorder events, if the
+     * JVM supports them, otherwise a Tracer that does nothing. The class is
+     * loaded by name since the events require Java 8u262 or later.
+     */
+    private static Tracer create() {
+        Tracer tracer;
+        try {
+            tracer = (Tracer) Class.forName(JFR_TRACER)
+                    .getDeclaredConstructor().newInstance();
+        } catch (Throwable e) {
+            tracer = new Tracer() { };
+        }
+        return tracer;
+    }
+
+    /*
+     * beginCompile starts the event recorded for each script compiled.
+     */
+    Object beginCompile() {
+        return null;
+    }
+
+    /*
+     * endCompile records the script compiled along with the number of bytes
+     * in the script and the encoded actions.
+     */
+    void endCompile(final Object event, final String path,
+            final Profile profile, final long bytesIn, final long bytesOut) {
+        // Events are not recorded.
+    }
+
+    /*
+     * beginPhase starts the event recorded for a phase of the compiler.
+     */
+    Object beginPhase() {
+        return null;
+    }
+
+    /*
+     * endPhase records the time taken by a phase of the compiler.
+     */
+    void endPhase(final Object event, final Phase phase) {
+        // Events are not recorded.
+    }
+
+    /*
+     * beginInclude starts the event recorded when a file is included.
+     */
+    Object beginInclude() {
+        return null;
+    }
+
+    /*
+     * endInclude records the time taken to find and load an included file.
+     */
+    void endInclude(final Object event, final String path) {
+        // Events are not recorded.
+    }
+}
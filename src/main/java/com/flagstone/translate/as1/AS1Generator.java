@@ -31,8 +31,7 @@
 
 package com.flagstone.translate.as1;
 
-import java.util.EnumSet;
-import java.util.Set;
+import java.util.Arrays;
 
 import com.flagstone.translate.CodeGenerator;
 import com.flagstone.translate.Generator;
@@ -42,18 +41,32 @@ import com.flagstone.translate.NodeType;
 /**
  * AS1Registry is used to provide a directory for registering the different
  * CodeGenerators used to compile Actionscript into Actions.
+ *
+ * The CodeGenerators hold no state between compilations so the default table
+ * is created once and shared by all the registries returned by newGenerator().
+ * A registry only takes a private copy of the table when setGenerator() is
+ * called, so changing the generator for a node type in one compilation does
+ * not affect any other.
  */
 public final class AS1Generator implements GeneratorProvider, Generator {
 
+	/** The default table of generators shared by all registries. */
+	private static final CodeGenerator[] DEFAULTS;
+
+	static {
+		final CodeGenerator generator = new NodeGenerator();
+		DEFAULTS = new CodeGenerator[NodeType.values().length];
+		Arrays.fill(DEFAULTS, generator);
+	}
+
 	/** The table of generators for each of the node types. */
-	private final CodeGenerator[] generators;
+	private transient CodeGenerator[] generators;
+	/** Whether generators is the shared table and must be copied first. */
+	private transient boolean shared;
 
 	public AS1Generator() {
-		Set<NodeType> types = EnumSet.allOf(NodeType.class);
-		generators = new CodeGenerator[types.size()];
-		for (NodeType type : types) {
-			generators[type.ordinal()] = new NodeGenerator();
-		}
+		generators = DEFAULTS;
+		shared = true;
 	}
 
 	@Override
@@ -67,6 +80,10 @@ public final class AS1Generator implements GeneratorProvider, Generator {
 
 	public void setGenerator(final NodeType type,
 			final CodeGenerator generator) {
+		if (shared) {
+			generators = generators.clone();
+			shared = false;
+		}
 		generators[type.ordinal()] = generator;
 	}
 }
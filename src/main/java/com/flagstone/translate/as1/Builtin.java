@@ -0,0 +1,206 @@
+/*
+ * Builtin.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.as1;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flagstone.translate.Node;
+
+/*
+ * Builtin identifies the functions built into Flash. Names are not case
+ * sensitive so a function call is resolved by converting the name to lower
+ * case and looking it up in a table. The result is recorded in the node so
+ * the name is only resolved once however many times the node is visited
+ * while the code is generated.
+ *
+ * Functions that are compiled to actions, rather than called using an
+ * ExecuteFunction action, also record whether the actions leave a value on
+ * the stack. Functions that are called by name record whether they return
+ * a value, so it can be popped off the stack if it is not used.
+ */
+enum Builtin {
+    CALL("call", false),
+    CHR("chr", true),
+    DELETE("delete", false),
+    DUPLICATE_MOVIE_CLIP("duplicatemovieclip", false),
+    EVAL("eval", true),
+    FSCOMMAND("fscommand", false),
+    GET_PROPERTY("getproperty", true),
+    GET_TIMER("gettimer", true),
+    GET_URL("geturl", false),
+    GET_VERSION("getversion", true, true),
+    GOTO_AND_PLAY("gotoandplay", false),
+    GOTO_AND_STOP("gotoandstop", false),
+    IF_FRAME_LOADED("ifframeloaded", false),
+    INT("int", true),
+    LOAD_MOVIE("loadmovie", false),
+    LOAD_MOVIE_NUM("loadmovienum", false),
+    LOAD_VARIABLES("loadvariables", false),
+    LENGTH("length", true),
+    MB_CHR("mbchr", true),
+    MB_ORD("mbord", true),
+    MB_SUBSTRING("mbsubstring", true),
+    NEXT_FRAME("nextframe", false),
+    NEXT_SCENE("nextscene", false),
+    NUMBER("number", false),
+    ORD("ord", true),
+    PLAY("play", false),
+    PREV_FRAME("prevframe", false),
+    PREV_SCENE("prevscene", false),
+    PRINT("print", false),
+    PRINT_NUM("printnum", false),
+    PRINT_AS_BITMAP("printasbitmap", false),
+    PRINT_AS_BITMAP_NUM("printasbitmapnum", false),
+    RANDOM("random", true),
+    REMOVE_MOVIE_CLIP("removemovieclip", false),
+    SET("set", false),
+    SET_PROPERTY("setproperty", false),
+    START_DRAG("startdrag", false),
+    STOP("stop", false),
+    STOP_ALL_SOUNDS("stopallsounds", false),
+    STOP_DRAG("stopdrag", false),
+    STRING("string", false),
+    SUBSTRING("substring", true),
+    TARGET_PATH("targetpath", false, true),
+    TELL_TARGET("telltarget", false),
+    TOGGLE_HIGH_QUALITY("togglehighquality", false),
+    TRACE("trace", false),
+    TYPEOF("typeof", true),
+    UNLOAD_MOVIE("unloadmovie", false),
+    UNLOAD_MOVIE_NUM("unloadmovienum", false),
+    VOID("void", true),
+
+    ATTACH_AUDIO("attachaudio"),
+    ATTACH_MOVIE("attachmovie"),
+    ESCAPE("escape"),
+    GET_BOUNDS("getbounds"),
+    GET_BYTES_LOADED("getbytesloaded"),
+    GET_BYTES_TOTAL("getbytestotal"),
+    GLOBAL_TO_LOCAL("globaltolocal"),
+    HIT_TEST("hittest"),
+    IS_FINITE("isfinite"),
+    IS_NAN("isnan"),
+    LOCAL_TO_GLOBAL("localtoglobal"),
+    PARSE_FLOAT("parsefloat"),
+    PARSE_INT("parseint"),
+    SWAP_DEPTHS("swapdepths"),
+    UNESCAPE("unescape"),
+    UPDATE_AFTER_EVENT("updateafterevent");
+
+    /** Value stored in a node once its name was found not to be built-in. */
+    private static final int NONE = 0;
+
+    private static final Builtin[] VALUES = values();
+    private static final Map<String, Builtin> TABLE =
+        new HashMap<String, Builtin>();
+
+    static {
+        for (Builtin builtin : VALUES) {
+            TABLE.put(builtin.name, builtin);
+        }
+    }
+
+    /*
+     * Find the built-in function that a FUNCTION node calls, returning null
+     * if the function is defined in the script or by an object. The parser
+     * records the binding for each call. Otherwise the name is resolved the
+     * first time the node is seen and the result recorded in the node.
+     */
+    static Builtin of(final Node node) {
+        int binding = node.getBinding();
+
+        if (binding == Node.UNBOUND) {
+            final String value = node.getValue();
+            binding = value == null ? NONE : bind(value.toLowerCase());
+            node.setBinding(binding);
+        }
+        return binding == NONE ? null : VALUES[binding - 1];
+    }
+
+    /*
+     * Get the binding recorded in a node that calls a function, given the
+     * name of the function in lower case: the ordinal of the function plus
+     * one or zero if the function is not built-in.
+     */
+    static int bind(final String lower) {
+        final Builtin builtin = TABLE.get(lower);
+        return builtin == null ? NONE : builtin.ordinal() + 1;
+    }
+
+    private final String name;
+    private final boolean action;
+    private final boolean pushes;
+    private final boolean returns;
+
+    private Builtin(final String lower, final boolean value) {
+        this(lower, value, false);
+    }
+
+    private Builtin(final String lower, final boolean value,
+            final boolean result) {
+        name = lower;
+        action = true;
+        pushes = value;
+        returns = result;
+    }
+
+    private Builtin(final String lower) {
+        name = lower;
+        action = false;
+        pushes = false;
+        returns = true;
+    }
+
+    /*
+     * Returns true if the function is compiled to actions rather than called
+     * using ExecuteFunction.
+     */
+    boolean isAction() {
+        return action;
+    }
+
+    /*
+     * Returns true if the actions generated for the function leave a value
+     * on the stack.
+     */
+    boolean pushesValue() {
+        return pushes;
+    }
+
+    /*
+     * Returns true if the function returns a value which must be popped off
+     * the stack when it is not used.
+     */
+    boolean returnsValue() {
+        return returns;
+    }
+}
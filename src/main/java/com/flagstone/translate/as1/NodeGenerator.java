@@ -32,9 +32,10 @@ package com.flagstone.translate.as1;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.flagstone.transform.EventHandler;
 import com.flagstone.transform.action.Action;
@@ -62,11 +63,14 @@ import com.flagstone.transform.action.TableIndex;
 import com.flagstone.transform.action.Void;
 import com.flagstone.transform.action.WaitForFrame2;
 import com.flagstone.transform.action.With;
-import com.flagstone.transform.coder.SWFEncodeable;
 import com.flagstone.translate.AbstractCodeGenerator;
+import com.flagstone.translate.Branch;
 import com.flagstone.translate.Context;
+import com.flagstone.translate.Context.Scope;
+import com.flagstone.translate.DefineFunction2;
 import com.flagstone.translate.EventNode;
 import com.flagstone.translate.Generator;
+import com.flagstone.translate.Label;
 import com.flagstone.translate.Node;
 import com.flagstone.translate.NodeType;
 import com.flagstone.translate.as.ParseException;
@@ -80,12 +84,10 @@ public class NodeGenerator extends AbstractCodeGenerator {
     private static Map<String, Integer> propertyNames = new HashMap<String, Integer>();
     // Table for properties defined in Flash 4 or earlier.
     private static Map<String, Integer> earlyPropertyNames = new HashMap<String, Integer>();
-    // Table for the functions built into Flash.
-    private static Map<String, Boolean> functions = new HashMap<String, Boolean>();
-    // Table for the functions built into Flash that return a value.
-    private static Map<String, Object> valueFunctions = new HashMap<String, Object>();
     // Table for the classes built into Flash that return a value.
     private static Map<String, Object> classes = new HashMap<String, Object>();
+    // Table for the names that are never stored in registers.
+    private static Set<String> reservedNames = new HashSet<String>();
 
     static {
         constants.put("Math.E", new Double(Math.E));
@@ -171,87 +173,12 @@ public class NodeGenerator extends AbstractCodeGenerator {
         propertyNames.put("_xmouse", new Integer(20));
         propertyNames.put("_ymouse", new Integer(21));
 
-        /*
-         * The functions table is only used to identify built-in functions so no
-         * value is associated with each name.
-         */
-        functions.put("call", new Boolean(false));
-        functions.put("chr", new Boolean(true));
-        functions.put("delete", new Boolean(false));
-        functions.put("duplicatemovieclip", new Boolean(false));
-        functions.put("eval", new Boolean(true));
-        functions.put("fscommand", new Boolean(false));
-        functions.put("getproperty", new Boolean(true));
-        functions.put("gettimer", new Boolean(true));
-        functions.put("geturl", new Boolean(false));
-        functions.put("getversion", new Boolean(true));
-        functions.put("gotoandplay", new Boolean(false));
-        functions.put("gotoandstop", new Boolean(false));
-        functions.put("ifframeloaded", new Boolean(false));
-        functions.put("int", new Boolean(true));
-        functions.put("loadmovie", new Boolean(false));
-        functions.put("loadmovienum", new Boolean(false));
-        functions.put("loadvariables", new Boolean(false));
-        functions.put("length", new Boolean(true));
-        functions.put("mbchr", new Boolean(true));
-        functions.put("mbord", new Boolean(true));
-        functions.put("mbsubstring", new Boolean(true));
-        functions.put("nextframe", new Boolean(false));
-        functions.put("nextscene", new Boolean(false));
-        functions.put("number", new Boolean(false));
-        functions.put("ord", new Boolean(true));
-        functions.put("play", new Boolean(false));
-        functions.put("prevframe", new Boolean(false));
-        functions.put("prevscene", new Boolean(false));
-        functions.put("print", new Boolean(false));
-        functions.put("printnum", new Boolean(false));
-        functions.put("printasbitmap", new Boolean(false));
-        functions.put("printasbitmapnum", new Boolean(false));
-        functions.put("random", new Boolean(true));
-        functions.put("removemovieclip", new Boolean(false));
-        functions.put("set", new Boolean(false));
-        functions.put("setproperty", new Boolean(false));
-        functions.put("startdrag", new Boolean(false));
-        functions.put("stop", new Boolean(false));
-        functions.put("stopallsounds", new Boolean(false));
-        functions.put("stopdrag", new Boolean(false));
-        functions.put("string", new Boolean(false));
-        functions.put("substring", new Boolean(true));
-        functions.put("targetpath", new Boolean(false));
-        functions.put("telltarget", new Boolean(false));
-        functions.put("togglehighquality", new Boolean(false));
-        functions.put("trace", new Boolean(false));
-        functions.put("typeof", new Boolean(true));
-        functions.put("unloadmovie", new Boolean(false));
-        functions.put("unloadmovienum", new Boolean(false));
-        functions.put("void", new Boolean(true));
-
-        /*
-         * The functions table is only used to identify built-in functions that
-         * return a value to determine whether a pop action should be generated
-         * if the value returned by the function is not assigned to a variable.
-         */
-        valueFunctions.put("attachaudio", null);
-        valueFunctions.put("attachmovie", null);
-        valueFunctions.put("escape", null);
-        valueFunctions.put("getbounds", null);
-        valueFunctions.put("getbytesloaded", null);
-        valueFunctions.put("getbytestotal", null);
-        valueFunctions.put("getversion", null);
-        valueFunctions.put("globaltolocal", null);
-        valueFunctions.put("hittest", null);
-        valueFunctions.put("isfinite", null);
-        valueFunctions.put("isnan", null);
-        valueFunctions.put("localtoglobal", null);
-        valueFunctions.put("parsefloat", null);
-        valueFunctions.put("parseint", null);
-        valueFunctions.put("swapdepths", null);
-        valueFunctions.put("targetpath", null);
-        valueFunctions.put("unescape", null);
-        valueFunctions.put("updateafterevent", null);
-
         classes.put("Math", null);
         classes.put("Clip", null);
+
+        reservedNames.addAll(constants.keySet());
+        reservedNames.addAll(propertyNames.keySet());
+        reservedNames.addAll(earlyPropertyNames.keySet());
     }
 
     private void generateScript(final Generator generator, final Context info, final Node node, List<Action> list) {
@@ -265,9 +192,12 @@ public class NodeGenerator extends AbstractCodeGenerator {
             for (int i = 0; i < count; i++)
                 node.get(i).discardValues();
 
+            int start = list.size();
+
             for (int i = 0; i < count; i++)
                 generate(generator, info, node.get(i), list);
 
+            resolve(info, list, start);
             list.add(BasicAction.END);
             break;
         case BUTTON:
@@ -290,9 +220,13 @@ public class NodeGenerator extends AbstractCodeGenerator {
         for (int i = 0; i < count; i++)
             node.get(i).discardValues();
 
+        openBlock(info);
+
         for (int i = 0; i < count; i++)
         	generate(generator, info, node.get(i), array);
 
+        closeBlock(info, array);
+
         array.add(BasicAction.END);
         list.add(new EventHandler(node.getEvents(), node.getKey(), array));
     }
@@ -333,14 +267,14 @@ public class NodeGenerator extends AbstractCodeGenerator {
             if (node.getParent() != null && node.getParent().getType() == NodeType.LIST && node.getParent().count() > 0) {
                 if (node.getParent().get(0).count() > 0) {
                     if (node.getParent().get(0).get(0).getType() == NodeType.DEFINE_VARIABLE) {
-                        if (node.getParent().getChildren().indexOf(node) != 0)
+                        if (node.getParent().indexOf(node) != 0)
                             node.get(0).setType(NodeType.DEFINE_VARIABLE);
                     }
                 }
             }
             break;
         case DEFINE_FUNCTION:
-            int index = node.getParent().getChildren().indexOf(node);
+            int index = node.getParent().indexOf(node);
 
             if (index != -1) {
                 node.getParent().remove(index);
@@ -363,8 +297,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 else
                     node.get(1).setValue("print:#" + node.get(1).getValue());
 
-                node.getChildren().set(0, c1);
-                node.getChildren().set(1, c0);
+                node.set(0, c1);
+                node.set(1, c0);
             } else if (node.getValue().equals("printNum")) {
                 if (node.get(0).getType() == NodeType.INTEGER) {
                     node.get(0).setType(NodeType.STRING);
@@ -384,8 +318,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 else
                     node.get(1).setValue("printasbitmap:#" + node.get(1).getValue());
 
-                node.getChildren().set(0, c1);
-                node.getChildren().set(1, c0);
+                node.set(0, c1);
+                node.set(1, c0);
             } else if (node.getValue().equals("printAsBitmapNum")) {
                 if (node.get(0).getType() == NodeType.INTEGER) {
                     node.get(0).setType(NodeType.STRING);
@@ -417,37 +351,35 @@ public class NodeGenerator extends AbstractCodeGenerator {
         case MOD:
             if (node.count() == 2) {
                 if (node.get(0).getType() == NodeType.INTEGER
-                        && node.get(1).getType() == NodeType.INTEGER) {
+                        && node.get(1).getType() == NodeType.INTEGER
+                        && !isDivideByZero(node)) {
                     switch (node.getType()) {
                     case ADD:
-                        node.setType(NodeType.INTEGER);
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) + Integer.valueOf(node.get(1).getValue())));
+                        setNumber(node, (long) node.get(0).intValue() + node.get(1).intValue());
                         break;
                     case SUB:
-                    	node.setType(NodeType.INTEGER);
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) - Integer.valueOf(node.get(1).getValue())));
+                        setNumber(node, (long) node.get(0).intValue() - node.get(1).intValue());
                         break;
                     case MUL:
-                    	node.setType(NodeType.INTEGER);
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) * Integer.valueOf(node.get(1).getValue())));
+                        setNumber(node, (long) node.get(0).intValue() * node.get(1).intValue());
                         break;
                     case DIV:
-                        if (Integer.valueOf(node.get(0).getValue()) / Integer.valueOf(node.get(1).getValue()) == 0) {
+                        if (node.get(0).intValue() / node.get(1).intValue() == 0) {
                         	node.setType(NodeType.DOUBLE);
-                        	node.setValue(String.valueOf(((double) Integer.valueOf(node.get(0).getValue()))
-                                    / ((double) Integer.valueOf(node.get(1).getValue()))));
-                        } else if (Integer.valueOf(node.get(0).getValue()) % Integer.valueOf(node.get(1).getValue()) != 0) {
+                        	node.setValue(String.valueOf(((double) node.get(0).intValue())
+                                    / ((double) node.get(1).intValue())));
+                        } else if (node.get(0).intValue() % node.get(1).intValue() != 0) {
                         	node.setType(NodeType.DOUBLE);
-                        	node.setValue(String.valueOf(((double) Integer.valueOf(node.get(0).getValue()))
-                                    / ((double) Integer.valueOf(node.get(1).getValue()))));
+                        	node.setValue(String.valueOf(((double) node.get(0).intValue())
+                                    / ((double) node.get(1).intValue())));
                         } else {
                             node.setType(NodeType.INTEGER);
-                            node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) / Integer.valueOf(node.get(1).getValue())));
+                            node.setValue(String.valueOf(node.get(0).intValue() / node.get(1).intValue()));
                         }
                         break;
                     case MOD:
                     	node.setType(NodeType.INTEGER);
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) % Integer.valueOf(node.get(1).getValue())));
+                        node.setValue(String.valueOf(node.get(0).intValue() % node.get(1).intValue()));
                         break;
                     }
                     node.remove(0);
@@ -456,19 +388,19 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         && node.get(1).getType() == NodeType.INTEGER) {
                     switch (node.getType()) {
                     case ADD:
-                        node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) + Integer.valueOf(node.get(1).getValue())));
+                        node.setValue(String.valueOf(node.get(0).doubleValue() + node.get(1).intValue()));
                         break;
                     case SUB:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) - Integer.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() - node.get(1).intValue()));
                         break;
                     case MUL:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) * Integer.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() * node.get(1).intValue()));
                         break;
                     case DIV:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) / Integer.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() / node.get(1).intValue()));
                         break;
                     case MOD:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) % Integer.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() % node.get(1).intValue()));
                         break;
                     }
                     node.setType(NodeType.DOUBLE);
@@ -478,19 +410,19 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         && node.get(1).getType() == NodeType.DOUBLE) {
                     switch (node.getType()) {
                     case ADD:
-                    	node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) + Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).intValue() + node.get(1).doubleValue()));
                         break;
                     case SUB:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) - Double.valueOf(node.get(1).getValue())));
+                        node.setValue(String.valueOf(node.get(0).intValue() - node.get(1).doubleValue()));
                         break;
                     case MUL:
-                    	node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) * Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).intValue() * node.get(1).doubleValue()));
                         break;
                     case DIV:
-                    	node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) / Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).intValue() / node.get(1).doubleValue()));
                         break;
                     case MOD:
-                    	node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) % Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).intValue() % node.get(1).doubleValue()));
                         break;
                     }
                     node.setType(NodeType.DOUBLE);
@@ -500,19 +432,19 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         && node.get(1).getType() == NodeType.DOUBLE) {
                     switch (node.getType()) {
                     case ADD:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) + Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() + node.get(1).doubleValue()));
                         break;
                     case SUB:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) - Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() - node.get(1).doubleValue()));
                         break;
                     case MUL:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) * Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() * node.get(1).doubleValue()));
                         break;
                     case DIV:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) / Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() / node.get(1).doubleValue()));
                         break;
                     case MOD:
-                    	node.setValue(String.valueOf(Double.valueOf(node.get(0).getValue()) % Double.valueOf(node.get(1).getValue())));
+                    	node.setValue(String.valueOf(node.get(0).doubleValue() % node.get(1).doubleValue()));
                         break;
                     }
                     node.setType(NodeType.DOUBLE);
@@ -554,27 +486,36 @@ public class NodeGenerator extends AbstractCodeGenerator {
             if (node.count() == 2) {
                 if (node.get(0).getType() == NodeType.INTEGER
                         && node.get(1).getType() == NodeType.INTEGER) {
+                    long result = 0;
+
                     switch (node.getType()) {
                     case ASR:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) >> Integer.valueOf(node.get(1).getValue())));
+                        result = node.get(0).intValue() >> node.get(1).intValue();
                         break;
                     case LSL:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) << Integer.valueOf(node.get(1).getValue())));
+                        result = node.get(0).intValue() << node.get(1).intValue();
                         break;
                     case LSR:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) >>> Integer.valueOf(node.get(1).getValue())));
+                        result = (node.get(0).intValue() >>> node.get(1).intValue()) & 0xFFFFFFFFL;
                         break;
                     case BIT_AND:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) & Integer.valueOf(node.get(1).getValue())));
+                        result = node.get(0).intValue() & node.get(1).intValue();
                         break;
                     case BIT_OR:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) | Integer.valueOf(node.get(1).getValue())));
+                        result = node.get(0).intValue() | node.get(1).intValue();
                         break;
                     case BIT_XOR:
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) ^ Integer.valueOf(node.get(1).getValue())));
+                        result = node.get(0).intValue() ^ node.get(1).intValue();
                         break;
                     }
-                    node.setType(NodeType.INTEGER);
+                    /*
+                     * The result of an unsigned shift is an unsigned 32-bit
+                     * integer which can only be pushed as a double when it
+                     * does not fit in a signed integer.
+                     */
+                    node.setValue(String.valueOf(result));
+                    node.setType(result > Integer.MAX_VALUE
+                            ? NodeType.DOUBLE : NodeType.INTEGER);
                     node.remove(0);
                     node.remove(0);
                 }
@@ -623,7 +564,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     case LOGICAL_AND:
                         node.setType(NodeType.BOOLEAN);
                         node.setValue(String.valueOf(Boolean.valueOf(node.get(0).getValue())
-                                && Integer.valueOf(node.get(1).getValue()) != 0));
+                                && node.get(1).intValue() != 0));
                         break;
                     }
                     node.remove(0);
@@ -634,7 +575,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     case LOGICAL_AND:
                     case AND:
                         node.setType(NodeType.BOOLEAN);
-                        node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) != 0
+                        node.setValue(String.valueOf(node.get(0).intValue() != 0
                                 && Boolean.valueOf(node.get(1).getValue())));
                         break;
                     }
@@ -642,8 +583,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     node.remove(0);
                 } else if (node.get(0).getType() == NodeType.INTEGER
                         && node.get(1).getType() == NodeType.INTEGER) {
-                    boolean a = Integer.valueOf(node.get(0).getValue()) != 0;
-                    boolean b = Integer.valueOf(node.get(1).getValue()) != 0;
+                    boolean a = node.get(0).intValue() != 0;
+                    boolean b = node.get(1).intValue() != 0;
 
                     switch (node.getType()) {
                     case LOGICAL_AND:
@@ -688,7 +629,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     case LOGICAL_OR:
                     case OR:
                         node.setType(NodeType.INTEGER);
-                        node.setValue(String.valueOf((Integer.valueOf(node.get(0).getValue()) != 0 || Boolean.valueOf(node.get(1).getValue())) ? 1
+                        node.setValue(String.valueOf((node.get(0).intValue() != 0 || Boolean.valueOf(node.get(1).getValue())) ? 1
                                 : 0));
                         break;
                     }
@@ -696,8 +637,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     node.remove(0);
                 } else if (node.get(0).getType() == NodeType.INTEGER
                         && node.get(1).getType() == NodeType.INTEGER) {
-                    boolean a = Integer.valueOf(node.get(0).getValue()) != 0;
-                    boolean b = Integer.valueOf(node.get(1).getValue()) != 0;
+                    boolean a = node.get(0).intValue() != 0;
+                    boolean b = node.get(1).intValue() != 0;
 
                     switch (node.getType()) {
                     case LOGICAL_OR:
@@ -719,7 +660,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     node.remove(0);
                 } else if (node.get(0).getType() == NodeType.INTEGER) {
                     node.setType(NodeType.BOOLEAN);
-                    node.setValue(String.valueOf(Integer.valueOf(node.get(0).getValue()) == 0));
+                    node.setValue(String.valueOf(node.get(0).intValue() == 0));
                     node.remove(0);
                 }
             }
@@ -728,7 +669,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
             if (node.count() == 1) {
                 if (node.get(0).getType() == NodeType.INTEGER) {
                     node.setType(NodeType.INTEGER);
-                    node.setValue(String.valueOf(~Integer.valueOf(node.get(0).getValue())));
+                    node.setValue(String.valueOf(~node.get(0).intValue()));
                     node.remove(0);
                 }
             }
@@ -737,6 +678,10 @@ public class NodeGenerator extends AbstractCodeGenerator {
             break;
         }
 
+        if (info.foldConstants) {
+            fold(info, node);
+        }
+
         switch (node.getType()) {
         case ARRAY:
         case BUTTON:
@@ -749,6 +694,309 @@ public class NodeGenerator extends AbstractCodeGenerator {
         }
     }
 
+    /*
+     * fold evaluates the expressions containing only literals that are not
+     * evaluated when generating the same code as the Flash authoring
+     * application: numeric constants such as Math.PI, unary plus and minus,
+     * comparisons, string operations and calls to the functions of the Math
+     * class that have no side-effects.
+     * Comparisons only return Boolean values from Flash 5 onwards so they are
+     * not evaluated for earlier versions. Comparisons involving NaN are left
+     * for the Flash Player since the result depends on how the operator is
+     * encoded.
+     */
+    private void fold(final Context info, final Node node) {
+        final int count = node.count();
+
+        switch (node.getType()) {
+        case IDENTIFIER:
+            if (constants.get(node.getValue()) instanceof Number) {
+                double value = ((Number) constants.get(node.getValue())).doubleValue();
+
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    setNumber(node, value);
+                }
+            }
+            break;
+        case PLUS:
+        case MINUS:
+            if (count == 1 && isNumber(node.get(0))) {
+                double value = numberValue(node.get(0));
+                setNumber(node, node.getType() == NodeType.MINUS ? -value : value);
+                node.remove(0);
+            }
+            break;
+        case NOT:
+            if (count == 1 && node.get(0).getType() == NodeType.DOUBLE) {
+                double value = node.get(0).doubleValue();
+                setBoolean(node, value == 0.0 || Double.isNaN(value));
+                node.remove(0);
+            }
+            break;
+        case ADD:
+            if (count == 2 && info.version >= 5) {
+                Node left = node.get(0);
+                Node right = node.get(1);
+
+                if ((left.getType() == NodeType.STRING && right.getType() == NodeType.BOOLEAN)
+                        || (left.getType() == NodeType.BOOLEAN && right.getType() == NodeType.STRING)) {
+                    node.setType(NodeType.STRING);
+                    node.setValue(left.getValue() + right.getValue());
+                    node.remove(0);
+                    node.remove(0);
+                }
+            }
+            break;
+        case STRING_ADD:
+            if (count == 2 && node.get(0).getType() == NodeType.STRING
+                    && node.get(1).getType() == NodeType.STRING) {
+                node.setType(NodeType.STRING);
+                node.setValue(node.get(0).getValue() + node.get(1).getValue());
+                node.remove(0);
+                node.remove(0);
+            }
+            break;
+        case LESS_THAN:
+        case GREATER_THAN:
+        case LESS_THAN_EQUAL:
+        case GREATER_THAN_EQUAL:
+        case EQUAL:
+        case NOT_EQUAL:
+        case STRICT_EQUAL:
+        case STRICT_NOT_EQUAL:
+        case STRING_EQUAL:
+        case STRING_NOT_EQUAL:
+        case STRING_LESS_THAN_EQUAL:
+        case STRING_GREATER_THAN:
+        case STRING_GREATER_THAN_EQUAL:
+            if (count == 2 && info.version >= 5) {
+                Boolean result = compare(node.getType(), node.get(0), node.get(1));
+
+                if (result != null) {
+                    setBoolean(node, result);
+                    node.remove(0);
+                    node.remove(0);
+                }
+            }
+            break;
+        case VALUE:
+            if (count == 2 && node.get(0).getType() == NodeType.IDENTIFIER
+                    && node.get(0).getValue().equals("Math")
+                    && node.get(1).getType() == NodeType.METHOD) {
+                Double result = evaluateMath(node.get(1));
+
+                if (result != null) {
+                    setNumber(node, result);
+                    node.remove(0);
+                    node.remove(0);
+                }
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /*
+     * compare returns the result of comparing two literals or null if the
+     * comparison cannot be evaluated by the compiler. The operators such as
+     * "eq" always compare strings, the others compare two numbers, two
+     * strings or, for equality, two booleans.
+     */
+    private Boolean compare(final NodeType type, final Node left, final Node right) {
+        Boolean result = null;
+
+        if (left.getType() == NodeType.STRING && right.getType() == NodeType.STRING) {
+            int diff = left.getValue().compareTo(right.getValue());
+
+            switch (type) {
+            case LESS_THAN:
+                result = diff < 0;
+                break;
+            case GREATER_THAN:
+            case STRING_GREATER_THAN:
+                result = diff > 0;
+                break;
+            case LESS_THAN_EQUAL:
+            case STRING_LESS_THAN_EQUAL:
+                result = diff <= 0;
+                break;
+            case GREATER_THAN_EQUAL:
+            case STRING_GREATER_THAN_EQUAL:
+                result = diff >= 0;
+                break;
+            case EQUAL:
+            case STRICT_EQUAL:
+            case STRING_EQUAL:
+                result = diff == 0;
+                break;
+            case NOT_EQUAL:
+            case STRICT_NOT_EQUAL:
+            case STRING_NOT_EQUAL:
+                result = diff != 0;
+                break;
+            default:
+                break;
+            }
+        } else if (isNumber(left) && isNumber(right)) {
+            double a = numberValue(left);
+            double b = numberValue(right);
+
+            if (!Double.isNaN(a) && !Double.isNaN(b)) {
+                switch (type) {
+                case LESS_THAN:
+                    result = a < b;
+                    break;
+                case GREATER_THAN:
+                    result = a > b;
+                    break;
+                case LESS_THAN_EQUAL:
+                    result = a <= b;
+                    break;
+                case GREATER_THAN_EQUAL:
+                    result = a >= b;
+                    break;
+                case EQUAL:
+                case STRICT_EQUAL:
+                    result = a == b;
+                    break;
+                case NOT_EQUAL:
+                case STRICT_NOT_EQUAL:
+                    result = a != b;
+                    break;
+                default:
+                    break;
+                }
+            }
+        } else if (left.getType() == NodeType.BOOLEAN && right.getType() == NodeType.BOOLEAN) {
+            boolean same = left.getValue().equals(right.getValue());
+
+            switch (type) {
+            case EQUAL:
+            case STRICT_EQUAL:
+                result = same;
+                break;
+            case NOT_EQUAL:
+            case STRICT_NOT_EQUAL:
+                result = !same;
+                break;
+            default:
+                break;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * evaluateMath returns the value of a call to one of the functions of the
+     * Math class or null if the method has side-effects, such as random(),
+     * the arguments are not numeric literals or the result is not a finite
+     * number. Math.round() rounds halves up, as in the Flash Player, rather
+     * than away from zero.
+     */
+    private Double evaluateMath(final Node method) {
+        final int count = method.count();
+        final double[] args = new double[count];
+
+        for (int i = 0; i < count; i++) {
+            if (!isNumber(method.get(i))) {
+                return null;
+            }
+            args[i] = numberValue(method.get(i));
+
+            if (Double.isNaN(args[i]) || Double.isInfinite(args[i])) {
+                return null;
+            }
+        }
+
+        final String name = method.getValue();
+        double value;
+
+        if (count == 1) {
+            if (name.equals("abs")) {
+                value = Math.abs(args[0]);
+            } else if (name.equals("acos")) {
+                value = Math.acos(args[0]);
+            } else if (name.equals("asin")) {
+                value = Math.asin(args[0]);
+            } else if (name.equals("atan")) {
+                value = Math.atan(args[0]);
+            } else if (name.equals("ceil")) {
+                value = Math.ceil(args[0]);
+            } else if (name.equals("cos")) {
+                value = Math.cos(args[0]);
+            } else if (name.equals("exp")) {
+                value = Math.exp(args[0]);
+            } else if (name.equals("floor")) {
+                value = Math.floor(args[0]);
+            } else if (name.equals("log")) {
+                value = Math.log(args[0]);
+            } else if (name.equals("round")) {
+                value = Math.floor(args[0] + 0.5);
+            } else if (name.equals("sin")) {
+                value = Math.sin(args[0]);
+            } else if (name.equals("sqrt")) {
+                value = Math.sqrt(args[0]);
+            } else if (name.equals("tan")) {
+                value = Math.tan(args[0]);
+            } else {
+                return null;
+            }
+        } else if (count == 2) {
+            if (name.equals("atan2")) {
+                value = Math.atan2(args[0], args[1]);
+            } else if (name.equals("max")) {
+                value = Math.max(args[0], args[1]);
+            } else if (name.equals("min")) {
+                value = Math.min(args[0], args[1]);
+            } else if (name.equals("pow")) {
+                value = Math.pow(args[0], args[1]);
+            } else {
+                return null;
+            }
+        } else {
+            return null;
+        }
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        return value;
+    }
+
+    private boolean isNumber(final Node node) {
+        return node.getType() == NodeType.INTEGER
+                || node.getType() == NodeType.DOUBLE;
+    }
+
+    private boolean isDivideByZero(final Node node) {
+        return (node.getType() == NodeType.DIV || node.getType() == NodeType.MOD)
+                && node.get(1).intValue() == 0;
+    }
+
+    private double numberValue(final Node node) {
+        return node.getType() == NodeType.INTEGER ? node.intValue() : node.doubleValue();
+    }
+
+    /*
+     * setNumber changes a node into a literal, using an integer if the value
+     * is a whole number, other than -0, that fits in 32 bits.
+     */
+    private void setNumber(final Node node, final double value) {
+        if (value == (int) value && !(value == 0.0 && 1.0 / value < 0)) {
+            node.setType(NodeType.INTEGER);
+            node.setValue(String.valueOf((int) value));
+        } else {
+            node.setType(NodeType.DOUBLE);
+            node.setValue(String.valueOf(value));
+        }
+    }
+
+    private void setBoolean(final Node node, final boolean value) {
+        node.setType(NodeType.BOOLEAN);
+        node.setValue(String.valueOf(value));
+    }
+
     /*
      * findStrings is used to generate a table of string literals so rather than
      * pushing a string directly onto the Flash Player's stack an index into the
@@ -760,11 +1008,12 @@ public class NodeGenerator extends AbstractCodeGenerator {
     @Override
 	public void search(final Generator generator, final Context info, final Node node) {
         int count = node.count();
+        Builtin builtin;
 
         if (node.getType() == NodeType.FUNCTION)
-            info.context.push(node.getValue());
+            info.enter(node.getValue());
         else
-            info.context.push(node.getType().getName());
+            info.enter(node.getType().getName());
 
         switch (node.getType()) {
 //        case On:
@@ -774,27 +1023,19 @@ public class NodeGenerator extends AbstractCodeGenerator {
 //                search(generator, info, node.get(i));
 //            break;
         case STRING:
-        	String value = node.getValue().replaceAll("\\\\n", "\n");
-            value = value.replaceAll("\\\\n", "\n");
-            value = value.replaceAll("\\\\t", "\t");
-            value = value.replaceAll("\\\\b", "\b");
-            value = value.replaceAll("\\\\r", "\r");
-            value = value.replaceAll("\\\\f", "\f");
-
-            node.setValue(value);
-            info.addString(value);
+            info.addString(node.getValue());
             break;
         case IDENTIFIER:
             if (constants.containsKey(node.getValue()))
                 break;
             else if (propertyNames.containsKey(node.getValue())) {
-                if (info.context.contains("getProperty"))
+                if (info.isWithin(Scope.GET_PROPERTY))
                     break;
-                else if (info.context.contains("setProperty"))
+                else if (info.isWithin(Scope.SET_PROPERTY))
                     break;
-                else if (info.context.contains("with"))
+                else if (info.isWithin(Scope.WITH))
                     info.addString(node.getValue());
-                else if (info.context.contains("DefineObject"))
+                else if (info.isWithin(Scope.DEFINE_OBJECT))
                     info.addString(node.getValue());
                 else
                     info.addString("");
@@ -816,84 +1057,17 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 info.addString(node.getValue());
             break;
         case FUNCTION:
-            if (node.getValue() != null && functions.containsKey(node.getValue().toLowerCase()) == false) {
-                for (int i = 0; i < count; i++)
-                    search(generator, info, node.get(i));
-
-                if (node.getValue().length() > 0)
-                    info.addString(node.getValue());
-            } else {
-                if (node.getValue() != null && node.getValue().toLowerCase().equals("fscommand")) {
-                    info.addString("FSCommand:");
-
-                    for (int i = 0; i < count; i++)
-                        search(generator, info, node.get(i));
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("getURL")) {
-                    if (count > 0)
-                        search(generator, info, node.get(0));
-
-                    if (count > 1)
-                        search(generator, info, node.get(1));
-
-                    if (count == 1 && node.get(0).getType() != NodeType.STRING)
-                        info.addString("");
+            builtin = Builtin.of(node);
 
-                    break;
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("gotoAndPlay")) {
-                    if (count == 1)
-                        search(generator, info, node.get(0));
-                    else if (count == 2)
-                        search(generator, info, node.get(1));
-
-                    break;
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("gotoAndStop")) {
-                    if (count == 1)
-                        search(generator, info, node.get(0));
-                    else if (count == 2)
-                        search(generator, info, node.get(1));
-
-                    break;
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("loadMovie")) {
-                    if (count > 0)
-                        search(generator, info, node.get(0));
-
-                    if (count > 1)
-                        search(generator, info, node.get(1));
-
-                    if (count == 1)
-                        info.addString("");
-
-                    break;
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("loadVariables")) {
-                    if (count > 0)
-                        search(generator, info, node.get(0));
+            if (builtin == Builtin.FSCOMMAND)
+                info.addString("FSCommand:");
 
-                    if (count > 1)
-                        search(generator, info, node.get(1));
-
-                    if (count == 1)
-                        info.addString("");
-
-                    break;
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("printNum")) {
-                    search(generator, info, node.get(1));
-
-                    if (node.get(0).getType() == NodeType.IDENTIFIER)
-                        info.addString("_level");
-
-                    search(generator, info, node.get(0));
-                } else if (node.getValue() != null && node.getValue().toLowerCase().equals("printAsBitmapNum")) {
-                    search(generator, info, node.get(1));
-
-                    if (node.get(0).getType() == NodeType.IDENTIFIER)
-                        info.addString("_level");
+            for (int i = 0; i < count; i++)
+                search(generator, info, node.get(i));
 
-                    search(generator, info, node.get(0));
-                } else {
-                    for (int i = 0; i < count; i++)
-                        search(generator, info, node.get(i));
-                }
-            }
+            if ((builtin == null || !builtin.isAction())
+                    && node.getValue() != null && node.getValue().length() > 0)
+                info.addString(node.getValue());
             break;
         case DEFINE_METHOD:
             search(generator, info, node.get(count - 1));
@@ -916,15 +1090,9 @@ public class NodeGenerator extends AbstractCodeGenerator {
             if (count > 0) {
                 if (node.get(0).getValue() != null
                         && classes.containsKey(node.get(0).getValue())) {
-                    boolean containsClass = false;
+                    boolean containsClass =
+                        info.indexOf(node.get(0).getValue()) != -1;
 
-                    for (Iterator<String> i = info.strings.iterator(); i
-                            .hasNext();) {
-                        if (i.next().toString().equals(node.get(0).getValue())) {
-                            containsClass = true;
-                            break;
-                        }
-                    }
                     // Swap the name of the function and the class to
                     // simplify verification during testing.
 
@@ -934,8 +1102,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         for (int i = 0; i < count; i++)
                             search(generator, info, node.get(i));
 
-                        info.strings.set(index, info.strings.get(index + 1));
-                        info.strings.set(index + 1, node.get(0).getValue());
+                        info.setString(index, info.strings.get(index + 1));
+                        info.setString(index + 1, node.get(0).getValue());
                     } else {
                         for (int i = 0; i < count; i++)
                             search(generator, info, node.get(i));
@@ -951,7 +1119,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 search(generator, info, node.get(i));
             break;
         }
-        info.context.pop();
+        info.leave();
     }
 
     /*
@@ -966,9 +1134,9 @@ public class NodeGenerator extends AbstractCodeGenerator {
     @Override
 	public void generate(final Generator generator, final Context info, final Node node, List<Action> actions) {
         if (node.getType() == NodeType.FUNCTION)
-            info.context.push(node.getValue());
+            info.enter(node.getValue());
         else
-            info.context.push(node.getType().getName());
+            info.enter(node.getType().getName());
 
         switch (node.getType()) {
         case ARRAY:
@@ -1111,7 +1279,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
         default:
             break;
         }
-        info.context.pop();
+        info.leave();
     }
 
     private void generateList(final Generator generator, final Context info, final Node node, List<Action> actions) {
@@ -1123,197 +1291,112 @@ public class NodeGenerator extends AbstractCodeGenerator {
 
     private void generateIf(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
-        boolean addJump = false;
 
-        List<Action> trueActions = new ArrayList<Action>();
-        int offsetToNext = 0;
+        Label next = new Label();
+        Label end = new Label();
+
+        generate(generator, info, node.get(0), actions);
+
+        actions.add(BasicAction.fromInt(ActionTypes.LOGICAL_NOT));
+        actions.add(new Branch(ActionTypes.IF, next));
 
-        List<Action> falseActions = new ArrayList<Action>();
-        int offsetToEnd = 0;
+        int start = actions.size();
 
         if (count > 1) {
             node.get(1).discardValues();
-            generate(generator, info, node.get(1), trueActions);
-            offsetToNext = actionLength(trueActions, info);
+            generate(generator, info, node.get(1), actions);
         }
 
         if (count == 3) {
-            node.get(2).discardValues();
-            generate(generator, info, node.get(2), falseActions);
-            offsetToEnd = actionLength(falseActions, info);
-
-            addJump = offsetToEnd != 0;
-        }
+            boolean isEmpty = actions.size() == start;
 
-        if (trueActions.size() > 0) {
-            SWFEncodeable action = (trueActions.get(trueActions.size() - 1));
+            // The jump over the else clause is dropped if it is empty.
+            Branch jump = new Branch(ActionTypes.JUMP, end, true);
+            actions.add(jump);
+            next.bind(actions.size());
 
-            if (action instanceof ActionObject) {
-                ActionObject actionObj = (ActionObject) action;
-                if (actionObj.getType() == 256 || actionObj.getType() == 257) {
-                    addJump = true;
-
-                    if (falseActions.size() == 0)
-                        offsetToNext -= 5;
-                }
-            }
-        }
+            node.get(2).discardValues();
+            generate(generator, info, node.get(2), actions);
 
-        // Special case
-        if (count == 3 && trueActions.isEmpty() && falseActions.isEmpty()) {
-            trueActions.add(new Jump(0));
-            offsetToNext = 0;
-            addJump = true;
+            // Special case
+            if (isEmpty && actions.size() == next.getIndex())
+                jump.setOptional(false);
+        } else {
+            next.bind(actions.size());
         }
-
-        if (addJump)
-            offsetToNext += 5; // Length of jump tag
-
-        generate(generator, info, node.get(0), actions);
-
-        actions.add(BasicAction.fromInt(ActionTypes.LOGICAL_NOT));
-        actions.add(new If(offsetToNext));
-
-        actions.addAll(trueActions);
-
-        if (addJump == true && offsetToEnd > 0)
-            actions.add(new Jump(offsetToEnd));
-
-        actions.addAll(falseActions);
+        end.bind(actions.size());
     }
 
     private void generateDo(final Generator generator, final Context info, final Node node, List<Action> actions) {
-        ArrayList<Action> blockActions = new ArrayList<Action>();
-        int blockLength = 0;
-
-        ArrayList<Action> conditionActions = new ArrayList<Action>();
-        int conditionLength = 0;
-
-        node.get(0).discardValues();
-        generate(generator, info, node.get(0), blockActions);
+        Label start = new Label();
+        Label next = new Label();
+        Label end = new Label();
 
-        generate(generator, info, node.get(1), conditionActions);
+        start.bind(actions.size());
 
-        blockLength = actionLength(blockActions, info);
-        conditionLength = actionLength(conditionActions, info);
+        info.breaks.push(end);
+        info.continues.push(next);
 
-        conditionLength += 5; // include following if statement
-
-        conditionActions.add(new If(-(blockLength + conditionLength))); // includes
-                                                                        // if
-
-        int currentLength = 0;
-
-        // Replace any break and continue place holders with jump statements.
-
-        com.flagstone.transform.coder.Context ctxt = new com.flagstone.transform.coder.Context();
+        node.get(0).discardValues();
+        generate(generator, info, node.get(0), actions);
 
-        for (int i = 0; i < blockActions.size(); i++) {
-            Action currentAction = blockActions.get(i);
+        info.breaks.pop();
+        info.continues.pop();
 
-            currentLength += currentAction.prepareToEncode(ctxt);
+        next.bind(actions.size());
 
-            if (currentAction instanceof ActionObject) {
-                ActionObject actionObj = (ActionObject) currentAction;
-                if (actionObj.getType() == 256) {
-                    blockActions.set(i, new Jump(blockLength - currentLength
-                            + conditionLength));
-                }
+        generate(generator, info, node.get(1), actions);
+        actions.add(new Branch(ActionTypes.IF, start));
 
-                if (actionObj.getType() == 257) {
-                    blockActions.set(i, new Jump(blockLength - currentLength));
-                }
-            }
-        }
-        actions.addAll(blockActions);
-        actions.addAll(conditionActions);
+        end.bind(actions.size());
     }
 
     private void generateWhile(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
 
-        ArrayList<Action> blockActions = new ArrayList<Action>();
-        int blockLength = 0;
-
-        ArrayList<Action> conditionActions = new ArrayList<Action>();
-        int conditionLength = 0;
-
-        if (count == 2) {
-            node.get(1).discardValues();
-            generate(generator, info, node.get(1), blockActions);
-        }
-        blockLength = actionLength(blockActions, info);
-
-        generate(generator, info, node.get(0), conditionActions);
-        conditionActions.add(BasicAction.fromInt(ActionTypes.LOGICAL_NOT));
-        conditionActions.add(new If(blockLength + 5)); // includes loop jump
-        conditionLength = actionLength(conditionActions, info);
-
-        blockActions.add(new Jump(-(conditionLength + blockLength + 5)));
-        blockLength += 5;
-
-        int currentLength = conditionLength;
+        Label start = new Label();
+        Label end = new Label();
 
-        // Replace any break and continue place holders with jump statements.
-
-        com.flagstone.transform.coder.Context ctxt = new com.flagstone.transform.coder.Context();
+        start.bind(actions.size());
 
-        for (int i = 0; i < blockActions.size(); i++) {
-            Action currentAction = blockActions.get(i);
+        generate(generator, info, node.get(0), actions);
+        actions.add(BasicAction.fromInt(ActionTypes.LOGICAL_NOT));
+        actions.add(new Branch(ActionTypes.IF, end));
 
-            currentLength += currentAction.prepareToEncode(ctxt);
+        if (count == 2) {
+            info.breaks.push(end);
+            info.continues.push(start);
 
-            if (currentAction instanceof ActionObject) {
-                ActionObject actionObject = (ActionObject) currentAction;
-                if (actionObject.getType() == 256)
-                    blockActions.set(i, new Jump(
-                            (blockLength + conditionLength) - currentLength));
+            node.get(1).discardValues();
+            generate(generator, info, node.get(1), actions);
 
-                if (actionObject.getType() == 257)
-                    blockActions.set(i, new Jump(-currentLength));
-            }
+            info.breaks.pop();
+            info.continues.pop();
         }
-        actions.addAll(conditionActions);
-        actions.addAll(blockActions);
+
+        actions.add(new Branch(ActionTypes.JUMP, start));
+        end.bind(actions.size());
     }
 
     private void generateFor(final Generator generator, final Context info, final Node node, List<Action> actions) {
-        ArrayList<Action> initializeActions = new ArrayList<Action>();
-        ArrayList<Action> conditionActions = new ArrayList<Action>();
-        ArrayList<Action> iteratorActions = new ArrayList<Action>();
-        ArrayList<Action> blockActions = new ArrayList<Action>();
-
-        //int initializeLength = 0;
-        int conditionLength = 0;
-        int blockLength = 0;
-        int iteratorLength = 0;
+        Label start = new Label();
+        Label next = new Label();
+        Label end = new Label();
 
         if (node.get(0).getType() != NodeType.NO_OP) {
-            generate(generator, info, node.get(0), initializeActions);
-            //initializeLength = actionLength(initializeActions, info);
+            generate(generator, info, node.get(0), actions);
         }
+
+        start.bind(actions.size());
+
         if (node.get(1).getType() != NodeType.NO_OP) {
-            generate(generator, info, node.get(1), conditionActions);
-            conditionLength = actionLength(conditionActions, info);
-        }
-        if (node.get(2).getType() != NodeType.NO_OP) {
-            node.get(2).discardValues();
-            generate(generator, info, node.get(2), iteratorActions);
-            iteratorLength = actionLength(iteratorActions, info);
-        }
-        if (node.get(3).getType() != NodeType.NO_OP) {
-            node.get(3).discardValues();
-            generate(generator, info, node.get(3), blockActions);
-            blockLength = actionLength(blockActions, info);
+            generate(generator, info, node.get(1), actions);
         }
 
-        // Add the if test with jump to end if false. Jump include block and
-        // iterator actions plus a jump at the end to go back to the condition
-        // actions
+        // Add the if test with jump to end if false.
 
-        if (conditionActions.size() > 0) {
-            Action lastAction = conditionActions
-                    .get(conditionActions.size() - 1);
+        if (actions.size() > start.getIndex()) {
+            Action lastAction = actions.get(actions.size() - 1);
 
             if (lastAction instanceof Push) {
                 List<Object> values = ((Push) lastAction).getValues();
@@ -1323,84 +1406,61 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 if (lastValue instanceof Boolean) {
                     if (((Boolean) lastValue).booleanValue()) {
                         values.set(lastIndex, new Boolean(false));
-                        conditionActions.add(new If(blockLength
-                                + iteratorLength + 5));
-                        conditionLength += 5;
+                        actions.add(new Branch(ActionTypes.IF, end));
                     }
                 } else if (lastValue instanceof Integer) {
                     if (((Integer) lastValue).intValue() > 0) {
                         values.set(lastIndex, new Integer(0));
-                        conditionActions.add(new If(blockLength
-                                + iteratorLength + 5));
-                        conditionLength += 5;
+                        actions.add(new Branch(ActionTypes.IF, end));
                     }
                 } else if (lastValue instanceof Double) {
                     if (((Double) lastValue).doubleValue() > 0.0) {
                         values.set(lastIndex, new Double(0));
-                        conditionActions.add(new If(blockLength
-                                + iteratorLength + 5));
-                        conditionLength += 5;
+                        actions.add(new Branch(ActionTypes.IF, end));
                     }
                 } else if (lastValue instanceof String) {
                     if (((String) lastValue).equals("0") == false) {
                         values.set(lastIndex, "0");
-                        conditionActions.add(new If(blockLength
-                                + iteratorLength + 5));
-                        conditionLength += 5;
+                        actions.add(new Branch(ActionTypes.IF, end));
                     }
                 }
-                conditionActions.set(lastIndex, new Push(values));
+                actions.set(start.getIndex() + lastIndex, new Push(values));
             } else {
-                conditionActions.add(BasicAction
+                actions.add(BasicAction
                         .fromInt(ActionTypes.LOGICAL_NOT));
-                conditionActions.add(new If(blockLength + iteratorLength + 5));
-                conditionLength += 6;
+                actions.add(new Branch(ActionTypes.IF, end));
             }
         }
 
-        // Add the jump to the start of the condition block
-
-        iteratorLength += 5;
-        iteratorActions.add(new Jump(
-                -(conditionLength + blockLength + iteratorLength)));
-
-        // Replace any break and continue place holders with jump statements.
-
-        int currentLength = conditionLength;
-        com.flagstone.transform.coder.Context ctxt = new com.flagstone.transform.coder.Context();
+        if (node.get(3).getType() != NodeType.NO_OP) {
+            info.breaks.push(end);
+            info.continues.push(next);
 
-        for (int i = 0; i < blockActions.size(); i++) {
-            Action currentAction = blockActions.get(i);
+            node.get(3).discardValues();
+            generate(generator, info, node.get(3), actions);
 
-            currentLength += currentAction.prepareToEncode(ctxt);
+            info.breaks.pop();
+            info.continues.pop();
+        }
 
-            if (currentAction instanceof ActionObject) {
-                ActionObject actionObject = (ActionObject) currentAction;
-                if (actionObject.getType() == 256)
-                    blockActions.set(i, new Jump(
-                            (blockLength + conditionLength) - currentLength
-                                    + iteratorLength));
+        next.bind(actions.size());
 
-                if (actionObject.getType() == 257)
-                    blockActions.set(i, new Jump(
-                            (blockLength + conditionLength) - currentLength));
-            }
+        if (node.get(2).getType() != NodeType.NO_OP) {
+            node.get(2).discardValues();
+            generate(generator, info, node.get(2), actions);
         }
 
-        actions.addAll(initializeActions);
-        actions.addAll(conditionActions);
-        actions.addAll(blockActions);
-        actions.addAll(iteratorActions);
+        // Add the jump to the start of the condition block
+
+        actions.add(new Branch(ActionTypes.JUMP, start));
+        end.bind(actions.size());
     }
 
     private void generateForIn(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
 
-        ArrayList<Action> conditionActions = new ArrayList<Action>();
-        ArrayList<Action> blockActions = new ArrayList<Action>();
-
-        int conditionLength = 0;
-        int blockLength = 0;
+        Label start = new Label();
+        Label end = new Label();
 
         // Push all the attributes of the specified object onto the stack
 
@@ -1417,63 +1477,39 @@ public class NodeGenerator extends AbstractCodeGenerator {
             actions.add(BasicAction.fromInt(ActionTypes.ENUMERATE_OBJECT));
             break;
         }
-        // Set the enumerator variable with the current attribute
-
-        addReference(generator, info, blockActions, node.get(0).getValue());
-        addLiteral(blockActions, new RegisterIndex(0));
-        blockActions.add(BasicAction.fromInt(ActionTypes.SET_VARIABLE));
-
-        // Translate the body of the for..in statement
-
-        if (count == 3) {
-            node.get(2).discardValues();
-            generate(generator, info, node.get(2), blockActions);
-        }
-
-        // Calculate the length of the block in bytes
-
-        blockLength = actionLength(blockActions, info);
 
         // Translate the clause of the for..in statement
 
-        conditionActions.add(new RegisterCopy(0));
-        addLiteral(conditionActions, Null.getInstance());
-        conditionActions.add(BasicAction.fromInt(ActionTypes.EQUALS));
-        conditionActions.add(new If(blockLength + 5)); // includes loop jump
-
-        // Calculate the length of the condition actions in bytes
-
-        conditionLength = actionLength(conditionActions, info);
-
-        // Add the jump to the start of the condition block
-
-        blockActions.add(new Jump(-(conditionLength + blockLength + 5)));
-        blockLength += 5;
+        start.bind(actions.size());
 
-        // Replace any break and continue place holders with jump statements.
+        actions.add(new RegisterCopy(0));
+        addLiteral(actions, Null.getInstance());
+        actions.add(BasicAction.fromInt(ActionTypes.EQUALS));
+        actions.add(new Branch(ActionTypes.IF, end));
 
-        int currentLength = conditionLength;
+        // Set the enumerator variable with the current attribute
 
-        com.flagstone.transform.coder.Context ctxt = new com.flagstone.transform.coder.Context();
+        addReference(generator, info, actions, node.get(0).getValue());
+        addLiteral(actions, new RegisterIndex(0));
+        actions.add(BasicAction.fromInt(ActionTypes.SET_VARIABLE));
 
-        for (int i = 0; i < blockActions.size(); i++) {
-            Action currentAction = blockActions.get(i);
+        // Translate the body of the for..in statement
 
-            currentLength += currentAction.prepareToEncode(ctxt);
+        if (count == 3) {
+            info.breaks.push(end);
+            info.continues.push(start);
 
-            if (currentAction instanceof ActionObject) {
-                ActionObject actionObject = (ActionObject) currentAction;
-                if (actionObject.getType() == 256)
-                    blockActions.set(i, new Jump(blockLength - currentLength));
+            node.get(2).discardValues();
+            generate(generator, info, node.get(2), actions);
 
-                if (actionObject.getType() == 257)
-                    blockActions.set(i, new Jump(
-                            -(conditionLength + currentLength)));
-            }
+            info.breaks.pop();
+            info.continues.pop();
         }
 
-        actions.addAll(conditionActions);
-        actions.addAll(blockActions);
+        // Add the jump to the start of the condition block
+
+        actions.add(new Branch(ActionTypes.JUMP, start));
+        end.bind(actions.size());
     }
 
     private void generateWith(final Generator generator, final Context info, final Node node, List<Action> actions) {
@@ -1483,133 +1519,76 @@ public class NodeGenerator extends AbstractCodeGenerator {
         for (int i = 1; i < count; i++)
             node.get(i).discardValues();
 
+        openBlock(info);
+
         for (int i = 1; i < count; i++)
             generate(generator, info, node.get(i), array);
 
+        closeBlock(info, array);
+
         generate(generator, info, node.get(0), actions);
 
         actions.add(new With(array));
     }
 
-    @SuppressWarnings("unchecked")
     private void generateSwitch(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
-
         int listCount = 0;
-        int labelCount = 0;
-
-        int defaultIndex = -1;
-        int defaultTarget = -1;
 
         for (int i = 0; i < count; i++) {
             if (node.get(i).getType() == NodeType.LIST) {
                 listCount += 1;
-            } else if (node.get(i).getType() == NodeType.LABEL) {
-                if (node.get(i).getChildren().isEmpty()) {
-                    defaultIndex = labelCount;
-                    defaultTarget = listCount;
-                }
-                labelCount += 1;
             }
         }
 
-        ArrayList<Action> labelArray[] = new ArrayList[labelCount];
-        int labelLength[] = new int[labelCount];
-        int labelTarget[] = new int[labelCount];
-
-        ArrayList<Action> listArray[] = new ArrayList[listCount];
-        int listLength[] = new int[listCount];
-
-        int offsetToEnd[] = new int[listCount];
-        int offsetFromStart[] = new int[listCount];
-
-        for (int i = 0; i < labelCount; i++) {
-            labelArray[i] = new ArrayList<Action>();
-        }
-
-        for (int i = 0; i < listCount; i++) {
-            listArray[i] = new ArrayList<Action>();
+        /*
+         * A label marks the start of the statements for each case. The last
+         * label marks the end of the switch statement.
+         */
+        Label[] labels = new Label[listCount + 1];
 
-            offsetToEnd[i] = 0;
-            offsetFromStart[i] = 0;
+        for (int i = 0; i <= listCount; i++) {
+            labels[i] = new Label();
         }
 
         int listIndex = 0;
         int labelIndex = 0;
 
-        for (int i = 0; i < count; i++) {
+        generate(generator, info, node.get(0), actions);
+
+        for (int i = 1; i < count; i++) {
             if (node.get(i).getType() == NodeType.LABEL) {
-                if (!node.get(i).getChildren().isEmpty()) {
+                if (node.get(i).count() > 0) {
                     if (labelIndex == 0)
-                        labelArray[labelIndex].add(new RegisterCopy(0));
+                        actions.add(new RegisterCopy(0));
                     else
-                        addLiteral(labelArray[labelIndex], new RegisterIndex(0));
-                }
+                        addLiteral(actions, new RegisterIndex(0));
 
-                generate(generator, info, node.get(i), labelArray[labelIndex]);
-                labelLength[labelIndex] = actionLength(labelArray[labelIndex],
-                        info);
-                labelTarget[labelIndex] = listIndex;
+                    generate(generator, info, node.get(i), actions);
+                    actions.add(BasicAction.fromInt(ActionTypes.STRICT_EQUALS));
+                    actions.add(new Branch(ActionTypes.IF, labels[listIndex]));
+                } else {
+                    actions.add(new Branch(ActionTypes.JUMP, labels[listIndex]));
+                }
                 labelIndex += 1;
             } else if (node.get(i).getType() == NodeType.LIST) {
-                generate(generator, info, node.get(i), listArray[listIndex]);
-                listLength[listIndex] = actionLength(listArray[listIndex], info);
                 listIndex += 1;
             }
         }
 
-        for (int i = listCount - 2; i >= 0; i--) {
-            offsetToEnd[i] = offsetToEnd[i + 1] + listLength[i + 1];
-        }
-
-        for (int i = 1; i < listCount; i++) {
-            offsetFromStart[i] = offsetFromStart[i - 1] + listLength[i - 1];
-        }
-
-        for (int i = 0; i < labelCount; i++) {
-            labelLength[i] += (i == defaultIndex) ? 0 : 6;
-        }
-
-        if (defaultIndex != -1)
-            labelLength[defaultIndex] = 5;
-
-        int index = 0;
-
-        generate(generator, info, node.get(0), actions);
+        info.breaks.push(labels[listCount]);
+        listIndex = 0;
 
         for (int i = 1; i < count; i++) {
-            if (node.get(i).getType() == NodeType.LABEL) {
-                if (!node.get(i).getChildren().isEmpty()) {
-                    int offset = 0;
-
-                    for (int j = index + 1; j < labelCount; j++)
-                        offset += labelLength[j];
-
-                    actions.addAll(labelArray[index]);
-                    actions.add(BasicAction.fromInt(ActionTypes.STRICT_EQUALS));
-                    actions.add(new If(offsetFromStart[labelTarget[index]]
-                            + offset));
-                } else {
-                    actions.add(new Jump(offsetFromStart[defaultTarget]));
-                }
-                index += 1;
+            if (node.get(i).getType() == NodeType.LIST) {
+                labels[listIndex++].bind(actions.size());
+                generate(generator, info, node.get(i), actions);
             }
         }
 
-        for (int i = 0; i < listCount; i++) {
-            Action action = (listArray[i].get(listArray[i].size() - 1));
-
-            if (action instanceof ActionObject) {
-                if (((ActionObject) action).getType() == 256) {
-                    listArray[i].remove(listArray[i].size() - 1);
-                    listArray[i].add(new Jump(offsetToEnd[i]));
-                }
-            }
-
-            actions.addAll(listArray[i]);
-        }
+        info.breaks.pop();
+        labels[listCount].bind(actions.size());
     }
-
     private void generateLabel(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
 
@@ -1630,13 +1609,14 @@ public class NodeGenerator extends AbstractCodeGenerator {
         for (int i = 0; i < count; i++) {
             actionArray[i] = new ArrayList<Action>();
 
+            openBlock(info);
             generate(generator, info, node.get(i), actionArray[i]);
+            closeBlock(info, actionArray[i]);
         }
 
         actions.add(new ExceptionHandler(101, actionArray[0], actionArray[1],
                 actionArray[2]));
     }
-
     private void generateClauses(final Generator generator, final Context info, final Node node, List<Action> actions) {
         int count = node.count();
 
@@ -1653,10 +1633,16 @@ public class NodeGenerator extends AbstractCodeGenerator {
 
         switch (node.getType()) {
         case BREAK:
-            actions.add(new ActionObject(256, new byte[2]));
+            if (info.breaks.isEmpty() || info.breaks.peek() == null)
+                actions.add(new ActionObject(256, new byte[2]));
+            else
+                actions.add(new Branch(ActionTypes.JUMP, info.breaks.peek()));
             break;
         case CONTINUE:
-            actions.add(new ActionObject(257, new byte[2]));
+            if (info.continues.isEmpty() || info.continues.peek() == null)
+                actions.add(new ActionObject(257, new byte[2]));
+            else
+                actions.add(new Branch(ActionTypes.JUMP, info.continues.peek()));
             break;
         case RETURN:
             if (count == 0) {
@@ -1733,27 +1719,21 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 actions.add(BasicAction.fromInt(ActionTypes.POP));
             break;
         case INTEGER:
-        	if (node.getValue().toLowerCase().startsWith("0x")) {
-        		addLiteral(actions, Integer.valueOf(node.getValue().substring(2), 16));
-        	} else {
-        		addLiteral(actions, Integer.valueOf(node.getValue()));
-        	}
+            addLiteral(actions, node.intValue());
+
             if (node.discardValue)
                 actions.add(BasicAction.fromInt(ActionTypes.POP));
             break;
         case DOUBLE:
-        	if (node.getValue().endsWith("e")) {
-        		node.setValue(node.getValue() + "0");
-        	}
-
-            int val = Double.valueOf(node.getValue()).intValue();
+            double number = node.doubleValue();
+            int val = (int) number;
 
             if (node.getValue().equals("-0.0")) {
-                addLiteral(actions, Double.valueOf(node.getValue()));
-            } else if (Double.valueOf(node.getValue()) == val) {
-                addLiteral(actions, Double.valueOf(node.getValue()).intValue());
+                addLiteral(actions, number);
+            } else if (number == val) {
+                addLiteral(actions, val);
             } else {
-                addLiteral(actions, Double.valueOf(node.getValue()));
+                addLiteral(actions, number);
             }
 
             if (node.discardValue)
@@ -1772,19 +1752,21 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 actions.add(BasicAction.fromInt(ActionTypes.POP));
             break;
         case IDENTIFIER:
-            if (constants.containsKey(node.getValue())) {
+            if (info.registers.containsKey(node.getValue())) {
+                addLiteral(actions, new RegisterIndex(info.registers.get(node.getValue())));
+            } else if (constants.containsKey(node.getValue())) {
                 if (node.getValue().equals("undefined"))
                     addLiteral(actions, Void.getInstance());
                 else
                     addLiteral(actions, constants.get(node.getValue()));
             } else if (propertyNames.containsKey(node.getValue())) {
-                if (info.context.contains("with")) {
+                if (info.isWithin(Scope.WITH)) {
                     addReference(generator, info, actions, node.getValue());
                     actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
-                } else if (info.context.contains("DefineObject")) {
+                } else if (info.isWithin(Scope.DEFINE_OBJECT)) {
                     addReference(generator, info, actions, node.getValue());
                     actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
-                } else if (info.context.contains("setProperty")) {
+                } else if (info.isWithin(Scope.SET_PROPERTY)) {
                     int pVal = (propertyNames.get(node.getValue())).intValue();
 
                     if (pVal >= 16 && pVal <= 21)
@@ -1858,7 +1840,10 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 List<Action> array = new ArrayList<Action>();
 
                 node.get(count - 1).discardValues();
+
+                openBlock(info);
                 generate(generator, info, node.get(count - 1), array);
+                closeBlock(info, array);
 
                 if (node.get(0).count() == 0) {
                     generate(generator, info, node.get(0), actions);
@@ -1876,6 +1861,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 generate(generator, info, node.get(1), actions);
 
                 actions.add(new SetTarget(""));
+            } else if (info.registerFunctions && info.version >= 7) {
+                generateFunction2(generator, info, node, node.getValue(), actions);
             } else {
                 List<String> functionArguments = new ArrayList<String>();
                 List<Action> functionActions = new ArrayList<Action>();
@@ -1892,13 +1879,21 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     }
                 }
                 node.get(last).discardValues();
+
+                openBlock(info);
                 generate(generator, info, node.get(last), functionActions);
+                closeBlock(info, functionActions);
 
                 actions.add(new NewFunction(node.getValue(), functionArguments,
                         functionActions));
             }
             break;
         case DEFINE_METHOD:
+            if (info.registerFunctions && info.version >= 7) {
+                generateFunction2(generator, info, node, "", actions);
+                break;
+            }
+
             List<String> methodArguments = new ArrayList<String>();
             List<Action> methodActions = new ArrayList<Action>();
 
@@ -1913,7 +1908,10 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 }
             }
             node.get(last).discardValues();
+
+            openBlock(info);
             generate(generator, info, node.get(last), methodActions);
+            closeBlock(info, methodActions);
 
             actions.add(new NewFunction("", methodArguments, methodActions));
             break;
@@ -1923,17 +1921,78 @@ public class NodeGenerator extends AbstractCodeGenerator {
             generate(generator, info, node.get(1), actions);
             break;
         case DEFINE_VARIABLE:
-            addReference(generator, info, actions, node.getValue());
-            actions.add(BasicAction.fromInt(ActionTypes.INIT_VARIABLE));
+            /*
+             * Variables stored in registers are created when the function
+             * is called so there is nothing to declare.
+             */
+            if (!info.registers.containsKey(node.getValue())) {
+                addReference(generator, info, actions, node.getValue());
+                actions.add(BasicAction.fromInt(ActionTypes.INIT_VARIABLE));
+            }
             break;
         default:
             break;
         }
     }
 
+    /*
+     * generateFunction2 defines a function using DefineFunction2 where the
+     * arguments and local variables are stored in registers rather than
+     * accessed by name. The registers allocated for the enclosing function,
+     * if any, are restored once the body has been generated since nested
+     * functions have their own set of registers.
+     */
+    private void generateFunction2(final Generator generator, final Context info, final Node node,
+            final String name, List<Action> actions) {
+        Registers registers = new Registers(node, reservedNames);
+        Map<String, Integer> enclosing = info.registers;
+        List<Action> functionActions = new ArrayList<Action>();
+        int last = node.count() - 1;
+
+        node.get(last).discardValues();
+
+        info.registers = registers.getRegisters();
+        openBlock(info);
+        generate(generator, info, node.get(last), functionActions);
+        closeBlock(info, functionActions);
+        info.registers = enclosing;
+
+        actions.add(new DefineFunction2(name, registers.getCount(),
+                registers.getFlags(), registers.getArguments(),
+                registers.getArgumentRegisters(), functionActions));
+    }
+
+    /*
+     * registerFor returns the register where the variable referenced by a
+     * node is stored or null if the variable is accessed by name.
+     */
+    private Integer registerFor(final Context info, final Node node) {
+        if (node.getType() == NodeType.IDENTIFIER
+                || node.getType() == NodeType.DEFINE_VARIABLE) {
+            return info.registers.get(node.getValue());
+        }
+        return null;
+    }
+
     private void generateUnary(final Generator generator, final Context info, final Node node, List<Action> actions) {
         Action lastAction = null;
 
+        switch (node.getType()) {
+        case PRE_INC:
+        case PRE_DEC:
+        case POST_INC:
+        case POST_DEC:
+            Integer register = registerFor(info, node.get(0));
+
+            if (register != null) {
+                generateRegisterUpdate(node, register, actions);
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+
         switch (node.getType()) {
         case PRE_INC:
             generate(generator, info, node.get(0), actions);
@@ -2090,11 +2149,34 @@ public class NodeGenerator extends AbstractCodeGenerator {
         }
     }
 
+    /*
+     * generateRegisterUpdate increments or decrements a variable stored in a
+     * register, leaving the value of the expression on the stack if it is
+     * used.
+     */
+    private void generateRegisterUpdate(final Node node, final int register, List<Action> actions) {
+        boolean post = node.getType() == NodeType.POST_INC || node.getType() == NodeType.POST_DEC;
+
+        if (post && node.discardValue == false)
+            addLiteral(actions, new RegisterIndex(register));
+
+        addLiteral(actions, new RegisterIndex(register));
+
+        if (node.getType() == NodeType.PRE_INC || node.getType() == NodeType.POST_INC)
+            actions.add(BasicAction.fromInt(ActionTypes.INCREMENT));
+        else
+            actions.add(BasicAction.fromInt(ActionTypes.DECREMENT));
+
+        actions.add(new RegisterCopy(register));
+
+        if (post || node.discardValue)
+            actions.add(BasicAction.fromInt(ActionTypes.POP));
+    }
+
     private void generateBinary(final Generator generator, final Context info, final Node node, List<Action> actions) {
-        List<Action> array = new ArrayList<Action>();
+        Label end = new Label();
 
         int count = node.count();
-        int offset = 0;
 
         /*
          * For most node types we want to generate the actions for the child
@@ -2212,30 +2294,25 @@ public class NodeGenerator extends AbstractCodeGenerator {
             actions.add(BasicAction.fromInt(ActionTypes.LOGICAL_OR));
             break;
         case LOGICAL_AND:
-            array.add(BasicAction.fromInt(ActionTypes.POP));
-
-            generate(generator, info, node.get(1), array);
-            offset = actionLength(array, info);
-
             generate(generator, info, node.get(0), actions);
 
             actions.add(BasicAction.fromInt(ActionTypes.DUPLICATE));
             actions.add(BasicAction.fromInt(ActionTypes.LOGICAL_NOT));
+            actions.add(new Branch(ActionTypes.IF, end));
+            actions.add(BasicAction.fromInt(ActionTypes.POP));
 
-            actions.add(new If(offset));
-            actions.addAll(array);
+            generate(generator, info, node.get(1), actions);
+            end.bind(actions.size());
             break;
         case LOGICAL_OR:
-            array.add(BasicAction.fromInt(ActionTypes.POP));
-
-            generate(generator, info, node.get(1), array);
-            offset = actionLength(array, info);
-
             generate(generator, info, node.get(0), actions);
+
             actions.add(BasicAction.fromInt(ActionTypes.DUPLICATE));
+            actions.add(new Branch(ActionTypes.IF, end));
+            actions.add(BasicAction.fromInt(ActionTypes.POP));
 
-            actions.add(new If(offset));
-            actions.addAll(array);
+            generate(generator, info, node.get(1), actions);
+            end.bind(actions.size());
             break;
         case INSTANCEOF:
             actions.add(BasicAction.fromInt(ActionTypes.INSTANCEOF));
@@ -2302,50 +2379,45 @@ public class NodeGenerator extends AbstractCodeGenerator {
     }
 
     private void generateSelect(final Generator generator, final Context info, final Node node, List<Action> actions) {
-        List<Action> trueActions = new ArrayList<Action>();
-        int offsetToNext = 0;
-
-        List<Action> falseActions = new ArrayList<Action>();
-        int offsetToEnd = 0;
-
-        generate(generator, info, node.get(2), falseActions);
-
-        offsetToNext = actionLength(falseActions, info);
-        offsetToNext += 5; // Length of jump tag
-
-        generate(generator, info, node.get(1), trueActions);
-
-        offsetToEnd = actionLength(trueActions, info);
+        Label next = new Label();
+        Label end = new Label();
 
         generate(generator, info, node.get(0), actions);
+        actions.add(new Branch(ActionTypes.IF, next));
 
-        actions.add(new If(offsetToNext));
-        actions.addAll(falseActions);
+        generate(generator, info, node.get(2), actions);
+        actions.add(new Branch(ActionTypes.JUMP, end));
 
-        actions.add(new Jump(offsetToEnd));
-
-        actions.addAll(trueActions);
+        next.bind(actions.size());
+        generate(generator, info, node.get(1), actions);
+        end.bind(actions.size());
 
         if (node.discardValue)
             actions.add(BasicAction.fromInt(ActionTypes.POP));
     }
-
     private void generateAssignment(final Generator generator, final Context info, final Node node, List<Action> actions) {
-        generate(generator, info, node.get(0), actions);
+        Integer register = registerFor(info, node.get(0));
+        Action lastAction = null;
 
-        Action lastAction = actions.get(actions.size() - 1);
+        if (register == null) {
+            generate(generator, info, node.get(0), actions);
 
-        if (lastAction == BasicAction.GET_VARIABLE)
-            actions.remove(actions.size() - 1);
-        else if (lastAction == BasicAction.GET_ATTRIBUTE)
-            actions.remove(actions.size() - 1);
-        else if (lastAction == BasicAction.GET_PROPERTY)
-            actions.remove(actions.size() - 1);
-        else if (lastAction == BasicAction.INIT_VARIABLE)
-            actions.remove(actions.size() - 1);
+            lastAction = actions.get(actions.size() - 1);
 
-        if (node.getType() != NodeType.ASSIGN)
-            generate(generator, info, node.get(0), actions);
+            if (lastAction == BasicAction.GET_VARIABLE)
+                actions.remove(actions.size() - 1);
+            else if (lastAction == BasicAction.GET_ATTRIBUTE)
+                actions.remove(actions.size() - 1);
+            else if (lastAction == BasicAction.GET_PROPERTY)
+                actions.remove(actions.size() - 1);
+            else if (lastAction == BasicAction.INIT_VARIABLE)
+                actions.remove(actions.size() - 1);
+
+            if (node.getType() != NodeType.ASSIGN)
+                generate(generator, info, node.get(0), actions);
+        } else if (node.getType() != NodeType.ASSIGN) {
+            addLiteral(actions, new RegisterIndex(register));
+        }
 
         generate(generator, info, node.get(1), actions);
 
@@ -2387,6 +2459,20 @@ public class NodeGenerator extends AbstractCodeGenerator {
             break;
         }
 
+        /*
+         * The value of the assignment is only left on the stack when it is
+         * assigned to another variable.
+         */
+        if (register != null) {
+            actions.add(new RegisterCopy(register));
+
+            if (node.getType() != NodeType.ASSIGN || node.getParent() == null
+                    || node.getParent().getType() != NodeType.ASSIGN
+                    || node.get(0).getType() == NodeType.DEFINE_VARIABLE)
+                actions.add(BasicAction.fromInt(ActionTypes.POP));
+            return;
+        }
+
         if (node.getType() == NodeType.ASSIGN && node.getParent() != null
                 && (node.getParent().getType() == NodeType.LIST || node.getParent().getType() == NodeType.ASSIGN)) {
             if (node.get(0).getType() != NodeType.DEFINE_VARIABLE) {
@@ -2424,29 +2510,38 @@ public class NodeGenerator extends AbstractCodeGenerator {
         String name = node.getValue();
         int count = node.count();
 
-        if (functions.containsKey(name.toLowerCase())) {
-            if (node.getValue().toLowerCase().equals("call")) {
+        final Builtin builtin = Builtin.of(node);
+
+        if (builtin != null && builtin.isAction()) {
+            Action lastAction;
+            int index;
+
+            switch (builtin) {
+            case CALL:
                 generate(generator, info, node.get(0), actions);
 
-                Action lastAction = actions.get(actions.size() - 1);
+                lastAction = actions.get(actions.size() - 1);
 
                 if (lastAction == BasicAction.GET_VARIABLE)
                     actions.remove(actions.size() - 1);
 
                 actions.add(Call.getInstance());
-            } else if (node.getValue().toLowerCase().equals("chr")) {
+                break;
+            case CHR:
                 generate(generator, info, node.get(0), actions);
                 actions.add(BasicAction.fromInt(ActionTypes.ASCII_TO_CHAR));
-            } else if (node.getValue().toLowerCase().equals("delete")) {
+                break;
+            case DELETE:
                 generate(generator, info, node.get(0), actions);
 
-                Action lastAction = actions.get(actions.size() - 1);
+                lastAction = actions.get(actions.size() - 1);
 
                 if (lastAction == BasicAction.GET_VARIABLE)
                     actions.remove(actions.size() - 1);
 
                 actions.add(BasicAction.fromInt(ActionTypes.DELETE));
-            } else if (node.getValue().toLowerCase().equals("duplicatemovieclip")) {
+                break;
+            case DUPLICATE_MOVIE_CLIP:
                 generate(generator, info, node.get(0), actions);
                 generate(generator, info, node.get(1), actions);
 
@@ -2465,10 +2560,12 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     actions.add(BasicAction.fromInt(ActionTypes.ADD));
                 }
                 actions.add(BasicAction.fromInt(ActionTypes.CLONE_SPRITE));
-            } else if (node.getValue().toLowerCase().equals("eval")) {
+                break;
+            case EVAL:
                 generate(generator, info, node.get(0), actions);
                 actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
-            } else if (node.getValue().toLowerCase().equals("fscommand")) {
+                break;
+            case FSCOMMAND:
                 boolean isCommandString = node.get(0).getType() == NodeType.STRING
                         && node.get(0).getValue() != null;
                 boolean isArgumentString = false;
@@ -2507,7 +2604,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
 
                     actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_LEVEL));
                 }
-            } else if (node.getValue().toLowerCase().equals("getproperty")) {
+                break;
+            case GET_PROPERTY:
                 String propertyName = node.get(1).getValue();
                 int pVal = (propertyNames.get(propertyName)).intValue();
 
@@ -2519,12 +2617,14 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 else
                     addLiteral(actions, new Property(pVal));
                 actions.add(BasicAction.fromInt(ActionTypes.GET_PROPERTY));
-            } else if (node.getValue().toLowerCase().equals("gettimer")) {
+                break;
+            case GET_TIMER:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.GET_TIME));
-            } else if (node.getValue().toLowerCase().equals("geturl")) {
+                break;
+            case GET_URL:
                 switch (count) {
                 case 1:
                     if (node.get(0).getType() == NodeType.STRING
@@ -2568,11 +2668,13 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 default:
                     break;
                 }
-            } else if (node.getValue().toLowerCase().equals("getversion")) {
+                break;
+            case GET_VERSION:
                 addLiteral(actions, "/:$version");
                 actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
-            } else if (node.getValue().toLowerCase().equals("gotoandplay")) {
-                int index = count - 1;
+                break;
+            case GOTO_AND_PLAY:
+                index = count - 1;
 
                 if (info.context.firstElement().toString().equals("MovieClip")) {
                     if (node.get(index).getType() == NodeType.INTEGER) {
@@ -2612,8 +2714,9 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         actions.add(new GotoFrame2(0, true));
                     }
                 }
-            } else if (node.getValue().toLowerCase().equals("gotoandstop")) {
-                int index = count - 1;
+                break;
+            case GOTO_AND_STOP:
+                index = count - 1;
 
                 if (info.context.firstElement().toString().equals("MovieClip")) {
                     if (node.get(index).getType() == NodeType.INTEGER) {
@@ -2651,17 +2754,20 @@ public class NodeGenerator extends AbstractCodeGenerator {
                         actions.add(new GotoFrame2(0, false));
                     }
                 }
-            } else if (node.getValue().toLowerCase().equals("int")) {
+                break;
+            case INT:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.TO_INTEGER));
-            } else if (node.getValue().toLowerCase().equals("length")) {
+                break;
+            case LENGTH:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.STRING_LENGTH));
-            } else if (node.getValue().toLowerCase().equals("loadmovie")) {
+                break;
+            case LOAD_MOVIE:
                 switch (count) {
                 case 2:
                     if (node.get(0).getValue() != null
@@ -2693,7 +2799,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 default:
                     break;
                 }
-            } else if (node.getValue().toLowerCase().equals("loadvariables")) {
+                break;
+            case LOAD_VARIABLES:
                 switch (count) {
                 case 2:
                     generate(generator, info, node.get(0), actions);
@@ -2717,53 +2824,58 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 default:
                     break;
                 }
-            } else if (node.getValue().toLowerCase().equals("mbchr")) {
+                break;
+            case MB_CHR:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.MB_ASCII_TO_CHAR));
-            } else if (node.getValue().toLowerCase().equals("mbord")) {
+                break;
+            case MB_ORD:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.MB_CHAR_TO_ASCII));
-            } else if (node.getValue().toLowerCase().equals("mbsubstring")) {
+                break;
+            case MB_SUBSTRING:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.MB_STRING_EXTRACT));
-            } else if (node.getValue().toLowerCase().equals("nextframe")) {
+                break;
+            case NEXT_FRAME:
                 actions.add(BasicAction.fromInt(ActionTypes.NEXT_FRAME));
-            } else if (node.getValue().toLowerCase().equals("nextscene")) {
+                break;
+            case NEXT_SCENE:
                 actions.add(new GotoFrame(0));
-            } else if (node.getValue().toLowerCase().equals("number")) {
+                break;
+            case NUMBER:
                 generate(generator, info, node.get(0), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.TO_NUMBER));
-            } else if (node.getValue().toLowerCase().equals("ord")) {
+                break;
+            case ORD:
                 for (int i = count - 1; i >= 0; i--)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.CHAR_TO_ASCII));
-            } else if (node.getValue().toLowerCase().equals("parseint")) {
-                for (int i = count - 1; i >= 0; i--)
-                    generate(generator, info, node.get(i), actions);
-
-                addLiteral(actions, count);
-                addReference(generator, info, actions, name);
-                actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
-            } else if (node.getValue().toLowerCase().equals("play")) {
+                break;
+            case PLAY:
                 actions.add(BasicAction.fromInt(ActionTypes.PLAY));
-            } else if (node.getValue().toLowerCase().equals("prevframe")) {
+                break;
+            case PREV_FRAME:
                 actions.add(BasicAction.fromInt(ActionTypes.PREV_FRAME));
-            } else if (node.getValue().toLowerCase().equals("prevscene")) {
+                break;
+            case PREV_SCENE:
                 actions.add(new GotoFrame(0));
-            } else if (node.getValue().toLowerCase().equals("print")) {
+                break;
+            case PRINT:
                 generate(generator, info, node.get(0), actions);
                 addReference(generator, info, actions, node.get(1).getValue());
                 actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
                 actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_LEVEL));
-            } else if (node.getValue().toLowerCase().equals("printnum")) {
+                break;
+            case PRINT_NUM:
                 addReference(generator, info, actions, node.get(1).getValue());
 
                 if (node.get(0).getType() == NodeType.IDENTIFIER) {
@@ -2774,12 +2886,14 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     generate(generator, info, node.get(0), actions);
                 }
                 actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_LEVEL));
-            } else if (node.getValue().toLowerCase().equals("printasbitmap")) {
+                break;
+            case PRINT_AS_BITMAP:
                 generate(generator, info, node.get(0), actions);
                 addReference(generator, info, actions, node.get(1).getValue());
                 actions.add(BasicAction.fromInt(ActionTypes.GET_VARIABLE));
                 actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_LEVEL));
-            } else if (node.getValue().toLowerCase().equals("printasbitmapnum")) {
+                break;
+            case PRINT_AS_BITMAP_NUM:
                 addReference(generator, info, actions, node.get(1).getValue());
 
                 if (node.get(0).getType() == NodeType.IDENTIFIER) {
@@ -2790,25 +2904,30 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     generate(generator, info, node.get(0), actions);
                 }
                 actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_LEVEL));
-            } else if (node.getValue().toLowerCase().equals("random")) {
+                break;
+            case RANDOM:
                 generate(generator, info, node.get(0), actions);
                 actions.add(BasicAction.fromInt(ActionTypes.RANDOM_NUMBER));
-            } else if (node.getValue().toLowerCase().equals("removemovieclip")) {
+                break;
+            case REMOVE_MOVIE_CLIP:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.REMOVE_SPRITE));
-            } else if (node.getValue().toLowerCase().equals("set")) {
+                break;
+            case SET:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.SET_VARIABLE));
-            } else if (node.getValue().toLowerCase().equals("setproperty")) {
+                break;
+            case SET_PROPERTY:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.SET_PROPERTY));
-            } else if (node.getValue().toLowerCase().equals("startdrag")) {
+                break;
+            case START_DRAG:
                 if (count > 2) {
                     generate(generator, info, node.get(2), actions);
                     generate(generator, info, node.get(3), actions);
@@ -2836,39 +2955,49 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 generate(generator, info, node.get(0), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.START_DRAG));
-            } else if (node.getValue().toLowerCase().equals("stop")) {
+                break;
+            case STOP:
                 actions.add(BasicAction.fromInt(ActionTypes.STOP));
-            } else if (node.getValue().toLowerCase().equals("stopallsounds")) {
+                break;
+            case STOP_ALL_SOUNDS:
                 actions.add(BasicAction.fromInt(ActionTypes.STOP_SOUNDS));
-            } else if (node.getValue().toLowerCase().equals("stopdrag")) {
+                break;
+            case STOP_DRAG:
                 actions.add(BasicAction.fromInt(ActionTypes.END_DRAG));
-            } else if (node.getValue().toLowerCase().equals("string")) {
+                break;
+            case STRING:
                 generate(generator, info, node.get(0), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.TO_STRING));
-            } else if (node.getValue().toLowerCase().equals("substring")) {
+                break;
+            case SUBSTRING:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.STRING_EXTRACT));
-            } else if (node.getValue().toLowerCase().equals("targetpath")) {
+                break;
+            case TARGET_PATH:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.GET_TARGET));
-            } else if (node.getValue().toLowerCase().equals("togglehighquality")) {
+                break;
+            case TOGGLE_HIGH_QUALITY:
                 actions.add(BasicAction.fromInt(ActionTypes.TOGGLE_QUALITY));
-            } else if (node.getValue().toLowerCase().equals("trace")) {
+                break;
+            case TRACE:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.TRACE));
-            } else if (node.getValue().toLowerCase().equals("typeof")) {
+                break;
+            case TYPEOF:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.GET_TYPE));
-            } else if (node.getValue().toLowerCase().equals("unloadmovie")) {
+                break;
+            case UNLOAD_MOVIE:
                 if (node.get(0).getType() == NodeType.INTEGER) {
                     actions.add(new GetUrl("", "_level" + node.get(0).getValue()));
                 } else {
@@ -2876,7 +3005,8 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     generate(generator, info, node.get(0), actions);
                     actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_TARGET));
                 }
-            } else if (node.getValue().toLowerCase().equals("unloadmovienum")) {
+                break;
+            case UNLOAD_MOVIE_NUM:
                 if (node.get(0).getType() == NodeType.INTEGER) {
                     actions.add(new GetUrl("", "_level" + node.get(0).getValue()));
                 } else {
@@ -2884,63 +3014,54 @@ public class NodeGenerator extends AbstractCodeGenerator {
                     generate(generator, info, node.get(0), actions);
                     actions.add(new GetUrl2(GetUrl2.Request.MOVIE_TO_TARGET));
                 }
-            } else if (node.getValue().toLowerCase().equals("void")) {
+                break;
+            case VOID:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 actions.add(BasicAction.fromInt(ActionTypes.POP));
                 addLiteral(actions, Void.getInstance());
-            } else {
+                break;
+            default:
                 for (int i = 0; i < count; i++)
                     generate(generator, info, node.get(i), actions);
 
                 addReference(generator, info, actions, name);
                 actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
+                break;
             }
 
-            if ((functions.get(name.toLowerCase())).booleanValue()) {
+            if (builtin.pushesValue()) {
                 if (node.discardValue)
                     actions.add(BasicAction.fromInt(ActionTypes.POP));
             }
         } else {
-            if (node.getValue().toLowerCase().equals("parseint")) {
-                for (int i = count - 1; i >= 0; i--)
-                    generate(generator, info, node.get(i), actions);
-
-                addLiteral(actions, count);
-                addReference(generator, info, actions, name);
-                actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
-            } else if (node.getValue().toLowerCase().equals("updateafterevent")) {
-                for (int i = count - 1; i >= 0; i--)
-                    generate(generator, info, node.get(i), actions);
-
-                addLiteral(actions, count);
-                addReference(generator, info, actions, name);
-                actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
-            } else {
-                for (int i = count - 1; i >= 0; i--)
-                    generate(generator, info, node.get(i), actions);
+            for (int i = count - 1; i >= 0; i--)
+                generate(generator, info, node.get(i), actions);
 
-                addLiteral(actions, count);
-                addReference(generator, info, actions, name);
-                actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
+            addLiteral(actions, count);
+            addReference(generator, info, actions, name);
+            actions.add(BasicAction.fromInt(ActionTypes.EXECUTE_FUNCTION));
 
-                if (valueFunctions.containsKey(name.toLowerCase()) == false) {
-                    if (node.discardValue)
-                        actions.add(BasicAction.fromInt(ActionTypes.POP));
-                }
+            if (builtin == null || !builtin.returnsValue()) {
+                if (node.discardValue)
+                    actions.add(BasicAction.fromInt(ActionTypes.POP));
             }
         }
 
-        if (valueFunctions.containsKey(name.toLowerCase())) {
+        if (builtin != null && builtin.returnsValue()) {
             if (node.discardValue)
                 actions.add(BasicAction.fromInt(ActionTypes.POP));
         }
     }
 
     private void addReference(final Generator generator, final Context info, List<Action> actions, Object literal) {
-        if (info.useStrings && info.strings.contains(literal))
-            literal = new TableIndex(info.strings.indexOf(literal));
+        if (info.useStrings) {
+            int index = info.indexOf(literal);
+
+            if (index != -1)
+                literal = new TableIndex(index);
+        }
 
         if (literal instanceof Integer) {
             int value = ((Integer) literal).intValue();
@@ -2949,20 +3070,7 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 literal = new Double(0.0);
         }
 
-        /*if (actions.size() > 0) {
-            int index = actions.size() - 1;
-            Action action = actions.get(index);
-
-            if (action instanceof Push) {
-                List<Object>values = ((Push) action).getValues();
-                values.add(literal);
-                actions.set(index, new Push(values));
-            } else {
-                actions.add(new Push.Builder().add(literal).build());
-            }
-        } else*/ {
-            actions.add(new Push.Builder().add(literal).build());
-        }
+        actions.add(new Push.Builder().add(literal).build());
     }
 
     private void addLiteral(List<Action> actions, int value) {
@@ -2973,27 +3081,10 @@ public class NodeGenerator extends AbstractCodeGenerator {
         else
             number = new Integer(value);
 
-        /*if (actions.size() > 0) {
-            int index = actions.size() - 1;
-            Action action = actions.get(index);
-
-            if (action instanceof Push) {
-                List<Object>values = ((Push) action).getValues();
-                values.add(number);
-                actions.set(index, new Push(values));
-            }
-            else {
-                actions.add(new Push.Builder().add(number).build());
-            }
-        } else*/ {
-            actions.add(new Push.Builder().add(number).build());
-        }
+        actions.add(new Push.Builder().add(number).build());
     }
 
     private void addLiteral(List<Action> actions, Object literal) {
-        //Action action = null;
-        int index = actions.size() - 1;
-
         if (literal instanceof Integer) {
             int value = ((Integer) literal).intValue();
 
@@ -3001,31 +3092,104 @@ public class NodeGenerator extends AbstractCodeGenerator {
                 literal = new Double(0.0);
         }
 
-        /*if (actions.size() > 0) {
-            action = actions.get(index);
-        }
-        if (action instanceof Push) {
-            List<Object>values = ((Push) action).getValues();
-            values.add(literal);
-            actions.set(index, new Push(values));
-        } else*/ {
-            actions.add(new Push.Builder().add(literal).build());
-        }
+        actions.add(new Push.Builder().add(literal).build());
+    }
+
+    /*
+     * openBlock and closeBlock bracket the generation of the actions for a
+     * function, event handler, with statement, etc. that are added to a
+     * separate list. Break and continue statements cannot jump out of the
+     * block and any branches in it are resolved when the block is closed.
+     */
+    private void openBlock(final Context info) {
+        info.breaks.push(null);
+        info.continues.push(null);
+    }
+
+    private void closeBlock(final Context info, final List<Action> actions) {
+        info.breaks.pop();
+        info.continues.pop();
+        resolve(info, actions, 0);
     }
 
-    private int actionLength(List<Action> array, Context info) {
-        int length = 0;
+    /*
+     * resolve replaces the Branch place holders, added from the start index
+     * onwards, with If and Jump actions using the offsets to the Labels they
+     * target. The length of each action is calculated only once, so the time
+     * taken does not depend on how deeply the control structures are nested.
+     * Any optimizations are run first, while the targets are still Labels.
+     */
+    private void resolve(final Context info, final List<Action> actions, final int start) {
+        if (info.optimizer != null)
+            info.optimizer.optimize(actions, start);
+
+        final int end = actions.size();
+        boolean hasBranches = false;
+
+        for (int i = start; i < end; i++) {
+            if (actions.get(i) instanceof Branch) {
+                hasBranches = true;
+                break;
+            }
+        }
+
+        if (!hasBranches)
+            return;
 
+        /*
+         * offsets[i] is the number of bytes from the start of the list to the
+         * action at index start + i. Optional branches that target the next
+         * action have zero length since they will be discarded.
+         */
+        int[] offsets = new int[end - start + 1];
         com.flagstone.transform.coder.Context ctxt = new com.flagstone.transform.coder.Context();
+        Action action;
+        Branch branch;
+        int length;
+
+        for (int i = start; i < end; i++) {
+            action = actions.get(i);
 
-        for (Iterator<Action> i = array.iterator(); i.hasNext();) {
-            Action action = i.next();
+            if (action instanceof Branch) {
+                branch = (Branch) action;
 
-            length += action.prepareToEncode(ctxt);
+                if (branch.isOptional() && branch.getTarget().getIndex() == i + 1)
+                    length = 0;
+                else
+                    length = Branch.LENGTH;
+            } else {
+                length = action.prepareToEncode(ctxt);
+            }
+            offsets[i - start + 1] = offsets[i - start] + length;
         }
-        return length;
-    }
 
+        int index = start;
+        int target;
+
+        for (int i = start; i < end; i++) {
+            action = actions.get(i);
+
+            if (action instanceof Branch) {
+                branch = (Branch) action;
+
+                if (offsets[i - start + 1] == offsets[i - start])
+                    continue;
+
+                if (!branch.getTarget().isBound())
+                    throw new IllegalStateException("Label is not bound.");
+
+                target = Math.min(branch.getTarget().getIndex(), end);
+                length = offsets[target - start] - offsets[i - start + 1];
+
+                if (branch.isConditional())
+                    action = new If(length);
+                else
+                    action = new Jump(length);
+            }
+            actions.set(index++, action);
+        }
+        actions.subList(index, end).clear();
+    }
     private void reportError(String errorKey, int number) throws ParseException {
         ParseException parseError = new ParseException(errorKey);
 
@@ -0,0 +1,322 @@
+/*
+ * Registers.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.flagstone.translate.as1;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.flagstone.translate.DefineFunction2;
+import com.flagstone.translate.Node;
+import com.flagstone.translate.NodeType;
+
+/*
+ * Registers decides which arguments and local variables of a function are
+ * stored in registers when the function is defined using DefineFunction2
+ * and which of the variables this, arguments, super, _root, _parent and
+ * _global are loaded into registers or not created at all.
+ *
+ * A variable is only stored in a register if every reference to it can be
+ * replaced by a register access. Variables that are used by a nested
+ * function, called as a function, or referenced by name, for example
+ * using eval(), are left in the scope chain. If the function contains a
+ * with statement, exception handler or calls eval() or set() then no
+ * registers are allocated since the variables may be accessed indirectly.
+ */
+final class Registers {
+
+    /** The highest register number that can be allocated. */
+    private static final int MAX_REGISTER = 254;
+
+    /*
+     * The variables that can be loaded into registers by the Flash Player,
+     * in the order the registers are allocated, along with the flags that
+     * preload the variable or suppress its creation.
+     */
+    private static final String[] SPECIAL = {
+        "this", "arguments", "super", "_root", "_parent", "_global"
+    };
+    private static final int[] PRELOAD = {
+        DefineFunction2.PRELOAD_THIS, DefineFunction2.PRELOAD_ARGUMENTS,
+        DefineFunction2.PRELOAD_SUPER, DefineFunction2.PRELOAD_ROOT,
+        DefineFunction2.PRELOAD_PARENT, DefineFunction2.PRELOAD_GLOBAL
+    };
+    private static final int[] SUPPRESS = {
+        DefineFunction2.SUPPRESS_THIS, DefineFunction2.SUPPRESS_ARGUMENTS,
+        DefineFunction2.SUPPRESS_SUPER, 0, 0, 0
+    };
+
+    /*
+     * Built-in functions that use the names of the identifiers passed as
+     * arguments rather than their values.
+     */
+    private static final Set<Builtin> NAMED = EnumSet.of(Builtin.CALL,
+            Builtin.DELETE, Builtin.EVAL, Builtin.SET, Builtin.GET_PROPERTY,
+            Builtin.PRINT, Builtin.PRINT_NUM, Builtin.PRINT_AS_BITMAP,
+            Builtin.PRINT_AS_BITMAP_NUM);
+
+    private final Set<String> reserved;
+
+    private final Set<String> locals = new LinkedHashSet<String>();
+    private final Set<String> excluded = new HashSet<String>();
+    private final Set<String> reads = new HashSet<String>();
+    private boolean dynamic;
+
+    /*
+     * The arguments are kept in the order they are declared, along with the
+     * register each one is stored in, since a name may be repeated.
+     */
+    private final List<String> arguments = new ArrayList<String>();
+    private final List<Integer> argumentRegisters = new ArrayList<Integer>();
+    private final Map<String, Integer> registers =
+        new HashMap<String, Integer>();
+    private int flags;
+    private int count = 1;
+
+    /*
+     * Allocate the registers for a DEFINE_FUNCTION or DEFINE_METHOD node.
+     * Names in the reserved set, such as constants and properties, are never
+     * stored in registers.
+     */
+    Registers(final Node function, final Set<String> names) {
+        reserved = names;
+
+        final int last = function.count() - 1;
+        final Node body = function.get(last);
+
+        scan(body);
+
+        allocateSpecial();
+
+        if (last == 1) {
+            final Node params = function.get(0);
+
+            if (params.getType() == NodeType.LIST) {
+                for (int i = 0; i < params.count(); i++) {
+                    allocateArgument(params.get(i).getValue());
+                }
+            } else {
+                allocateArgument(params.getValue());
+            }
+        }
+
+        for (String name : locals) {
+            if (!registers.containsKey(name) && !arguments.contains(name)
+                    && isAllocatable(name)) {
+                registers.put(name, count++);
+            }
+        }
+    }
+
+    /*
+     * getArguments returns the names of the arguments in the order they are
+     * declared.
+     */
+    List<String> getArguments() {
+        return arguments;
+    }
+
+    /*
+     * getArgumentRegisters returns the register where each argument is
+     * stored or zero if it is accessed by name.
+     */
+    List<Integer> getArgumentRegisters() {
+        return argumentRegisters;
+    }
+
+    /*
+     * getRegisters returns the register allocated to each argument, local
+     * variable and preloaded variable.
+     */
+    Map<String, Integer> getRegisters() {
+        return registers;
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    private void allocateSpecial() {
+        for (int i = 0; i < SPECIAL.length; i++) {
+            final String name = SPECIAL[i];
+
+            if (dynamic || excluded.contains(name)) {
+                continue;
+            } else if (reads.contains(name)) {
+                flags |= PRELOAD[i];
+                registers.put(name, count++);
+            } else if (!reads.contains(name)) {
+                flags |= SUPPRESS[i];
+            }
+        }
+    }
+
+    /*
+     * When a name is repeated the variable refers to the last argument with
+     * that name, as it does for functions defined using NewFunction, so all
+     * the arguments with the name are accessed by name.
+     */
+    private void allocateArgument(final String name) {
+        if (!arguments.contains(name) && isAllocatable(name)) {
+            registers.put(name, count);
+            argumentRegisters.add(count++);
+        } else {
+            registers.remove(name);
+            argumentRegisters.add(0);
+
+            for (int i = 0; i < arguments.size(); i++) {
+                if (arguments.get(i).equals(name)) {
+                    argumentRegisters.set(i, 0);
+                }
+            }
+        }
+        arguments.add(name);
+    }
+
+    private boolean isAllocatable(final String name) {
+        return !dynamic && count <= MAX_REGISTER && !excluded.contains(name)
+            && !reserved.contains(name) && !isSpecial(name);
+    }
+
+    private boolean isSpecial(final String name) {
+        for (String special : SPECIAL) {
+            if (special.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void scan(final Node node) {
+        final int size = node.count();
+
+        switch (node.getType()) {
+        case DEFINE_FUNCTION:
+        case DEFINE_METHOD:
+            exclude(node);
+            return;
+        case WITH:
+        case EXCEPTION:
+            dynamic = true;
+            break;
+        case FUNCTION:
+            excluded.add(node.getValue());
+
+            final Builtin builtin = Builtin.of(node);
+
+            if (builtin != null && NAMED.contains(builtin)) {
+                for (int i = 0; i < size; i++) {
+                    excludeName(node.get(i));
+                }
+                if (builtin == Builtin.EVAL || builtin == Builtin.SET) {
+                    dynamic = true;
+                }
+            }
+            break;
+        case NEW_OBJECT:
+            excluded.add(node.getValue());
+            break;
+        case FORIN:
+        case DEFINE_ATTRIBUTE:
+        case DELETE:
+            if (size > 0) {
+                excludeName(node.get(0));
+            }
+            break;
+        case ASSIGN:
+        case ASSIGN_ADD:
+        case ASSIGN_SUB:
+        case ASSIGN_MUL:
+        case ASSIGN_DIV:
+        case ASSIGN_MOD:
+        case ASSIGN_LSL:
+        case ASSIGN_ASR:
+        case ASSIGN_LSR:
+        case ASSIGN_BIT_AND:
+        case ASSIGN_BIT_OR:
+        case ASSIGN_BIT_XOR:
+        case PRE_INC:
+        case PRE_DEC:
+        case POST_INC:
+        case POST_DEC:
+            if (size > 0 && isSpecial(node.get(0).getValue())) {
+                excludeName(node.get(0));
+            }
+            break;
+        case DEFINE_VARIABLE:
+            locals.add(node.getValue());
+            break;
+        case IDENTIFIER:
+            reads.add(node.getValue());
+            break;
+        default:
+            break;
+        }
+
+        for (int i = 0; i < size; i++) {
+            scan(node.get(i));
+        }
+    }
+
+    private void excludeName(final Node node) {
+        if (node.getType() == NodeType.IDENTIFIER
+                || node.getType() == NodeType.DEFINE_VARIABLE) {
+            excluded.add(node.getValue());
+        }
+    }
+
+    /*
+     * exclude marks all the names used in a nested function since they may
+     * refer to variables in the enclosing function which must then be
+     * accessible through the scope chain. The nested function has its own
+     * this, arguments, etc. so they do not affect the enclosing function.
+     */
+    private void exclude(final Node node) {
+        final int size = node.count();
+
+        if (node.getValue() != null && !isSpecial(node.getValue())) {
+            excluded.add(node.getValue());
+        }
+        for (int i = 0; i < size; i++) {
+            exclude(node.get(i));
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Block.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.WaitForFrame;
+import com.flagstone.transform.action.WaitForFrame2;
+import com.flagstone.transform.coder.Context;
+import com.flagstone.translate.Branch;
+import com.flagstone.translate.Label;
+
+/**
+ * Block is a view of the actions generated for a script, function or event
+ * handler, before the offsets for jumps are calculated. Jumps are represented
+ * by Branch actions that target Labels so actions can be removed or replaced
+ * by an Optimization and the targets of the jumps remain correct.
+ *
+ * Actions are indexed from zero, relative to the start of the block.
+ */
+public final class Block {
+
+    /** The list of actions that contains the block. */
+    private final transient List<Action> actions;
+    /** The index in the list of the first action in the block. */
+    private final transient int start;
+    /** The labels targeted by the branches in the block. */
+    private final transient List<Label> labels;
+
+    /**
+     * Create a Block for the actions from a given position to the end of a
+     * list.
+     *
+     * @param list the list of actions.
+     * @param index the position in the list of the first action in the block.
+     */
+    public Block(final List<Action> list, final int index) {
+        actions = list;
+        start = index;
+        labels = new ArrayList<Label>();
+
+        int count = list.size();
+        Label label;
+
+        for (int i = index; i < count; i++) {
+            if (list.get(i) instanceof Branch) {
+                label = ((Branch) list.get(i)).getTarget();
+                if (!labels.contains(label)) {
+                    labels.add(label);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of actions in the block.
+     *
+     * @return the number of actions.
+     */
+    public int size() {
+        return actions.size() - start;
+    }
+
+    /**
+     * Get an action from the block.
+     *
+     * @param index the position of the action in the block.
+     * @return the action.
+     */
+    public Action get(final int index) {
+        return actions.get(start + index);
+    }
+
+    /**
+     * Replace an action in the block. Any labels bound to the action now
+     * mark the new action.
+     *
+     * @param index the position of the action in the block.
+     * @param action the action that replaces the existing one.
+     */
+    public void set(final int index, final Action action) {
+        actions.set(start + index, action);
+        if (action instanceof Branch) {
+            addLabel(((Branch) action).getTarget());
+        }
+    }
+
+    /**
+     * Remove an action from the block. Labels bound to the action now mark
+     * the action that followed it.
+     *
+     * @param index the position of the action in the block.
+     */
+    public void remove(final int index) {
+        final int position = start + index;
+        actions.remove(position);
+
+        for (Label label : labels) {
+            if (label.getIndex() > position) {
+                label.bind(label.getIndex() - 1);
+            }
+        }
+    }
+
+    /**
+     * Is the action the target of a branch. Actions that are targets cannot
+     * be merged with the action that precedes them.
+     *
+     * @param index the position of the action in the block.
+     * @return true if a branch jumps to the action.
+     */
+    public boolean isTarget(final int index) {
+        final int position = start + index;
+        for (Label label : labels) {
+            if (label.getIndex() == position) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the position of the action that a branch jumps to.
+     *
+     * @param index the position of a Branch in the block.
+     * @return the position in the block of the action jumped to. This is
+     * equal to size() if the branch jumps to the end of the block.
+     */
+    public int getTarget(final int index) {
+        return ((Branch) get(index)).getTarget().getIndex() - start;
+    }
+
+    /**
+     * Change the action that a branch jumps to. The branch is still
+     * discarded if it is optional and now jumps to the next action.
+     *
+     * @param index the position of a Branch in the block.
+     * @param target the position in the block of the action to jump to.
+     */
+    public void setTarget(final int index, final int target) {
+        final Branch branch = (Branch) get(index);
+        final int position = start + target;
+        Label label = null;
+
+        for (Label item : labels) {
+            if (item.getIndex() == position) {
+                label = item;
+                break;
+            }
+        }
+        if (label == null) {
+            label = new Label();
+            label.bind(position);
+        }
+        set(index, new Branch(branch.getType(), label, branch.isOptional()));
+    }
+
+    /**
+     * Is the action at the given position a branch.
+     *
+     * @param index the position of the action in the block.
+     * @return true if the action is a Branch.
+     */
+    public boolean isBranch(final int index) {
+        return get(index) instanceof Branch;
+    }
+
+    /**
+     * Is the action at the given position an unconditional jump.
+     *
+     * @param index the position of the action in the block.
+     * @return true if the action is a Branch that is always taken.
+     */
+    public boolean isJump(final int index) {
+        final Action action = get(index);
+        return action instanceof Branch
+                && !((Branch) action).isConditional();
+    }
+
+    /**
+     * Can the block be optimized. Blocks containing WaitForFrame actions are
+     * skipped since they refer to the actions that follow by counting them.
+     *
+     * @return true if the actions in the block can be changed.
+     */
+    public boolean isOptimizable() {
+        final int count = actions.size();
+        Action action;
+
+        for (int i = start; i < count; i++) {
+            action = actions.get(i);
+            if (action instanceof WaitForFrame
+                    || action instanceof WaitForFrame2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of bytes the actions in the block will occupy when
+     * encoded.
+     *
+     * @return the encoded length of the block.
+     */
+    public int length() {
+        final Context context = new Context();
+        final int count = actions.size();
+        int length = 0;
+
+        for (int i = start; i < count; i++) {
+            length += actions.get(i).prepareToEncode(context);
+        }
+        return length;
+    }
+
+    private void addLabel(final Label label) {
+        if (!labels.contains(label)) {
+            labels.add(label);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * MergePush.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import java.util.List;
+
+import com.flagstone.transform.action.Push;
+import com.flagstone.transform.coder.Context;
+
+/**
+ * MergePush combines adjacent Push actions into a single action, saving the
+ * three bytes used for the header of each action removed.
+ */
+public final class MergePush implements Optimization {
+
+    /** The maximum length of the data in an encoded action. */
+    private static final int MAX_LENGTH = 65535;
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return "MergePush";
+    }
+
+    /** {@inheritDoc} */
+    public void optimize(final Block block) {
+        final Context context = new Context();
+        List<Object> values;
+        Push push;
+
+        for (int i = 0; i + 1 < block.size(); i++) {
+            if (block.get(i) instanceof Push && block.get(i + 1) instanceof Push
+                    && !block.isTarget(i + 1)) {
+                values = ((Push) block.get(i)).getValues();
+                values.addAll(((Push) block.get(i + 1)).getValues());
+                push = new Push(values);
+
+                if (push.prepareToEncode(context) <= MAX_LENGTH) {
+                    block.set(i, push);
+                    block.remove(i + 1);
+                    // Check whether the next action can also be merged.
+                    i--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Optimizer.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+
+/**
+ * Optimizer runs a sequence of Optimizations over the actions generated for
+ * each script, function and event handler before the offsets for the jumps
+ * are calculated and the actions are encoded.
+ *
+ * <pre>
+ * ASCompiler compiler = new ASCompiler();
+ * compiler.setOptimizer(new Optimizer());
+ * </pre>
+ *
+ * The Optimizer records the number of actions and bytes removed by each pass.
+ * An Optimizer may be shared by several compilers at the same time.
+ */
+public final class Optimizer {
+
+    /**
+     * Get the default set of optimizations, in the order they are run.
+     *
+     * @return a new list containing each of the available optimizations.
+     */
+    public static List<Optimization> defaultPasses() {
+        return new ArrayList<Optimization>(Arrays.asList(
+                new RemoveUnreachable(),
+                new ThreadJumps(),
+                new RemoveDoubleNot(),
+                new RemovePushPop(),
+                new MergePush()));
+    }
+
+    private final transient List<Optimization> passes;
+    private final transient long[] actionsRemoved;
+    private final transient long[] bytesRemoved;
+
+    /**
+     * Create an Optimizer that runs the default passes.
+     */
+    public Optimizer() {
+        this(defaultPasses());
+    }
+
+    /**
+     * Create an Optimizer that runs the passes in the order given.
+     *
+     * @param list the optimizations to run.
+     */
+    public Optimizer(final List<Optimization> list) {
+        passes = Collections.unmodifiableList(
+                new ArrayList<Optimization>(list));
+        actionsRemoved = new long[passes.size()];
+        bytesRemoved = new long[passes.size()];
+    }
+
+    /**
+     * Get the optimizations run, in order.
+     *
+     * @return an unmodifiable list of the passes.
+     */
+    public List<Optimization> getPasses() {
+        return passes;
+    }
+
+    /**
+     * Optimize the actions from a given position to the end of a list.
+     *
+     * @param actions the list of actions.
+     * @param start the position of the first action to optimize.
+     */
+    public void optimize(final List<Action> actions, final int start) {
+        final Block block = new Block(actions, start);
+
+        if (!block.isOptimizable()) {
+            return;
+        }
+
+        int size = block.size();
+        int length = block.length();
+        int count;
+
+        for (int i = 0; i < passes.size(); i++) {
+            passes.get(i).optimize(block);
+
+            count = size - block.size();
+            size = block.size();
+
+            synchronized (this) {
+                actionsRemoved[i] += count;
+                bytesRemoved[i] += length - (length = block.length());
+            }
+        }
+    }
+
+    /**
+     * Get the number of actions removed by a pass.
+     *
+     * @param index the position of the pass in the list returned by
+     * getPasses().
+     * @return the total number of actions removed since the Optimizer was
+     * created or last reset.
+     */
+    public synchronized long getActionsRemoved(final int index) {
+        return actionsRemoved[index];
+    }
+
+    /**
+     * Get the number of bytes removed by a pass.
+     *
+     * @param index the position of the pass in the list returned by
+     * getPasses().
+     * @return the total number of bytes removed since the Optimizer was
+     * created or last reset.
+     */
+    public synchronized long getBytesRemoved(final int index) {
+        return bytesRemoved[index];
+    }
+
+    /**
+     * Set the number of actions and bytes removed by each pass to zero.
+     */
+    public synchronized void reset() {
+        Arrays.fill(actionsRemoved, 0);
+        Arrays.fill(bytesRemoved, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder("Optimizer: {");
+
+        for (int i = 0; i < passes.size(); i++) {
+            builder.append(i == 0 ? " " : ", ");
+            builder.append(passes.get(i).getName());
+            builder.append("=(actions=").append(actionsRemoved[i]);
+            builder.append(", bytes=").append(bytesRemoved[i]).append(')');
+        }
+        return builder.append(" }").toString();
+    }
+}
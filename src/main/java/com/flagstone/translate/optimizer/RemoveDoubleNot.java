@@ -0,0 +1,66 @@
+/*
+ * RemoveDoubleNot.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.ActionTypes;
+import com.flagstone.transform.action.BasicAction;
+import com.flagstone.translate.Branch;
+
+/**
+ * RemoveDoubleNot removes a pair of logical not actions immediately before
+ * an If. Negating a value twice only converts it to a boolean which the If
+ * action does anyway.
+ */
+public final class RemoveDoubleNot implements Optimization {
+
+    private static final Action NOT =
+        BasicAction.fromInt(ActionTypes.LOGICAL_NOT);
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return "RemoveDoubleNot";
+    }
+
+    /** {@inheritDoc} */
+    public void optimize(final Block block) {
+        for (int i = 0; i + 2 < block.size(); i++) {
+            if (block.get(i) == NOT && block.get(i + 1) == NOT
+                    && block.isBranch(i + 2)
+                    && ((Branch) block.get(i + 2)).isConditional()
+                    && !block.isTarget(i + 1)
+                    && !block.isTarget(i + 2)) {
+                block.remove(i);
+                block.remove(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * RemovePushPop.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import java.util.List;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.ActionTypes;
+import com.flagstone.transform.action.BasicAction;
+import com.flagstone.transform.action.Push;
+
+/**
+ * RemovePushPop removes a value pushed onto the stack that is immediately
+ * discarded by a Pop action.
+ */
+public final class RemovePushPop implements Optimization {
+
+    private static final Action POP = BasicAction.fromInt(ActionTypes.POP);
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return "RemovePushPop";
+    }
+
+    /** {@inheritDoc} */
+    public void optimize(final Block block) {
+        List<Object> values;
+
+        for (int i = 0; i + 1 < block.size(); i++) {
+            if (block.get(i) instanceof Push && block.get(i + 1) == POP
+                    && !block.isTarget(i + 1)) {
+                values = ((Push) block.get(i)).getValues();
+                values.remove(values.size() - 1);
+
+                block.remove(i + 1);
+
+                if (values.isEmpty()) {
+                    block.remove(i);
+                } else {
+                    block.set(i, new Push(values));
+                }
+                // Check the new pair of actions at this position.
+                i = Math.max(i - 2, -1);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * RemoveUnreachable.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.ActionTypes;
+import com.flagstone.transform.action.BasicAction;
+
+/**
+ * RemoveUnreachable removes the actions that follow an unconditional jump,
+ * a return or a throw up to the next action that is the target of a branch.
+ */
+public final class RemoveUnreachable implements Optimization {
+
+    private static final Action RETURN =
+        BasicAction.fromInt(ActionTypes.RETURN);
+    private static final Action THROW =
+        BasicAction.fromInt(ActionTypes.THROW);
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return "RemoveUnreachable";
+    }
+
+    /** {@inheritDoc} */
+    public void optimize(final Block block) {
+        Action action;
+
+        for (int i = 0; i < block.size(); i++) {
+            action = block.get(i);
+
+            if (block.isJump(i) || action == RETURN || action == THROW) {
+                while (i + 1 < block.size() && !block.isTarget(i + 1)) {
+                    block.remove(i + 1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * ThreadJumps.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.optimizer;
+
+/**
+ * ThreadJumps changes branches that target an unconditional jump so they
+ * go directly to the final destination, then removes any unconditional jumps
+ * to the action that immediately follows.
+ */
+public final class ThreadJumps implements Optimization {
+
+    /** {@inheritDoc} */
+    public String getName() {
+        return "ThreadJumps";
+    }
+
+    /** {@inheritDoc} */
+    public void optimize(final Block block) {
+        final int size = block.size();
+        int target;
+        int hops;
+
+        for (int i = 0; i < size; i++) {
+            if (block.isBranch(i)) {
+                target = block.getTarget(i);
+                hops = 0;
+
+                // The limit on the number of hops stops infinite loops.
+                while (target < size && block.isJump(target) && hops < size) {
+                    target = block.getTarget(target);
+                    hops++;
+                }
+
+                if (hops > 0) {
+                    block.setTarget(i, target);
+                }
+            }
+        }
+
+        for (int i = 0; i < block.size(); i++) {
+            if (block.isJump(i) && block.getTarget(i) == i + 1) {
+                block.remove(i--);
+            }
+        }
+    }
+}
@@ -0,0 +1,580 @@
+/*
+ * BatchCompiler.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+
+import com.flagstone.transform.Background;
+import com.flagstone.transform.DoAction;
+import com.flagstone.transform.Event;
+import com.flagstone.transform.EventHandler;
+import com.flagstone.transform.Movie;
+import com.flagstone.transform.MovieHeader;
+import com.flagstone.transform.MovieTag;
+import com.flagstone.transform.Place2;
+import com.flagstone.transform.ShowFrame;
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.button.ButtonShape;
+import com.flagstone.transform.button.ButtonType;
+import com.flagstone.transform.button.DefineButton2;
+import com.flagstone.transform.datatype.Bounds;
+import com.flagstone.transform.datatype.Color;
+import com.flagstone.transform.movieclip.DefineMovieClip;
+import com.flagstone.translate.ASCompiler;
+import com.flagstone.translate.Profile;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.ScriptException;
+
+/**
+ * BatchCompiler compiles all the scripts in a set of directories, in
+ * parallel, and writes each to a Flash file.
+ *
+ * Synopsis:
+ *
+ * java -classpath &lt;classpath&gt; com.flagstone.translate.tools.BatchCompiler
+ *     [ --profile name ]
+ *     [ --include dir ]...
+ *     [ --output dir ]
+ *     [ --threads count ]
+ *     [ --slowest count ]
+ *     [ --force ]
+ *     path...
+ *
+ * where
+ *
+ *   --profile name    the Profile used to compile the scripts, e.g.
+ *                     DEFAULT_1_8.
+ *
+ *   --include dir     a directory searched for included files. May be
+ *                     repeated.
+ *
+ *   --output dir      the directory where the Flash files are written. The
+ *                     directory structure of the scripts is preserved. If not
+ *                     given each file is written next to its script.
+ *
+ *   --threads count   the number of scripts compiled at the same time. The
+ *                     default is the number of processors.
+ *
+ *   --slowest count   the number of the slowest scripts listed in the
+ *                     summary, default 5.
+ *
+ *   --force           compile the scripts even if the Flash files are up to
+ *                     date.
+ *
+ *   path              a script, a directory which is searched for scripts,
+ *                     ending in .as, or a pattern such as src/**&#47;*.as where
+ *                     * matches any part of a name, ** any number of
+ *                     directories and ? a single character.
+ *
+ * A Flash file is up to date if it was modified after the script. Changes to
+ * the files included by a script are not detected, use --force to compile
+ * the scripts again.
+ *
+ * Frame scripts are added to the first frame of the movie using a DoAction
+ * tag. Scripts containing on() handlers are added to a button and scripts
+ * containing onClipEvent() handlers are added to a movie clip placed on the
+ * display list.
+ */
+public final class BatchCompiler {
+
+    private static final String SCRIPT = ".as";
+    private static final String MOVIE = ".swf";
+    private static final String TEMP = ".tmp";
+
+    /** The events that are handled by buttons rather than movie clips. */
+    private static final Set<Event> BUTTON_EVENTS = EnumSet.of(
+            Event.ROLL_OUT, Event.ROLL_OVER, Event.PRESS, Event.RELEASE,
+            Event.DRAG_OUT, Event.DRAG_OVER, Event.RELEASE_OUT,
+            Event.KEY_PRESS);
+
+    /** Size of the movie, 200 x 200 pixels, in twips. */
+    private static final int SIZE = 4000;
+    private static final float FRAME_RATE = 12.0f;
+    private static final int WHITE = 255;
+
+    private static final int DEFAULT_SLOWEST = 5;
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+    private static final double SECOND = 1000000000.0;
+
+    /*
+     * Job holds a script to compile along with the directory used to work
+     * out where the Flash file is written, and the results.
+     */
+    private static final class Job {
+        private final File script;
+        private final File root;
+
+        private File movie;
+        private boolean skipped;
+        private long time;
+        private long bytesIn;
+        private long bytesOut;
+        private final List<String> errors = new ArrayList<String>();
+
+        Job(final File file, final File dir) {
+            script = file;
+            root = dir;
+        }
+    }
+
+    public static void main(final String[] args) {
+        final BatchCompiler batch = new BatchCompiler();
+        int status;
+
+        try {
+            status = batch.run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted.");
+            status = 2;
+        }
+        System.exit(status);
+    }
+
+    private final transient ASCompiler compiler = new ASCompiler();
+    private transient File output;
+    private transient int threads = Runtime.getRuntime().availableProcessors();
+    private transient int slowest = DEFAULT_SLOWEST;
+    private transient boolean force;
+
+    /**
+     * Compile the scripts.
+     *
+     * @param args the options and paths, as described above.
+     *
+     * @return zero if all the scripts were compiled successfully, one if any
+     * errors were reported.
+     *
+     * @throws InterruptedException if the thread is interrupted while
+     * waiting for the scripts to be compiled.
+     */
+    public int run(final String[] args) throws InterruptedException {
+        final List<Job> jobs = new ArrayList<Job>();
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--profile".equals(args[i])) {
+                final Profile profile = Profile.fromName(value(args, ++i));
+                if (profile == null) {
+                    throw new IllegalArgumentException("Unsupported Profile: "
+                            + args[i]);
+                }
+                compiler.setProfile(profile);
+            } else if ("--include".equals(args[i])) {
+                compiler.add(new File(value(args, ++i)));
+            } else if ("--output".equals(args[i])) {
+                output = new File(value(args, ++i));
+            } else if ("--threads".equals(args[i])) {
+                threads = Math.max(1, Integer.parseInt(value(args, ++i)));
+            } else if ("--slowest".equals(args[i])) {
+                slowest = Integer.parseInt(value(args, ++i));
+            } else if ("--force".equals(args[i])) {
+                force = true;
+            } else if (args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: "
+                        + args[i]);
+            } else {
+                findScripts(jobs, args[i]);
+            }
+        }
+
+        final long start = System.nanoTime();
+        compileAll(jobs);
+        final long elapsed = System.nanoTime() - start;
+
+        return report(jobs, elapsed);
+    }
+
+    private String value(final String[] args, final int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for "
+                    + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    /*
+     * findScripts adds the scripts for a path which may be a file, a
+     * directory or a pattern.
+     */
+    private void findScripts(final List<Job> jobs, final String path) {
+        final String name = path.replace(File.separatorChar, '/');
+        int wildcard = -1;
+
+        for (int i = 0; i < name.length() && wildcard < 0; i++) {
+            if (name.charAt(i) == '*' || name.charAt(i) == '?') {
+                wildcard = i;
+            }
+        }
+
+        if (wildcard < 0) {
+            final File file = new File(path);
+
+            if (file.isDirectory()) {
+                findScripts(jobs, file, file, null);
+            } else if (file.isFile()) {
+                jobs.add(new Job(file, file.getAbsoluteFile().getParentFile()));
+            } else {
+                throw new IllegalArgumentException("Not found: " + path);
+            }
+        } else {
+            final int slash = name.lastIndexOf('/', wildcard);
+            final File root = new File(slash < 0 ? "." : name.substring(0,
+                    slash + 1));
+            findScripts(jobs, root, root, toPattern(name.substring(
+                    slash + 1)));
+        }
+    }
+
+    private void findScripts(final List<Job> jobs, final File root,
+            final File dir, final Pattern pattern) {
+        final File[] files = dir.listFiles();
+
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findScripts(jobs, root, file, pattern);
+            } else if (pattern == null ? file.getName().endsWith(SCRIPT)
+                    : pattern.matcher(relative(root, file)).matches()) {
+                jobs.add(new Job(file, root));
+            }
+        }
+    }
+
+    /*
+     * toPattern converts a glob into a regular expression that matches
+     * paths relative to the directory where the search starts.
+     */
+    private static Pattern toPattern(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        char chr;
+
+        for (int i = 0; i < glob.length(); i++) {
+            chr = glob.charAt(i);
+
+            if (chr == '*') {
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        regex.append(".*");
+                        i += 1;
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (chr == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(chr)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static String relative(final File root, final File file) {
+        final String base = root.getAbsoluteFile().toURI().getPath();
+        final String path = file.getAbsoluteFile().toURI().getPath();
+        return path.startsWith(base) ? path.substring(base.length()) : path;
+    }
+
+    /*
+     * compileAll runs a task for each script using a fixed number of
+     * threads.
+     */
+    private void compileAll(final List<Job> jobs) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(final Runnable task) {
+                        final Thread thread = new Thread(task, "BatchCompiler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final List<Callable<Job>> tasks = new ArrayList<Callable<Job>>();
+
+        for (final Job job : jobs) {
+            tasks.add(new Callable<Job>() {
+                public Job call() {
+                    compile(job);
+                    return job;
+                }
+            });
+        }
+
+        try {
+            for (Future<Job> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private void compile(final Job job) {
+        job.movie = movieFile(job);
+        job.bytesIn = job.script.length();
+
+        if (!force && job.movie.exists()
+                && job.movie.lastModified() >= job.script.lastModified()) {
+            job.skipped = true;
+            return;
+        }
+
+        final long start = System.nanoTime();
+
+        try {
+            final List<Action> actions = compiler.compile(job.script);
+            final Movie movie = movieFor(actions,
+                    compiler.getProfile().getFlashVersion());
+            write(movie, job.movie);
+            job.bytesOut = job.movie.length();
+        } catch (ScriptException e) {
+            for (ScriptError error : e.getErrors()) {
+                job.errors.add(String.format("%s line %d, column %d",
+                        error.getType(), error.getBeginLine(),
+                        error.getBeginColumn()));
+            }
+        } catch (FileNotFoundException e) {
+            job.errors.add(e.getMessage());
+        } catch (IOException e) {
+            job.errors.add(e.toString());
+        } catch (DataFormatException e) {
+            job.errors.add(e.toString());
+        } catch (RuntimeException e) {
+            job.errors.add(e.toString());
+        }
+        job.time = System.nanoTime() - start;
+    }
+
+    private File movieFile(final Job job) {
+        final String name = job.script.getName();
+        final String movie = (name.endsWith(SCRIPT) ? name.substring(0,
+                name.length() - SCRIPT.length()) : name) + MOVIE;
+
+        if (output == null) {
+            return new File(job.script.getParentFile(), movie);
+        }
+
+        final String path = relative(job.root, job.script.getParentFile());
+        return new File(new File(output, path), movie);
+    }
+
+    /**
+     * Create a movie containing the actions generated for a script. Frame
+     * scripts are executed in the first frame. Event handlers are added to a
+     * button or a movie clip depending on the events they respond to.
+     *
+     * @param actions the actions generated by the compiler.
+     * @param version the version of Flash.
+     *
+     * @return a movie that can be encoded.
+     */
+    public static Movie movieFor(final List<Action> actions,
+            final int version) {
+        final List<EventHandler> buttonEvents = new ArrayList<EventHandler>();
+        final List<EventHandler> clipEvents = new ArrayList<EventHandler>();
+        final List<Action> frame = new ArrayList<Action>();
+        EventHandler handler;
+
+        for (Action action : actions) {
+            if (action instanceof EventHandler) {
+                handler = (EventHandler) action;
+                if (BUTTON_EVENTS.containsAll(handler.getEvents())) {
+                    buttonEvents.add(handler);
+                } else {
+                    clipEvents.add(handler);
+                }
+            } else {
+                frame.add(action);
+            }
+        }
+
+        final MovieHeader header = new MovieHeader();
+        header.setVersion(version);
+        header.setCompressed(version >= 6);
+        header.setFrameSize(new Bounds(0, 0, SIZE, SIZE));
+        header.setFrameRate(FRAME_RATE);
+        header.setFrameCount(1);
+
+        final Movie movie = new Movie();
+        movie.add(header);
+        movie.add(new Background(new Color(WHITE, WHITE, WHITE)));
+
+        int identifier = 1;
+        int layer = 1;
+
+        if (!buttonEvents.isEmpty()) {
+            movie.add(new DefineButton2(identifier, ButtonType.PUSH,
+                    new ArrayList<ButtonShape>(), buttonEvents));
+            movie.add(Place2.show(identifier++, layer++, 0, 0));
+        }
+        if (!clipEvents.isEmpty()) {
+            final List<MovieTag> frames = new ArrayList<MovieTag>();
+            frames.add(ShowFrame.getInstance());
+            movie.add(new DefineMovieClip(identifier, frames));
+
+            final Place2 place = Place2.show(identifier++, layer++, 0, 0);
+            place.setEvents(clipEvents);
+            movie.add(place);
+        }
+        if (!frame.isEmpty()) {
+            movie.add(new DoAction(frame));
+        }
+        movie.add(ShowFrame.getInstance());
+        return movie;
+    }
+
+    /*
+     * write encodes the movie to a temporary file which is renamed once it
+     * is complete so an interrupted build does not leave a file that appears
+     * to be up to date.
+     */
+    private void write(final Movie movie, final File file)
+            throws IOException, DataFormatException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+
+        if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory: " + dir);
+        }
+
+        final File tmp = new File(dir, file.getName() + TEMP);
+        final OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(tmp));
+
+        try {
+            movie.encodeToStream(out);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Cannot write " + file);
+            }
+        }
+    }
+
+    /*
+     * report prints the errors and a summary showing the throughput and the
+     * scripts that took longest to compile.
+     */
+    private int report(final List<Job> jobs, final long elapsed) {
+        final List<Job> compiled = new ArrayList<Job>();
+        int skipped = 0;
+        int failed = 0;
+        long bytesIn = 0;
+        long bytesOut = 0;
+
+        for (Job job : jobs) {
+            if (job.skipped) {
+                skipped++;
+            } else if (!job.errors.isEmpty()) {
+                failed++;
+                for (String error : job.errors) {
+                    System.err.println(job.script.getPath() + ": " + error);
+                }
+            } else {
+                compiled.add(job);
+                bytesIn += job.bytesIn;
+                bytesOut += job.bytesOut;
+            }
+        }
+
+        final double seconds = elapsed / SECOND;
+
+        System.out.println(String.format(
+                "%d compiled, %d up to date, %d failed in %.2fs",
+                compiled.size(), skipped, failed, seconds));
+
+        if (!compiled.isEmpty() && seconds > 0) {
+            System.out.println(String.format(
+                    "%.1f files/s, %.2f MB/s read, %.2f MB/s written",
+                    compiled.size() / seconds, bytesIn / MEGABYTE / seconds,
+                    bytesOut / MEGABYTE / seconds));
+
+            Collections.sort(compiled, new Comparator<Job>() {
+                public int compare(final Job first, final Job second) {
+                    return first.time < second.time ? 1
+                            : (first.time > second.time ? -1 : 0);
+                }
+            });
+
+            if (slowest > 0) {
+                System.out.println("Slowest:");
+            }
+            for (int i = 0; i < slowest && i < compiled.size(); i++) {
+                System.out.println(String.format("%10.2fms  %s",
+                        compiled.get(i).time / 1000000.0,
+                        compiled.get(i).script.getPath()));
+            }
+        }
+        return failed == 0 ? 0 : 1;
+    }
+}
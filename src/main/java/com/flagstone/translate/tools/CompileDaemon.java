@@ -0,0 +1,422 @@
+/*
+ * CompileDaemon.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.flagstone.translate.ASCompiler;
+import com.flagstone.translate.Profile;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.ScriptException;
+
+/**
+ * CompileDaemon keeps a JVM running so scripts can be compiled without paying
+ * the cost of starting the JVM, loading the compiler and waiting for the JIT
+ * to compile it each time. Editors and build tools connect to the daemon
+ * using a socket on the loopback interface, so it cannot be reached from
+ * other machines.
+ *
+ * Each request is a set of header lines, "name: value", terminated by an
+ * empty line. The headers are:
+ *
+ * <pre>
+ *   file: path         the file to compile.
+ *   length: count      the number of bytes of script following the headers,
+ *                      used instead of file. At most 16MB.
+ *   profile: name      the Profile, e.g. DEFAULT_1_8, default DEFAULT_1_5.
+ *   encoding: name     the character encoding of the script, default UTF-8.
+ *   include: path      a directory searched for included files. May be
+ *                      repeated.
+ *   command: shutdown  stop the daemon.
+ * </pre>
+ *
+ * The response is either "OK count" followed by count bytes containing the
+ * encoded actions, or "ERROR count" followed by count lines describing each
+ * error. Several requests may be sent on the same connection. If the length
+ * is not a number, is negative or is too large then the error is sent and the
+ * connection is closed since the script that follows cannot be skipped.
+ *
+ * The compilers are kept, along with their caches of included files, for each
+ * combination of profile, encoding and include directories so later requests
+ * using the same settings are only limited by the time taken to compile the
+ * script. Only the compilers for the 16 most recently used combinations are
+ * kept.
+ *
+ * Requests are not authenticated. Any process on the local machine that can
+ * connect to the port can stop the daemon with "command: shutdown" and can
+ * compile, and so read the contents of, any file that the user running the
+ * daemon can read. Only run the daemon on machines where every local user is
+ * trusted.
+ */
+public final class CompileDaemon {
+
+    /** The response when a script was compiled. */
+    public static final String OK = "OK";
+    /** The response when a script could not be compiled. */
+    public static final String ERROR = "ERROR";
+
+    private static final String FILE = "file";
+    private static final String LENGTH = "length";
+    private static final String PROFILE = "profile";
+    private static final String ENCODING = "encoding";
+    private static final String INCLUDE = "include";
+    private static final String COMMAND = "command";
+    private static final String SHUTDOWN = "shutdown";
+
+    private static final String CHARSET = "UTF-8";
+    private static final int BACKLOG = 50;
+    /** The longest header line accepted. */
+    private static final int MAX_LINE = 8192;
+    /** The longest script, in bytes, accepted in a request. */
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+    /** The number of compilers, one for each set of settings, kept. */
+    private static final int MAX_COMPILERS = 16;
+
+    private final transient ServerSocket server;
+    private final transient ExecutorService executor;
+    private final transient Map<String, ASCompiler> compilers;
+
+    private transient volatile boolean running;
+
+    /**
+     * Create a CompileDaemon listening on the loopback interface.
+     *
+     * @param port the port number or zero to use any free port.
+     *
+     * @throws IOException if the socket cannot be opened.
+     */
+    public CompileDaemon(final int port) throws IOException {
+        server = new ServerSocket(port, BACKLOG, InetAddress.getByName(null));
+        compilers = new LinkedHashMap<String, ASCompiler>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<String, ASCompiler> eldest) {
+                return size() > MAX_COMPILERS;
+            }
+        };
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable task) {
+                final Thread thread = new Thread(task, "compile-daemon");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        running = true;
+    }
+
+    /**
+     * Get the port the daemon is listening on.
+     *
+     * @return the port number.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accept connections until the daemon is shut down. Each connection is
+     * handled by a separate thread.
+     */
+    public void run() {
+        Socket socket;
+
+        while (running) {
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Cannot accept connection: "
+                            + e.getMessage());
+                }
+                continue;
+            }
+            final Socket client = socket;
+            executor.execute(new Runnable() {
+                public void run() {
+                    serve(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop accepting connections. Requests that are being processed are
+     * allowed to complete.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // The daemon is stopping anyway.
+        }
+        executor.shutdown();
+    }
+
+    /*
+     * serve handles the requests on a connection until the client closes it.
+     */
+    private void serve(final Socket socket) {
+        try {
+            final InputStream in = new BufferedInputStream(
+                    socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(
+                    socket.getOutputStream());
+            Map<String, List<String>> headers;
+
+            while ((headers = readHeaders(in)) != null) {
+                if (SHUTDOWN.equals(first(headers, COMMAND, null))) {
+                    respond(out, OK, new byte[0]);
+                    shutdown();
+                    break;
+                }
+                if (!handle(headers, in, out)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client closed the connection.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+
+    /*
+     * handle compiles the script in a request and sends the response. It
+     * returns false if the length of the script is invalid since the script
+     * cannot be skipped to read the next request so the connection must be
+     * closed.
+     */
+    private boolean handle(final Map<String, List<String>> headers,
+            final InputStream in, final OutputStream out) throws IOException {
+
+        final String file = first(headers, FILE, null);
+        final String length = first(headers, LENGTH, null);
+        final List<String> errors = new ArrayList<String>();
+        byte[] script = null;
+
+        if (length != null) {
+            int size;
+
+            try {
+                size = Integer.parseInt(length);
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            if (size < 0 || size > MAX_LENGTH) {
+                respond(out, ERROR, "Invalid length: " + length);
+                return false;
+            }
+            script = new byte[size];
+            new DataInputStream(in).readFully(script);
+        } else if (file == null) {
+            respond(out, ERROR, "Either file or length must be given.");
+            return true;
+        }
+
+        final ByteArrayOutputStream actions = new ByteArrayOutputStream();
+
+        try {
+            final ASCompiler compiler = compilerFor(headers);
+
+            if (script == null) {
+                compiler.compileTo(new File(file), actions);
+            } else {
+                compiler.compileTo(new ByteArrayInputStream(script), actions);
+            }
+        } catch (ScriptException e) {
+            for (ScriptError error : e.getErrors()) {
+                errors.add(describe(error));
+            }
+        } catch (IOException e) {
+            errors.add("Cannot read " + (file == null ? "script" : file)
+                    + ": " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            errors.add(e.getMessage());
+        } catch (RuntimeException e) {
+            errors.add(e.toString());
+        }
+
+        if (errors.isEmpty()) {
+            respond(out, OK, actions.toByteArray());
+        } else {
+            respond(out, ERROR, errors.toArray(new String[errors.size()]));
+        }
+        return true;
+    }
+
+    /*
+     * compilerFor returns the compiler for the profile, encoding and include
+     * directories in a request, creating it if necessary. The least recently
+     * used compiler is discarded when there are too many.
+     */
+    private ASCompiler compilerFor(final Map<String, List<String>> headers) {
+        final String name = first(headers, PROFILE, Profile.DEFAULT_1_5.name());
+        final String encoding = first(headers, ENCODING, CHARSET);
+        final List<String> includes = headers.get(INCLUDE);
+        final String key = name + '\n' + encoding + '\n' + includes;
+
+        synchronized (compilers) {
+            ASCompiler compiler = compilers.get(key);
+
+            if (compiler == null) {
+                final Profile profile = Profile.fromName(name);
+
+                if (profile == null) {
+                    throw new IllegalArgumentException("Unsupported Profile: "
+                            + name);
+                }
+                compiler = new ASCompiler();
+                compiler.setProfile(profile);
+                compiler.setEncoding(encoding);
+
+                if (includes != null) {
+                    for (String dir : includes) {
+                        compiler.add(new File(dir));
+                    }
+                }
+                compilers.put(key, compiler);
+            }
+            return compiler;
+        }
+    }
+
+    private String describe(final ScriptError error) {
+        return String.format("%s %s %d:%d-%d:%d", error.getType(),
+                error.getFilename(), error.getBeginLine(),
+                error.getBeginColumn(), error.getEndLine(),
+                error.getEndColumn());
+    }
+
+    private String first(final Map<String, List<String>> headers,
+            final String name, final String defaultValue) {
+        final List<String> values = headers.get(name);
+        return values == null ? defaultValue : values.get(0);
+    }
+
+    /*
+     * readHeaders reads the header lines for a request. It returns null if
+     * the connection was closed before a request was started.
+     */
+    private Map<String, List<String>> readHeaders(final InputStream in)
+            throws IOException {
+        final Map<String, List<String>> headers =
+            new LinkedHashMap<String, List<String>>();
+        String line;
+        int index;
+        List<String> values;
+
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            index = line.indexOf(':');
+            if (index < 0) {
+                throw new IOException("Invalid header: " + line);
+            }
+            final String name = line.substring(0, index).trim().toLowerCase();
+            values = headers.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                headers.put(name, values);
+            }
+            values.add(line.substring(index + 1).trim());
+        }
+
+        if (line == null) {
+            if (headers.isEmpty()) {
+                return null;
+            }
+            throw new EOFException();
+        }
+        return headers;
+    }
+
+    private String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int value;
+
+        while ((value = in.read()) != -1 && value != '\n') {
+            if (line.size() == MAX_LINE) {
+                throw new IOException("Header too long.");
+            }
+            line.write(value);
+        }
+        if (value == -1 && line.size() == 0) {
+            return null;
+        }
+        final String text = line.toString(CHARSET);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1)
+                : text;
+    }
+
+    private void respond(final OutputStream out, final String status,
+            final byte[] body) throws IOException {
+        out.write((status + ' ' + body.length + '\n').getBytes(CHARSET));
+        out.write(body);
+        out.flush();
+    }
+
+    private void respond(final OutputStream out, final String status,
+            final String... lines) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append(status).append(' ').append(lines.length).append('\n');
+        for (String line : lines) {
+            builder.append(String.valueOf(line).replace('\n', ' '))
+                .append('\n');
+        }
+        out.write(builder.toString().getBytes(CHARSET));
+        out.flush();
+    }
+}
@@ -31,13 +31,18 @@
 package com.flagstone.translate.tools;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
 
+import com.flagstone.transform.Movie;
+import com.flagstone.transform.action.Action;
 import com.flagstone.translate.ASCompiler;
 import com.flagstone.translate.ASNode;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.ScriptException;
 
 /**
  * Interpreter.java - provides a simple command-line interpreter that allows the
@@ -49,6 +54,7 @@ import com.flagstone.translate.ASNode;
  *     [ --file filename ]
  *     [ --dump ]
  *     [ --encode filename ]
+ *     [ --daemon port ]
  *
  * where
  *
@@ -62,6 +68,11 @@ import com.flagstone.translate.ASNode;
  *   --encode filename is the name of the file where the compiled ActionScript
  *                     will be written.
  *
+ *   --daemon port     runs the compiler as a CompileDaemon, listening on the
+ *                     port on the local machine for requests to compile
+ *                     scripts. Use 0 to pick any free port. All the other
+ *                     options are ignored.
+ *
  * If a file is not specified then the parser will read ActionScript statements
  * from the standard input stream. The parser will continue to read statements
  * typed at the keyboard until the stream is closed by typing ctrl-d.
@@ -90,11 +101,18 @@ public final class Interpreter
         options = new LinkedHashMap<String, String>();
         getOptions(args);
 
+        if (options.containsKey("daemon"))
+        {
+            runDaemon(options.get("daemon"));
+            return;
+        }
+
         boolean readFile = options.containsKey("file");
         boolean showNodes = options.containsKey("dump");
         boolean encodeFile = options.containsKey("encode");
 
         ASCompiler compiler = new ASCompiler();
+        List<Action> actions = null;
 
         System.out.println("");
 
@@ -106,7 +124,7 @@ public final class Interpreter
 
                 System.out.println("Reading ActionScript from " + scriptFile);
 
-                compiler.compile(new File(scriptFile)); // TODO
+                actions = compiler.compile(new File(scriptFile));
             }
             else
             {
@@ -122,18 +140,24 @@ public final class Interpreter
                 root.displayTree("");
             }
 
-            if (encodeFile)
+            if (encodeFile && actions != null)
             {
-                String swfFile = options.get("encode");
-
-                if (root.getType() == ASNode.Array)
-                    frameScript(swfFile);
-                else if (root.getType() == ASNode.Button)
-                    buttonScript(swfFile);
-                else if (root.getType() == ASNode.MovieClip)
-                    movieClipScript(swfFile);
+                encode(actions, compiler.getProfile().getFlashVersion(),
+                    options.get("encode"));
             }
         }
+        catch (ScriptException e)
+        {
+            for (ScriptError error : e.getErrors())
+            {
+                System.err.println(error.getType() + " File: "
+                    + error.getFilename() + ", Line: " + error.getBeginLine());
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not read script: " + e.getMessage());
+        }
         catch (Exception e)
         {
 
@@ -143,6 +167,28 @@ public final class Interpreter
         }
     }
 
+    /*
+     * Runs a CompileDaemon until a client asks it to shut down.
+     */
+    private void runDaemon(String port)
+    {
+        try
+        {
+            CompileDaemon daemon = new CompileDaemon(Integer.parseInt(port));
+
+            System.out.println("Listening on port " + daemon.getPort());
+            daemon.run();
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.println("Invalid port: " + port);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not start daemon: " + e.getMessage());
+        }
+    }
+
     private void getOptions(String[] args)
     {
         String optionName = null;
@@ -164,222 +210,27 @@ public final class Interpreter
     }
 
     /*
-     * Generates a sample swf file containing a single frame which executes the
-     * compiled actions when displayed.
+     * Generates a sample swf file containing the compiled actions. Frame
+     * scripts are executed in the first frame, event handlers are added to a
+     * button or movie clip. Nothing is displayed in the movie however the file
+     * may be browsed by a suitable viewer or parsed using Transform to inspect
+     * the byte-codes and actions generated when the script is compiled.
      */
-    private void frameScript(String filename)
+    private void encode(List<Action> actions, int version, String filename)
     {
-        try
-        {
-            FileOutputStream out = new FileOutputStream(filename);
-
-            byte[] data = new byte[0]; //TODO root.encode(5);
-
-            int fileLength = 35 + data.length + 1;
-            int actionLength = data.length + 1;
-
-            /*
-             * The signature identifies the file as containing Flash 5.
-             */
-            int[] signature = { 0x46, 0x57, 0x53, 0x05 };
-
-            for (int i=0; i<signature.length; i++)
-                out.write(signature[i]);
-
-            // Write out length of file
-
-            for (int i=0; i<4; i++, fileLength >>>= 8)
-                out.write(fileLength);
-
-            /*
-             * The rest of the header sets the frame size to 200 x 200
-             * pixels, plays at 12 frames per second, contains 1 frame,
-             * sets the background colour to be white and writes out
-             * the first 2 bytes of the DoAction tag.
-             */
-
-            int[] header = {
-                0x68, 0x00, 0x1f, 0x40, 0x00, 0x07, 0xd0, 0x00,
-                0x00, 0x0c, 0x01, 0x00, 0x43, 0x02, 0xff, 0xff,
-                0xff, 0x3f, 0x03
-            };
-
-            for (int i=0; i<header.length; i++)
-                out.write(header[i]);
+        Movie movie = BatchCompiler.movieFor(actions, version);
 
-            for (int i=0; i<4; i++, actionLength >>>= 8)
-                out.write(actionLength);
-
-            out.write(data);
-            out.write(0);
-
-            // ShowFrame
-
-            out.write(64);
-            out.write(0);
-
-            // End of Movie
-
-            out.write(0);
-            out.write(0);
-        }
-        catch (IOException e)
-        {
-            System.err.println("Could not write Flash file: ");
-        }
-    }
-
-    /*
-     * Generates a sample swf file containing the compiled actions for a button
-     * No button is displayed in the movie however the file may be browsed by
-     * a suitable viewer or parsed using Transform to inspect the byte-codes and
-     * actions generated when the script is compiled.
-     */
-    private void buttonScript(String filename)
-    {
         try
         {
-            FileOutputStream out = new FileOutputStream(filename);
-
-            byte[] data = new byte[0]; //TODO root.encode(5);
-
-            int fileLength = 47 + data.length;
-            int actionLength = data.length + 13;
-
-            /*
-             * The signature identifies the file as containing Flash 5.
-             */
-            int[] signature = { 0x46, 0x57, 0x53, 0x05 };
-
-            for (int i=0; i<signature.length; i++)
-                out.write(signature[i]);
-
-            // Write out length of file
-
-            for (int i=0; i<4; i++, fileLength >>>= 8)
-                out.write(fileLength);
-
-            /*
-             * The rest of the header sets the frame size to 200 x 200
-             * pixels, plays at 12 frames per second, contains 1 frame,
-             * sets the background colour to be white and writes out
-             * the first bytes of the DefineButton2 tag.
-             */
-
-            int[] header = {
-                0x68, 0x00, 0x1f, 0x40, 0x00, 0x07, 0xd0, 0x00,
-                0x00, 0x0c, 0x01, 0x00, 0x43, 0x02, 0xff, 0xff,
-                0xff, 0xbf, 0x08,
-
-            };
-
-            for (int i=0; i<header.length; i++)
-                out.write(header[i]);
-
-            for (int i=0; i<4; i++, actionLength >>>= 8)
-                out.write(actionLength);
-
-            int[] body = {
-                 0x01, 0x00, 0x00, 0x08, 0x00, 0x01, 0x01, 0x00,
-                 0x01, 0x00, 0x00, 0x00, 0x00,
-            };
-
-            for (int i=0; i<body.length; i++)
-                out.write(body[i]);
-
-            out.write(data);
-
-            // ShowFrame
-
-            out.write(64);
-            out.write(0);
-
-            // End of Movie
-
-            out.write(0);
-            out.write(0);
+            movie.encodeToFile(new File(filename));
         }
         catch (IOException e)
         {
-            System.err.println("Could not write Flash file: ");
-        }
-    }
-
-    /*
-     * Generates a sample swf file containing the compiled actions for a movie
-     * clip. Nothing is displayed in the movie however the file may be browsed by
-     * a suitable viewer or parsed using Transform to inspect the byte-codes and
-     * actions generated when the script is compiled.
-     */
-    private void movieClipScript(String filename)
-    {
-        try
-        {
-            FileOutputStream out = new FileOutputStream(filename);
-
-            byte[] data = new byte[0]; //TODO root.encode(5);
-
-            int fileLength = 38 + data.length;
-            int actionLength = data.length + 7;
-
-            /*
-             * The signature identifies the file as containing Flash 5.
-             */
-            int[] signature = { 0x46, 0x57, 0x53, 0x05 };
-
-            for (int i=0; i<signature.length; i++)
-                out.write(signature[i]);
-
-            // Write out length of file
-
-            for (int i=0; i<4; i++, fileLength >>>= 8)
-                out.write(fileLength);
-
-            /*
-             * The rest of the header sets the frame size to 200 x 200
-             * pixels, plays at 12 frames per second, contains 1 frame,
-             * sets the background colour to be white and writes out
-             * the first bytes of the PlaceObject2 tag.
-             */
-
-            int[] header = {
-                0x68, 0x00, 0x1f, 0x40, 0x00, 0x07, 0xd0, 0x00,
-                0x00, 0x0c, 0x01, 0x00, 0x43, 0x02, 0xff, 0xff,
-                0xff, 0xbf, 0x06,
-
-            };
-
-            for (int i=0; i<header.length; i++)
-                out.write(header[i]);
-
-            for (int i=0; i<4; i++, actionLength >>>= 8)
-                out.write(actionLength);
-
-            int[] body = {
-                 0x82, 0x01, 0x00, 0x01, 0x00,
-            };
-
-            for (int i=0; i<body.length; i++)
-                out.write(body[i]);
-
-            out.write(data);
-
-            out.write(0);
-            out.write(0);
-
-            // ShowFrame
-
-            out.write(64);
-            out.write(0);
-
-            // End of Movie
-
-            out.write(0);
-            out.write(0);
+            System.err.println("Could not write Flash file: " + e.getMessage());
         }
-        catch (IOException e)
+        catch (DataFormatException e)
         {
-            System.err.println("Could not write Flash file: ");
+            System.err.println("Could not encode Flash file: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,764 @@
+/*
+ * SwfPatcher.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.flagstone.transform.CharacterEncoding;
+import com.flagstone.transform.DoAction;
+import com.flagstone.transform.EventHandler;
+import com.flagstone.transform.MovieTag;
+import com.flagstone.transform.Place2;
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.button.DefineButton2;
+import com.flagstone.transform.coder.Context;
+import com.flagstone.transform.coder.DecoderRegistry;
+import com.flagstone.transform.coder.SWFDecoder;
+import com.flagstone.transform.coder.SWFEncoder;
+import com.flagstone.transform.movieclip.InitializeMovieClip;
+import com.flagstone.translate.ASCompiler;
+import com.flagstone.translate.CompileResult;
+import com.flagstone.translate.Profile;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.ScriptException;
+
+/**
+ * SwfPatcher replaces the scripts in an existing Flash file without decoding
+ * the whole movie. The file is read using a memory-mapped buffer and only the
+ * DoAction, DoInitAction, DefineButton2 and PlaceObject2 tags that contain
+ * the scripts being replaced are decoded and encoded again. All the other
+ * tags are copied, byte for byte, to the new file.
+ *
+ * The scripts that can be replaced are:
+ *
+ * <pre>
+ *   frame n           the actions executed in frame n of the main timeline,
+ *                     starting at 1. The first DoAction in the frame is
+ *                     replaced and any others are removed. If the frame has
+ *                     no actions then a DoAction is added at the end of the
+ *                     frame.
+ *   init id           the actions in the DoInitAction for the movie clip with
+ *                     the given identifier.
+ *   button id         the event handlers for the DefineButton2 with the given
+ *                     identifier.
+ *   clip frame:layer  the event handlers for the movie clip placed, with a
+ *                     PlaceObject2, on the layer in the given frame of the
+ *                     main timeline.
+ * </pre>
+ *
+ * Only the main timeline is searched. Tags inside a DefineSprite are always
+ * copied unchanged. All the scripts are compiled before the new file is
+ * written so errors in a script leave the destination untouched. Compressed
+ * files are inflated into memory since the tags cannot be found without
+ * decompressing them, and the new file is compressed as it is written.
+ *
+ * Synopsis:
+ *
+ * java -classpath &lt;classpath&gt; com.flagstone.translate.tools.SwfPatcher
+ *     [ --profile name ]
+ *     [ --include dir ]...
+ *     [ --frame n script | --init id script | --button id script
+ *       | --clip frame:layer script ]...
+ *     source destination
+ *
+ * The source and destination may be the same file.
+ */
+public final class SwfPatcher {
+
+    private static final int END = 0;
+    private static final int SHOW_FRAME = 1;
+    private static final int DO_ACTION = 12;
+    private static final int PLACE_2 = 26;
+    private static final int DEFINE_BUTTON_2 = 34;
+    private static final int DO_INIT_ACTION = 59;
+
+    /** Number of bytes in the signature, version and length. */
+    private static final int HEADER_SIZE = 8;
+    private static final int LENGTH_FIELD = 4;
+    /** Remainder of the header following the frame size. */
+    private static final int RATE_AND_COUNT = 4;
+    private static final int LONG_TAG = 0x3F;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final byte[] FWS = {0x46, 0x57, 0x53};
+    private static final byte[] CWS = {0x43, 0x57, 0x53};
+
+    public static void main(final String[] args) {
+        final ASCompiler compiler = new ASCompiler();
+        final SwfPatcher patcher = new SwfPatcher(compiler);
+        final List<String> files = new ArrayList<String>();
+        int status = 0;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--profile".equals(args[i])) {
+                    final Profile profile = Profile.fromName(value(args, ++i));
+                    if (profile == null) {
+                        throw new IllegalArgumentException(
+                                "Unsupported Profile: " + args[i]);
+                    }
+                    compiler.setProfile(profile);
+                } else if ("--include".equals(args[i])) {
+                    compiler.add(new File(value(args, ++i)));
+                } else if ("--frame".equals(args[i])) {
+                    final int frame = Integer.parseInt(value(args, ++i));
+                    patcher.setFrameScript(frame, new File(value(args, ++i)));
+                } else if ("--init".equals(args[i])) {
+                    final int ident = Integer.parseInt(value(args, ++i));
+                    patcher.setInitScript(ident, new File(value(args, ++i)));
+                } else if ("--button".equals(args[i])) {
+                    final int ident = Integer.parseInt(value(args, ++i));
+                    patcher.setButtonScript(ident, new File(value(args, ++i)));
+                } else if ("--clip".equals(args[i])) {
+                    final String[] place = value(args, ++i).split(":");
+                    if (place.length != 2) {
+                        throw new IllegalArgumentException(
+                                "Expected frame:layer, found " + args[i]);
+                    }
+                    patcher.setClipScript(Integer.parseInt(place[0]),
+                            Integer.parseInt(place[1]),
+                            new File(value(args, ++i)));
+                } else if (args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option: "
+                            + args[i]);
+                } else {
+                    files.add(args[i]);
+                }
+            }
+            if (files.size() != 2) {
+                throw new IllegalArgumentException(
+                        "Expected a source and destination file.");
+            }
+
+            final int count = patcher.patch(new File(files.get(0)),
+                    new File(files.get(1)));
+            System.out.println(count + " tags replaced.");
+        } catch (ScriptException e) {
+            for (ScriptError error : e.getErrors()) {
+                System.err.println(String.format("%s: %s line %d, column %d",
+                        error.getFilename(), error.getType(),
+                        error.getBeginLine(), error.getBeginColumn()));
+            }
+            status = 1;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        } catch (DataFormatException e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            status = 1;
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted.");
+            status = 2;
+        }
+        System.exit(status);
+    }
+
+    private static String value(final String[] args, final int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for "
+                    + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private final transient ASCompiler compiler;
+
+    private final transient Map<Integer, File> frames =
+        new LinkedHashMap<Integer, File>();
+    private final transient Map<Integer, File> inits =
+        new LinkedHashMap<Integer, File>();
+    private final transient Map<Integer, File> buttons =
+        new LinkedHashMap<Integer, File>();
+    private final transient Map<String, File> clips =
+        new LinkedHashMap<String, File>();
+
+    /**
+     * Create a SwfPatcher.
+     *
+     * @param comp the ASCompiler used to compile the scripts. The Profile of
+     * the compiler should match the version of the Flash files patched.
+     */
+    public SwfPatcher(final ASCompiler comp) {
+        compiler = comp;
+    }
+
+    /**
+     * Replace the actions executed in a frame of the main timeline.
+     *
+     * @param frame the number of the frame, starting at 1.
+     * @param script the file containing the script.
+     */
+    public void setFrameScript(final int frame, final File script) {
+        if (frame < 1) {
+            throw new IllegalArgumentException("Frame must be at least 1.");
+        }
+        frames.put(frame, script);
+    }
+
+    /**
+     * Replace the actions used to initialise a movie clip.
+     *
+     * @param identifier the identifier of the movie clip.
+     * @param script the file containing the script.
+     */
+    public void setInitScript(final int identifier, final File script) {
+        inits.put(identifier, script);
+    }
+
+    /**
+     * Replace the event handlers for a button.
+     *
+     * @param identifier the identifier of the DefineButton2.
+     * @param script the file containing the on() handlers.
+     */
+    public void setButtonScript(final int identifier, final File script) {
+        buttons.put(identifier, script);
+    }
+
+    /**
+     * Replace the event handlers for a movie clip placed on the main
+     * timeline.
+     *
+     * @param frame the number of the frame, starting at 1, containing the
+     * PlaceObject2.
+     * @param layer the layer where the movie clip is placed.
+     * @param script the file containing the onClipEvent() handlers.
+     */
+    public void setClipScript(final int frame, final int layer,
+            final File script) {
+        clips.put(clipKey(frame, layer), script);
+    }
+
+    /**
+     * Compile the scripts and write a copy of a Flash file with the scripts
+     * replaced.
+     *
+     * @param source the Flash file to patch.
+     * @param dest the file where the patched movie is written. It is written
+     * to a temporary file first so it may be the same as the source.
+     *
+     * @return the number of tags that were replaced or added.
+     *
+     * @throws IOException if the files cannot be read or written.
+     * @throws DataFormatException if the source is not a Flash file.
+     * @throws ScriptException if there are errors in any of the scripts.
+     * @throws InterruptedException if the thread is interrupted while the
+     * scripts are compiled.
+     */
+    public int patch(final File source, final File dest) throws IOException,
+            DataFormatException, ScriptException, InterruptedException {
+        final Map<File, List<Action>> scripts = compileScripts();
+        final File dir = dest.getAbsoluteFile().getParentFile();
+        final File tmp = File.createTempFile(dest.getName(), ".tmp", dir);
+        int count;
+
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            final FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                count = patch(in.getChannel(), out.getChannel(), scripts);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } catch (DataFormatException e) {
+            tmp.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        if (!tmp.renameTo(dest)) {
+            dest.delete();
+            if (!tmp.renameTo(dest)) {
+                tmp.delete();
+                throw new IOException("Cannot write " + dest);
+            }
+        }
+        return count;
+    }
+
+    /*
+     * compileScripts compiles all the scripts, in parallel, before any tags
+     * are written, checking that frame and initialisation scripts contain
+     * only actions and that button and clip scripts contain only event
+     * handlers.
+     */
+    private Map<File, List<Action>> compileScripts()
+            throws ScriptException, InterruptedException {
+        final Set<File> files = new LinkedHashSet<File>();
+        files.addAll(frames.values());
+        files.addAll(inits.values());
+        files.addAll(buttons.values());
+        files.addAll(clips.values());
+
+        final Map<File, List<Action>> scripts =
+            new HashMap<File, List<Action>>();
+        final List<ScriptError> errors = new ArrayList<ScriptError>();
+
+        for (CompileResult result : compiler.compileAll(files)) {
+            if (result.isSuccess()) {
+                scripts.put(result.getFile(), result.getActions());
+            } else {
+                errors.addAll(result.getErrors());
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new ScriptException(errors);
+        }
+
+        final Set<File> actions = new HashSet<File>(frames.values());
+        actions.addAll(inits.values());
+
+        for (File file : actions) {
+            for (Action action : scripts.get(file)) {
+                if (action instanceof EventHandler) {
+                    throw new IllegalArgumentException(file.getPath()
+                            + " contains event handlers.");
+                }
+            }
+        }
+
+        final Set<File> handlers = new HashSet<File>(buttons.values());
+        handlers.addAll(clips.values());
+
+        for (File file : handlers) {
+            for (Action action : scripts.get(file)) {
+                if (!(action instanceof EventHandler)) {
+                    throw new IllegalArgumentException(file.getPath()
+                            + " contains actions outside an event handler.");
+                }
+            }
+        }
+        return scripts;
+    }
+
+    /*
+     * patch maps the source file and writes the header of the new file. The
+     * length of the file is only known once all the tags have been written
+     * so it is filled in at the end.
+     */
+    private int patch(final FileChannel input, final FileChannel output,
+            final Map<File, List<Action>> scripts) throws IOException,
+            DataFormatException {
+
+        final MappedByteBuffer mapped = input.map(FileChannel.MapMode.READ_ONLY,
+                0, input.size());
+        final byte[] signature = new byte[3];
+
+        if (mapped.limit() < HEADER_SIZE) {
+            throw new DataFormatException("Not a Flash file.");
+        }
+        mapped.get(signature);
+
+        final boolean compressed;
+
+        if (Arrays.equals(signature, CWS)) {
+            compressed = true;
+        } else if (Arrays.equals(signature, FWS)) {
+            compressed = false;
+        } else {
+            throw new DataFormatException("Not a Flash file.");
+        }
+
+        final int version = mapped.get() & 0xFF;
+        final int length = mapped.order(ByteOrder.LITTLE_ENDIAN).getInt();
+        final ByteBuffer body;
+
+        if (compressed) {
+            body = inflate(mapped, length - HEADER_SIZE);
+        } else {
+            body = mapped.slice();
+        }
+        body.order(ByteOrder.LITTLE_ENDIAN);
+
+        final Context context = new Context();
+        context.setRegistry(DecoderRegistry.getDefault());
+        context.setEncoding(CharacterEncoding.UTF8.getEncoding());
+        context.put(Context.VERSION, version);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(signature).put((byte) version).putInt(0).flip();
+        output.write(header);
+
+        final WritableByteChannel channel;
+        final Deflater deflater;
+        final DeflaterOutputStream stream;
+
+        if (compressed) {
+            deflater = new Deflater();
+            stream = new DeflaterOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(output), BUFFER_SIZE),
+                    deflater, BUFFER_SIZE);
+            channel = Channels.newChannel(stream);
+        } else {
+            deflater = null;
+            stream = null;
+            channel = output;
+        }
+
+        try {
+            final int count = patchTags(body, channel, context, scripts);
+            final long written;
+
+            if (compressed) {
+                stream.finish();
+                stream.flush();
+                written = HEADER_SIZE + deflater.getBytesRead();
+            } else {
+                written = output.size();
+            }
+
+            final ByteBuffer size = ByteBuffer.allocate(LENGTH_FIELD);
+            size.order(ByteOrder.LITTLE_ENDIAN).putInt((int) written).flip();
+            output.write(size, LENGTH_FIELD);
+
+            return count;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /*
+     * patchTags walks through the tags on the main timeline. Runs of tags
+     * that are not changed are written directly from the source buffer.
+     */
+    private int patchTags(final ByteBuffer body,
+            final WritableByteChannel channel, final Context context,
+            final Map<File, List<Action>> scripts) throws IOException,
+            DataFormatException {
+
+        final Set<String> found = new HashSet<String>();
+        final int limit = body.limit();
+        /*
+         * The body starts with the frame size, a bounding box where the
+         * first 5 bits give the size of the four fields that follow.
+         */
+        final int bits = (body.get(0) & 0xFF) >>> 3;
+        int pos = (5 + 4 * bits + 7) / 8 + RATE_AND_COUNT;
+        int start = 0;
+        int count = 0;
+
+        int frame = 1;
+        boolean frameDone = false;
+
+        int tagStart;
+        int type;
+        int tagLength;
+        int ident;
+        File file;
+        byte[] bytes;
+
+        while (pos < limit) {
+            tagStart = pos;
+            type = (body.getShort(pos) & 0xFFFF) >>> 6;
+            tagLength = body.getShort(pos) & LONG_TAG;
+            pos += 2;
+            if (tagLength == LONG_TAG) {
+                tagLength = body.getInt(pos);
+                pos += 4;
+            }
+            final int tagBody = pos;
+            pos += tagLength;
+
+            if (tagLength < 0 || pos > limit) {
+                throw new DataFormatException("Tag extends beyond the end of "
+                        + "the file at offset " + tagStart);
+            }
+
+            bytes = null;
+
+            switch (type) {
+            case DO_ACTION:
+                file = frames.get(frame);
+                if (file != null) {
+                    copy(body, start, tagStart, channel);
+                    if (!frameDone) {
+                        bytes = encode(new DoAction(scripts.get(file)),
+                                context);
+                        frameDone = true;
+                    }
+                    start = pos;
+                    found.add(frameKey(frame));
+                }
+                break;
+            case SHOW_FRAME:
+                file = frames.get(frame);
+                if (file != null && !frameDone) {
+                    copy(body, start, tagStart, channel);
+                    bytes = encode(new DoAction(scripts.get(file)), context);
+                    start = tagStart;
+                    found.add(frameKey(frame));
+                }
+                frame++;
+                frameDone = false;
+                break;
+            case DO_INIT_ACTION:
+                ident = body.getShort(tagBody) & 0xFFFF;
+                file = inits.get(ident);
+                if (file != null) {
+                    copy(body, start, tagStart, channel);
+                    bytes = encode(new InitializeMovieClip(ident,
+                            scripts.get(file)), context);
+                    start = pos;
+                    found.add(initKey(ident));
+                }
+                break;
+            case DEFINE_BUTTON_2:
+                ident = body.getShort(tagBody) & 0xFFFF;
+                file = buttons.get(ident);
+                if (file != null) {
+                    copy(body, start, tagStart, channel);
+                    final DefineButton2 button = new DefineButton2(
+                            decoder(body, tagStart, pos), context);
+                    button.setEvents(handlers(scripts.get(file)));
+                    bytes = encode(button, context);
+                    start = pos;
+                    found.add(buttonKey(ident));
+                }
+                break;
+            case PLACE_2:
+                ident = body.getShort(tagBody + 1) & 0xFFFF;
+                file = clips.get(clipKey(frame, ident));
+                if (file != null) {
+                    copy(body, start, tagStart, channel);
+                    final Place2 place = new Place2(
+                            decoder(body, tagStart, pos), context);
+                    place.setEvents(handlers(scripts.get(file)));
+                    bytes = encode(place, context);
+                    start = pos;
+                    found.add(clipKey(frame, ident));
+                }
+                break;
+            default:
+                break;
+            }
+
+            if (bytes != null) {
+                write(bytes, channel);
+                count++;
+            }
+            if (type == END) {
+                break;
+            }
+        }
+        copy(body, start, pos, channel);
+
+        checkFound(found);
+        return count;
+    }
+
+    /*
+     * checkFound reports any scripts where the tag they replace was not
+     * found in the movie.
+     */
+    private void checkFound(final Set<String> found) {
+        for (Map.Entry<Integer, File> entry : frames.entrySet()) {
+            if (!found.contains(frameKey(entry.getKey()))) {
+                throw new IllegalArgumentException("No frame "
+                        + entry.getKey());
+            }
+        }
+        for (Map.Entry<Integer, File> entry : inits.entrySet()) {
+            if (!found.contains(initKey(entry.getKey()))) {
+                throw new IllegalArgumentException(
+                        "No DoInitAction for movie clip " + entry.getKey());
+            }
+        }
+        for (Map.Entry<Integer, File> entry : buttons.entrySet()) {
+            if (!found.contains(buttonKey(entry.getKey()))) {
+                throw new IllegalArgumentException(
+                        "No DefineButton2 with identifier " + entry.getKey());
+            }
+        }
+        for (Map.Entry<String, File> entry : clips.entrySet()) {
+            if (!found.contains(entry.getKey())) {
+                throw new IllegalArgumentException(
+                        "No PlaceObject2 at frame:layer " + entry.getKey());
+            }
+        }
+    }
+
+    private static String frameKey(final int frame) {
+        return "frame " + frame;
+    }
+
+    private static String initKey(final int identifier) {
+        return "init " + identifier;
+    }
+
+    private static String buttonKey(final int identifier) {
+        return "button " + identifier;
+    }
+
+    private static String clipKey(final int frame, final int layer) {
+        return frame + ":" + layer;
+    }
+
+    private static List<EventHandler> handlers(final List<Action> actions) {
+        final List<EventHandler> list =
+            new ArrayList<EventHandler>(actions.size());
+        for (Action action : actions) {
+            list.add((EventHandler) action);
+        }
+        return list;
+    }
+
+    private static ByteBuffer inflate(final ByteBuffer buffer,
+            final int length) throws IOException, DataFormatException {
+        if (length < 0) {
+            throw new DataFormatException("Not a Flash file.");
+        }
+
+        final byte[] data = new byte[length];
+        final Inflater inflater = new Inflater();
+        final InputStream in = new InflaterInputStream(
+                new BufferInputStream(buffer), inflater, BUFFER_SIZE);
+        try {
+            int offset = 0;
+            int read;
+            while (offset < length) {
+                read = in.read(data, offset, length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return ByteBuffer.wrap(data, 0, offset).slice();
+        } finally {
+            in.close();
+            inflater.end();
+        }
+    }
+
+    private static SWFDecoder decoder(final ByteBuffer buffer,
+            final int start, final int end) {
+        final byte[] data = new byte[end - start];
+        final ByteBuffer tag = buffer.duplicate();
+        tag.position(start);
+        tag.get(data);
+        return new SWFDecoder(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] encode(final MovieTag tag, final Context context)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SWFEncoder coder = new SWFEncoder(out);
+        tag.prepareToEncode(context);
+        tag.encode(coder, context);
+        coder.flush();
+        return out.toByteArray();
+    }
+
+    private static void copy(final ByteBuffer buffer, final int start,
+            final int end, final WritableByteChannel channel)
+            throws IOException {
+        final ByteBuffer span = buffer.duplicate();
+        span.limit(end).position(start);
+        while (span.hasRemaining()) {
+            channel.write(span);
+        }
+    }
+
+    private static void write(final byte[] bytes,
+            final WritableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /*
+     * BufferInputStream adapts a ByteBuffer so a compressed movie can be
+     * inflated directly from the memory-mapped file.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final transient ByteBuffer buffer;
+
+        BufferInputStream(final ByteBuffer buf) {
+            buffer = buf;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * FoldConstantsTest.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public final class FoldConstantsTest {
+
+    private String compile(final Profile profile, final String script)
+            throws IOException, ScriptException {
+        final ASCompiler compiler = new ASCompiler();
+        compiler.setProfile(profile);
+        compiler.setFoldConstants(true);
+        return compiler.compile(new ByteArrayInputStream(
+                script.getBytes("UTF-8"))).toString();
+    }
+
+    private String compile(final String script)
+            throws IOException, ScriptException {
+        return compile(Profile.DEFAULT_1_5, script);
+    }
+
+    @Test
+    public void checkStringsAreConcatenated()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [foobar], SET_VARIABLE, END]",
+                compile("x = \"foo\" + \"bar\";"));
+    }
+
+    @Test
+    public void checkFoldedStringsAreNotInTable()
+            throws IOException, ScriptException {
+        assertEquals("[Table: { values=[y, foobar, v, z]}, "
+                + "Push: [TableIndex: { index=0}], "
+                + "Push: [TableIndex: { index=1}], SET_VARIABLE, "
+                + "Push: [TableIndex: { index=2}], Push: [4], SET_VARIABLE, "
+                + "Push: [TableIndex: { index=3}], "
+                + "Push: [TableIndex: { index=1}], SET_VARIABLE, END]",
+                compile("y = \"foo\" + \"bar\"; v = Math.max(3, 4); "
+                        + "z = \"foo\" + \"bar\";"));
+    }
+
+    @Test
+    public void checkComparisonsAreEvaluated()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [true], SET_VARIABLE, "
+                + "Push: [y], Push: [false], SET_VARIABLE, END]",
+                compile("x = 1 < 2; y = \"a\" == \"b\";"));
+    }
+
+    @Test
+    public void checkComparisonsAreNotEvaluatedForFlash4()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [1], Push: [2], LESS, SET_VARIABLE, "
+                + "END]", compile(Profile.DEFAULT_1_4, "x = 1 < 2;"));
+    }
+
+    @Test
+    public void checkMathFunctionsAreEvaluated()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [4], SET_VARIABLE, "
+                + "Push: [y], Push: [2], SET_VARIABLE, END]",
+                compile("x = Math.max(3, 4); y = Math.floor(2.5);"));
+    }
+
+    @Test
+    public void checkRandomIsNotEvaluated()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [z], Push: [0.0], Push: [Math], GET_VARIABLE, "
+                + "Push: [random], EXECUTE_METHOD, SET_VARIABLE, END]",
+                compile("z = Math.random();"));
+    }
+
+    @Test
+    public void checkUnsignedShiftIsUnsigned()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [a], Push: [4.294967295E9], SET_VARIABLE, "
+                + "Push: [b], Push: [4], SET_VARIABLE, "
+                + "Push: [c], Push: [2147483644], SET_VARIABLE, END]",
+                compile("a = -1 >>> 0; b = 16 >>> 2; c = -8 >>> 1;"));
+    }
+
+    @Test
+    public void checkNaNIsNotEvaluated() throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [NaN], GET_VARIABLE, Push: [1], "
+                + "LESS, SET_VARIABLE, Push: [y], Push: [-1], Push: [1], "
+                + "Push: [Math], GET_VARIABLE, Push: [sqrt], EXECUTE_METHOD, "
+                + "SET_VARIABLE, Push: [z], Push: [0.0], Push: [0.0], "
+                + "DIVIDE, SET_VARIABLE, END]",
+                compile("x = NaN < 1; y = Math.sqrt(-1); z = 0 / 0;"));
+    }
+
+    @Test
+    public void checkOverflowIsDouble() throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [2.147483648E9], SET_VARIABLE, "
+                + "Push: [y], Push: [4.294967296E9], SET_VARIABLE, "
+                + "Push: [z], Push: [-2.147483649E9], SET_VARIABLE, END]",
+                compile("x = 2147483647 + 1; y = 65536 * 65536; "
+                        + "z = -2147483648 - 1;"));
+    }
+
+    @Test
+    public void checkLargeLiteralIsDouble()
+            throws IOException, ScriptException {
+        assertEquals("[Push: [x], Push: [2.147483648E9], SET_VARIABLE, "
+                + "Push: [y], Push: [4.294967295E9], SET_VARIABLE, END]",
+                compile("x = 2147483648; y = 0xFFFFFFFF;"));
+    }
+}
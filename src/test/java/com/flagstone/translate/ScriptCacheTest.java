@@ -0,0 +1,190 @@
+/*
+ * ScriptCacheTest.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.NewFunction;
+
+public final class ScriptCacheTest {
+
+    private File dir;
+    private File library;
+    private File script;
+    private ASCompiler compiler;
+    private ScriptCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("include", "");
+        dir.delete();
+        dir.mkdir();
+
+        library = new File(dir, "library.as");
+        script = new File(dir, "script.as");
+
+        write(library, "function sum(a, b) { return a + b; }");
+        write(script, "#include \"library.as\"\nx = sum(1, 2);");
+
+        cache = new ScriptCache();
+        compiler = new ASCompiler();
+        compiler.add(dir);
+        compiler.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void checkIncludeIsReplacedByFile()
+            throws IOException, ScriptException {
+        List<Action> actions = compiler.compile(script);
+        assertTrue(actions.get(0) instanceof NewFunction);
+    }
+
+    @Test
+    public void checkFirstIncludeIsMiss() throws IOException, ScriptException {
+        compiler.compile(script);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void checkSecondIncludeIsHit() throws IOException, ScriptException {
+        List<Action> first = compiler.compile(script);
+        List<Action> second = compiler.compile(script);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(first.toString(), second.toString());
+    }
+
+    @Test
+    public void checkChangedFileIsParsedAgain()
+            throws IOException, ScriptException {
+        compiler.compile(script);
+        write(library, "function sum(a, b, c) { return a + b + c; }");
+        library.setLastModified(library.lastModified() + 2000);
+        List<Action> actions = compiler.compile(script);
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(3, ((NewFunction) actions.get(0)).getArguments().size());
+    }
+
+    @Test
+    public void checkTouchedFileIsHit() throws IOException, ScriptException {
+        compiler.compile(script);
+        library.setLastModified(library.lastModified() + 2000);
+        compiler.compile(script);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void checkNestedIncludeIsReplacedByFile()
+            throws IOException, ScriptException {
+        write(library, "#include \"utility.as\"\n"
+                + "function sum(a, b) { return a + b; }");
+        write(new File(dir, "utility.as"), "function one() { return 1; }");
+        compiler.compile(script);
+        List<Action> actions = compiler.compile(script);
+        assertEquals(2, cache.getHits());
+        assertEquals("one", ((NewFunction) actions.get(0)).getName());
+        assertEquals("sum", ((NewFunction) actions.get(1)).getName());
+    }
+
+    @Test
+    public void checkRecursiveIncludeIsError() throws IOException {
+        write(library, "#include \"script.as\"");
+        try {
+            compiler.compile(script);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(1, e.getErrors().size());
+            assertEquals(ScriptError.Type.SCRIPT_PARSE_ERROR,
+                    e.getErrors().get(0).getType());
+            assertEquals("script.as", e.getErrors().get(0).getFilename());
+        }
+    }
+
+    @Test
+    public void checkSelfIncludeIsError() throws IOException {
+        write(library, "#include \"./library.as\"");
+        try {
+            compiler.compile(script);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(1, e.getErrors().size());
+            assertEquals("./library.as", e.getErrors().get(0).getFilename());
+            assertEquals(1, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void checkMissingIncludeIsError() throws IOException {
+        library.delete();
+        try {
+            compiler.compile(script);
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.Type.SCRIPT_NOT_FOUND,
+                    e.getErrors().get(0).getType());
+        }
+    }
+
+    private void write(final File file, final String content)
+            throws IOException {
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
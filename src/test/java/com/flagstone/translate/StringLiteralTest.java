@@ -0,0 +1,154 @@
+/*
+ * StringLiteralTest.java
+ * Translate
+ *
+ * Copyright (c) 2010 Flagstone Software Ltd. All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *  * Neither the name of Flagstone Software Ltd. nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.flagstone.translate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.transform.action.Push;
+
+public final class StringLiteralTest {
+
+    private List<Action> compile(final String script)
+            throws IOException, ScriptException {
+        return new ASCompiler().compile(new ByteArrayInputStream(
+                script.getBytes("UTF-8")));
+    }
+
+    /*
+     * literal returns the string pushed when a string literal, in double
+     * quotes, is assigned to a variable.
+     */
+    private Object literal(final String contents)
+            throws IOException, ScriptException {
+        final List<Action> actions = compile("x = \"" + contents + "\";");
+        return ((Push) actions.get(1)).getValues().get(0);
+    }
+
+    @Test
+    public void checkEscapedQuotes() throws IOException, ScriptException {
+        assertEquals("\"", literal("\\\""));
+        assertEquals("'", ((Push) compile("x = '\\'';").get(1))
+                .getValues().get(0));
+    }
+
+    @Test
+    public void checkControlCharacters() throws IOException, ScriptException {
+        assertEquals("\n\t\b\r\f\\", literal("\\n\\t\\b\\r\\f\\\\"));
+    }
+
+    @Test
+    public void checkHexEscape() throws IOException, ScriptException {
+        assertEquals("A~", literal("\\x41\\X7e"));
+    }
+
+    @Test
+    public void checkHexEscapeUsesTwoDigits()
+            throws IOException, ScriptException {
+        assertEquals("A4243", literal("\\x414243"));
+    }
+
+    @Test
+    public void checkTruncatedHexEscape() throws IOException, ScriptException {
+        assertEquals("\u0004g", literal("\\x4g"));
+    }
+
+    @Test
+    public void checkUnicodeEscape() throws IOException, ScriptException {
+        assertEquals("A\u00e9\u4e2d", literal("\\u0041\\u00e9\\u4e2d"));
+    }
+
+    @Test
+    public void checkUnicodeEscapeUsesFourDigits()
+            throws IOException, ScriptException {
+        assertEquals("A1", literal("\\u00411"));
+    }
+
+    @Test
+    public void checkTruncatedUnicodeEscape()
+            throws IOException, ScriptException {
+        assertEquals("Az", literal("\\u41z"));
+    }
+
+    @Test
+    public void checkUnicodeQuoteDoesNotEndString()
+            throws IOException, ScriptException {
+        assertEquals("a\"b", literal("a\\u0022b"));
+    }
+
+    @Test
+    public void checkOctalEscape() throws IOException, ScriptException {
+        assertEquals("A\u0007?\u0000", literal("\\101\\7\\77\\0"));
+    }
+
+    @Test
+    public void checkOctalEscapeUsesThreeDigits()
+            throws IOException, ScriptException {
+        assertEquals("A2", literal("\\1012"));
+    }
+
+    @Test
+    public void checkOctalEscapeIsAtMost0377()
+            throws IOException, ScriptException {
+        assertEquals("\u00ff", literal("\\377"));
+        assertEquals("?7", literal("\\777"));
+        assertEquals(" 0", literal("\\400"));
+    }
+
+    @Test
+    public void checkInvalidEscapeIsError() throws IOException {
+        try {
+            literal("\\q");
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.Type.SCRIPT_PARSE_ERROR,
+                    e.getErrors().get(0).getType());
+        }
+    }
+
+    @Test
+    public void checkUnicodeEscapeOutsideStringIsError() throws IOException {
+        try {
+            compile("\\u0078 = 1;");
+            fail();
+        } catch (ScriptException e) {
+            assertEquals(ScriptError.Type.SCRIPT_PARSE_ERROR,
+                    e.getErrors().get(0).getType());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package tools;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.flagstone.translate.Parser;
+import com.flagstone.translate.ParserRegistry;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.as1.AS1Parser;
+
+/**
+ * ParserBenchmark compares the time and memory allocated when a new parser is
+ * created for each script with reusing the parsers kept by ParserRegistry.
+ *
+ * Usage: ParserBenchmark [scripts [statements]]
+ *
+ * where scripts is the number of scripts parsed in each run (default 20000)
+ * and statements is the number of statements in each script (default 10).
+ * Small scripts show the cost of creating the parser most clearly. The bytes
+ * allocated are only reported on JVMs that support measuring them.
+ */
+public final class ParserBenchmark {
+
+    private static final int RUNS = 5;
+
+    public static void main(final String[] args) {
+        final int scripts = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        final int statements = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final byte[] script = script(statements);
+
+        for (int run = 0; run < RUNS; run++) {
+            report("new", scripts, measure(false, script, scripts));
+            report("pooled", scripts, measure(true, script, scripts));
+        }
+    }
+
+    private static byte[] script(final int statements) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < statements; i++) {
+            builder.append("total = total + item").append(i)
+                .append(".value * 2;\n");
+        }
+        return builder.toString().getBytes();
+    }
+
+    /*
+     * measure parses the script the given number of times and returns the
+     * elapsed time, in nanoseconds, and the number of bytes allocated.
+     */
+    private static long[] measure(final boolean pooled, final byte[] script,
+            final int scripts) {
+        final List<ScriptError> errors = new ArrayList<ScriptError>();
+        final long bytes = allocated();
+        final long start = System.nanoTime();
+        Parser parser;
+
+        for (int i = 0; i < scripts; i++) {
+            parser = pooled ? ParserRegistry.getParser(1) : new AS1Parser();
+            parser.setErrors(errors);
+            parser.parse(new ByteArrayInputStream(script));
+
+            if (pooled) {
+                ParserRegistry.releaseParser(1, parser);
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalStateException(errors.toString());
+        }
+        return new long[] {System.nanoTime() - start, allocated() - bytes};
+    }
+
+    private static void report(final String label, final int scripts,
+            final long[] result) {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format("%-8s %8.2f us/script", label,
+                result[0] / 1000.0 / scripts));
+
+        if (result[1] >= 0) {
+            builder.append(String.format(" %10d bytes/script",
+                    result[1] / scripts));
+        }
+        System.out.println(builder);
+    }
+
+    /*
+     * allocated returns the number of bytes allocated by the current thread,
+     * using the extension to ThreadMXBean provided by HotSpot, or -1 if the
+     * JVM does not support it.
+     */
+    private static long allocated() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        try {
+            return (Long) Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class)
+                .invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
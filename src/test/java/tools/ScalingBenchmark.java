@@ -0,0 +1,396 @@
+package tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import tools.StressGenerator.Shape;
+
+import com.flagstone.transform.action.Action;
+import com.flagstone.translate.ASCompiler;
+import com.flagstone.translate.CodeGenerator;
+import com.flagstone.translate.Context;
+import com.flagstone.translate.Generator;
+import com.flagstone.translate.GeneratorRegistry;
+import com.flagstone.translate.Node;
+import com.flagstone.translate.Parser;
+import com.flagstone.translate.ParserRegistry;
+import com.flagstone.translate.Profile;
+import com.flagstone.translate.ScriptError;
+import com.flagstone.translate.ScriptException;
+
+/**
+ * ScalingBenchmark compiles the scripts created by StressGenerator at doubling
+ * sizes and reports any phase of the compiler where the time taken or the
+ * memory allocated grows faster than n log n.
+ *
+ * Usage: ScalingBenchmark [doublings [shape ...]]
+ *
+ * where doublings is the number of times the size of each script is doubled
+ * (default 6) and shape is one or more of the shapes defined in
+ * StressGenerator (default all). The growth of each phase is estimated by
+ * fitting a power law to the measurements for the largest sizes. The program exits with status 1
+ * if any phase grows too quickly. Phases that take less than 0.1ms are too
+ * noisy to measure reliably so their times are ignored. The bytes allocated
+ * are only reported on JVMs that support measuring them.
+ */
+public final class ScalingBenchmark {
+
+    private static final String[] PHASES = {
+        "parse", "search", "reorder", "generate", "length", "compile"
+    };
+
+    private static final int PARSE = 0;
+    private static final int SEARCH = 1;
+    private static final int REORDER = 2;
+    private static final int GENERATE = 3;
+    private static final int LENGTH = 4;
+    private static final int COMPILE = 5;
+
+    private static final String DEST_DIR = "target/stress";
+    private static final Profile PROFILE = Profile.DEFAULT_1_8;
+
+    /** Each size is compiled several times and the fastest time is used. */
+    private static final int RUNS = 5;
+    /** Times shorter than this, in nanoseconds, are not used. */
+    private static final long MIN_TIME = 100000;
+    /** The number of sizes used to estimate the growth of a phase. */
+    private static final int POINTS = 3;
+    /** How much larger the exponent may be than the one for n log n. */
+    private static final double TOLERANCE = 0.25;
+
+    public static void main(final String[] args) {
+        final int doublings = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        final List<Shape> shapes = new ArrayList<Shape>();
+        final File dir = new File(DEST_DIR);
+        boolean flagged = false;
+
+        for (int i = 1; i < args.length; i++) {
+            shapes.add(Shape.valueOf(args[i].toUpperCase()));
+        }
+        if (shapes.isEmpty()) {
+            shapes.addAll(Arrays.asList(Shape.values()));
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create directory: " + dir);
+        }
+
+        for (Shape shape : shapes) {
+            flagged |= run(shape, dir, doublings);
+        }
+        if (flagged) {
+            System.exit(1);
+        }
+    }
+
+    /*
+     * initialSize returns the smallest size used for each shape. The sizes
+     * are chosen so the smallest script takes a measurable amount of time.
+     */
+    private static int initialSize(final Shape shape) {
+        final int size;
+
+        switch (shape) {
+        case NESTING:
+            size = 32;
+            break;
+        case SWITCH:
+            size = 256;
+            break;
+        case INCLUDES:
+            size = 8;
+            break;
+        default:
+            size = 1024;
+            break;
+        }
+        return size;
+    }
+
+    /*
+     * run measures the compiler for a shape at each size, prints the results
+     * and returns true if any phase grows faster than n log n.
+     */
+    private static boolean run(final Shape shape, final File dir,
+            final int doublings) {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final List<long[]> times = new ArrayList<long[]>();
+        final List<long[]> bytes = new ArrayList<long[]>();
+        int size = initialSize(shape);
+        long[][] result;
+
+        System.out.println(shape);
+
+        try {
+            measure(shape, size, dir);
+        } catch (Throwable e) {
+            System.out.println("    failed: " + e);
+            return false;
+        }
+
+        for (int i = 0; i <= doublings; i++, size *= 2) {
+            try {
+                result = measure(shape, size, dir);
+            } catch (Throwable e) {
+                System.out.println("    size " + size + " failed: " + e);
+                break;
+            }
+            sizes.add(size);
+            times.add(result[0]);
+            bytes.add(result[1]);
+        }
+
+        if (sizes.isEmpty()) {
+            return false;
+        }
+
+        print("time (ms)", sizes, times, 1000000.0);
+        print("allocated (KB)", sizes, bytes, 1024.0);
+
+        boolean flagged = false;
+
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            flagged |= check(shape, "time", phase, sizes, times, MIN_TIME);
+            flagged |= check(shape, "memory", phase, sizes, bytes, 1);
+        }
+        System.out.println();
+        return flagged;
+    }
+
+    /*
+     * measure compiles a script RUNS times and returns the shortest time,
+     * in nanoseconds, and the smallest number of bytes allocated by each
+     * phase. The value is -1 if a phase was not run.
+     */
+    private static long[][] measure(final Shape shape, final int size,
+            final File dir) throws Exception {
+        final long[][] result = new long[2][PHASES.length];
+        final ASCompiler compiler = new ASCompiler();
+        final byte[] script;
+        final File file;
+
+        Arrays.fill(result[0], Long.MAX_VALUE);
+        Arrays.fill(result[1], Long.MAX_VALUE);
+
+        compiler.setProfile(PROFILE);
+
+        if (shape == Shape.INCLUDES) {
+            file = StressGenerator.writeIncludes(dir, size);
+            script = null;
+            compiler.add(dir);
+        } else {
+            file = null;
+            script = StressGenerator.script(shape, size).getBytes("UTF-8");
+        }
+
+        final long[] mark = new long[2];
+
+        for (int run = 0; run < RUNS; run++) {
+            System.gc();
+            if (script != null) {
+                phases(script, mark, result);
+                mark(mark);
+                compiler.compile(new ByteArrayInputStream(script));
+            } else {
+                mark(mark);
+                compiler.compile(file);
+            }
+            lap(mark, result, COMPILE);
+        }
+
+        for (long[] values : result) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == Long.MAX_VALUE) {
+                    values[i] = -1;
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * phases runs each phase of the compiler in turn and records the time
+     * taken and the memory allocated.
+     */
+    private static void phases(final byte[] script, final long[] mark,
+            final long[][] result) throws ScriptException {
+        final int version = PROFILE.getScriptVersion();
+        final List<ScriptError> errors = new ArrayList<ScriptError>();
+        final Parser parser = ParserRegistry.getParser(version);
+        final Node node;
+
+        mark(mark);
+        try {
+            parser.setErrors(errors);
+            node = parser.parse(new ByteArrayInputStream(script));
+        } finally {
+            ParserRegistry.releaseParser(version, parser);
+        }
+        lap(mark, result, PARSE);
+
+        if (!errors.isEmpty()) {
+            throw new ScriptException(errors);
+        }
+
+        final Generator registry = GeneratorRegistry.getGenerator(version);
+        final Context context = new Context("UTF-8",
+                PROFILE.getFlashVersion());
+        final CodeGenerator generator = registry.getGenerator(node.getType());
+        final List<Action> actions = new ArrayList<Action>();
+
+        mark(mark);
+        generator.search(registry, context, node);
+        lap(mark, result, SEARCH);
+
+        generator.reorder(registry, context, node);
+        lap(mark, result, REORDER);
+
+        generator.generate(registry, context, node, actions);
+        lap(mark, result, GENERATE);
+
+        final com.flagstone.transform.coder.Context coder =
+            new com.flagstone.transform.coder.Context();
+        int length = 0;
+
+        for (Action action : actions) {
+            length += action.prepareToEncode(coder);
+        }
+        lap(mark, result, LENGTH);
+
+        if (length == 0) {
+            throw new IllegalStateException("No actions generated.");
+        }
+    }
+
+    private static void mark(final long[] mark) {
+        mark[0] = System.nanoTime();
+        mark[1] = allocated();
+    }
+
+    /*
+     * lap records the time and memory used since the mark, keeping the
+     * smallest values seen, then moves the mark to the current time.
+     */
+    private static void lap(final long[] mark, final long[][] result,
+            final int phase) {
+        final long time = System.nanoTime();
+        final long bytes = allocated();
+
+        result[0][phase] = Math.min(result[0][phase], time - mark[0]);
+        if (bytes >= 0) {
+            result[1][phase] = Math.min(result[1][phase], bytes - mark[1]);
+        }
+        mark[0] = System.nanoTime();
+        mark[1] = allocated();
+    }
+
+    private static void print(final String title, final List<Integer> sizes,
+            final List<long[]> values, final double scale) {
+        final StringBuilder builder = new StringBuilder();
+
+        builder.append(String.format("    %-16s", title));
+        for (String phase : PHASES) {
+            builder.append(String.format("%10s", phase));
+        }
+        System.out.println(builder);
+
+        for (int i = 0; i < sizes.size(); i++) {
+            builder.setLength(0);
+            builder.append(String.format("    %16d", sizes.get(i)));
+
+            for (long value : values.get(i)) {
+                if (value < 0) {
+                    builder.append(String.format("%10s", "-"));
+                } else {
+                    builder.append(String.format("%10.2f", value / scale));
+                }
+            }
+            System.out.println(builder);
+        }
+    }
+
+    /*
+     * check fits a power law, y = a * n^k, to the measurements for a phase
+     * using a least squares fit of log(y) against log(n) and compares the
+     * exponent with the one for n log n over the same sizes. Only the three
+     * largest sizes are used so behaviour that only appears in large scripts
+     * is not hidden by the smaller ones. Values below the minimum are ignored.
+     */
+    private static boolean check(final Shape shape, final String label,
+            final int phase, final List<Integer> sizes,
+            final List<long[]> values, final long minimum) {
+        final List<Double> logSizes = new ArrayList<Double>();
+        final List<Double> logValues = new ArrayList<Double>();
+        final List<Double> logExpected = new ArrayList<Double>();
+        double size;
+        long value;
+
+        for (int i = sizes.size() - 1; i >= 0 && logSizes.size() < POINTS;
+                i--) {
+            size = sizes.get(i);
+            value = values.get(i)[phase];
+
+            if (value >= minimum) {
+                logSizes.add(Math.log(size));
+                logValues.add(Math.log(value));
+                logExpected.add(Math.log(size * Math.log(size)));
+            }
+        }
+
+        if (logSizes.size() < POINTS) {
+            return false;
+        }
+
+        final double exponent = slope(logSizes, logValues);
+        final double expected = slope(logSizes, logExpected);
+        final boolean flagged = exponent > expected + TOLERANCE;
+
+        if (flagged) {
+            System.out.println(String.format(
+                    "    %s %s %s grows as n^%.2f, faster than n log n (n^%.2f)",
+                    shape, PHASES[phase], label, exponent, expected));
+        }
+        return flagged;
+    }
+
+    private static double slope(final List<Double> x, final List<Double> y) {
+        final int count = x.size();
+        double sumX = 0;
+        double sumY = 0;
+        double sumXY = 0;
+        double sumXX = 0;
+
+        for (int i = 0; i < count; i++) {
+            sumX += x.get(i);
+            sumY += y.get(i);
+            sumXY += x.get(i) * y.get(i);
+            sumXX += x.get(i) * x.get(i);
+        }
+        return (count * sumXY - sumX * sumY) / (count * sumXX - sumX * sumX);
+    }
+
+    /*
+     * allocated returns the number of bytes allocated by the current thread,
+     * using the extension to ThreadMXBean provided by HotSpot, or -1 if the
+     * JVM does not support it.
+     */
+    private static long allocated() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        try {
+            return (Long) Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class)
+                .invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private ScalingBenchmark() {
+        // Contains only static methods.
+    }
+}
@@ -0,0 +1,234 @@
+package tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * StressGenerator creates large, synthetic scripts used to check how the time
+ * and memory taken by the compiler grows with the size of a script. Each Shape
+ * stresses a different part of the compiler and the size controls the number
+ * of elements, e.g. the depth of nesting or the number of cases in a switch.
+ *
+ * Usage: StressGenerator [dir [size]]
+ *
+ * writes one script for each shape, of the given size (default 1024), to the
+ * directory (default target/stress). The include chain is written as a series
+ * of files, stress0.as to stressN.as, where each includes the next.
+ */
+public final class StressGenerator {
+
+    /** The different types of script that can be generated. */
+    public enum Shape {
+        /** if and while statements nested inside each other. */
+        NESTING,
+        /** A switch statement with a case for each value. */
+        SWITCH,
+        /** An array literal containing numbers and strings. */
+        ARRAY,
+        /** An object literal with a distinct name for each property. */
+        OBJECT,
+        /** Statements that each assign a different variable. */
+        IDENTIFIERS,
+        /** A chain of files where each includes the next. */
+        INCLUDES;
+    }
+
+    /** The prefix used for the names of the files in an include chain. */
+    public static final String PREFIX = "stress";
+
+    private static final String DEST_DIR = "target/stress";
+    private static final int DEFAULT_SIZE = 1024;
+
+    public static void main(final String[] args) throws IOException {
+        final File dir = new File(args.length > 0 ? args[0] : DEST_DIR);
+        final int size = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULT_SIZE;
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory: " + dir);
+        }
+
+        for (Shape shape : Shape.values()) {
+            if (shape == Shape.INCLUDES) {
+                writeIncludes(dir, size);
+            } else {
+                write(new File(dir, shape.name().toLowerCase() + ".as"),
+                        script(shape, size));
+            }
+        }
+    }
+
+    /**
+     * Generate a script.
+     *
+     * @param shape the type of script.
+     * @param size the number of elements in the script.
+     *
+     * @return the script. For INCLUDES only the first file in the chain is
+     * returned, use writeIncludes() to create all the files.
+     */
+    public static String script(final Shape shape, final int size) {
+        final StringBuilder builder = new StringBuilder();
+
+        switch (shape) {
+        case NESTING:
+            nesting(builder, size);
+            break;
+        case SWITCH:
+            switchCases(builder, size);
+            break;
+        case ARRAY:
+            array(builder, size);
+            break;
+        case OBJECT:
+            object(builder, size);
+            break;
+        case IDENTIFIERS:
+            identifiers(builder, size);
+            break;
+        case INCLUDES:
+            include(builder, 0, size);
+            break;
+        default:
+            throw new IllegalArgumentException(shape.name());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Write a chain of files where each file includes the next.
+     *
+     * @param dir the directory where the files are written.
+     * @param size the number of files in the chain.
+     *
+     * @return the first file in the chain.
+     *
+     * @throws IOException if a file cannot be written.
+     */
+    public static File writeIncludes(final File dir, final int size)
+            throws IOException {
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = size - 1; i >= 0; i--) {
+            builder.setLength(0);
+            include(builder, i, size);
+            write(new File(dir, PREFIX + i + ".as"), builder.toString());
+        }
+        return new File(dir, PREFIX + "0.as");
+    }
+
+    /*
+     * nesting alternates if and while statements so both the conditional
+     * and the backward branches have to be resolved at every level.
+     */
+    private static void nesting(final StringBuilder builder, final int size) {
+        builder.append("var total = 0;\n");
+
+        for (int i = 0; i < size; i++) {
+            indent(builder, i);
+            if (i % 2 == 0) {
+                builder.append("if (a").append(i).append(" > ").append(i)
+                    .append(") {\n");
+            } else {
+                builder.append("while (a").append(i).append(" < ").append(i)
+                    .append(") {\n");
+            }
+        }
+        indent(builder, size);
+        builder.append("total = total + 1;\n");
+
+        for (int i = size - 1; i >= 0; i--) {
+            indent(builder, i);
+            builder.append("}\n");
+        }
+    }
+
+    private static void switchCases(final StringBuilder builder,
+            final int size) {
+        builder.append("switch (value) {\n");
+
+        for (int i = 0; i < size; i++) {
+            builder.append("case ").append(i).append(":\n")
+                .append("    result = \"case").append(i).append("\";\n")
+                .append("    break;\n");
+        }
+        builder.append("default:\n")
+            .append("    result = null;\n")
+            .append("}\n");
+    }
+
+    private static void array(final StringBuilder builder, final int size) {
+        builder.append("list = [");
+
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            if (i % 2 == 0) {
+                builder.append(i);
+            } else {
+                builder.append("\"item").append(i).append('"');
+            }
+        }
+        builder.append("];\n");
+    }
+
+    private static void object(final StringBuilder builder, final int size) {
+        builder.append("table = {");
+
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append("key").append(i).append(": ");
+            if (i % 2 == 0) {
+                builder.append(i);
+            } else {
+                builder.append("\"value").append(i).append('"');
+            }
+        }
+        builder.append("};\n");
+    }
+
+    private static void identifiers(final StringBuilder builder,
+            final int size) {
+        builder.append("v0 = 0;\n");
+
+        for (int i = 1; i < size; i++) {
+            builder.append('v').append(i).append(" = v").append(i - 1)
+                .append(" + ").append(i).append(";\n");
+        }
+    }
+
+    private static void include(final StringBuilder builder, final int index,
+            final int size) {
+        if (index + 1 < size) {
+            builder.append("#include \"").append(PREFIX).append(index + 1)
+                .append(".as\"\n");
+        }
+        builder.append("level").append(index).append(" = ").append(index)
+            .append(";\n");
+    }
+
+    private static void indent(final StringBuilder builder, final int level) {
+        for (int i = 0; i < level; i++) {
+            builder.append("  ");
+        }
+    }
+
+    private static void write(final File file, final String script)
+            throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(script.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private StressGenerator() {
+        // Contains only static methods.
+    }
+}